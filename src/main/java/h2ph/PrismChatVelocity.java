@@ -4,6 +4,7 @@ import com.google.inject.Inject;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.player.PlayerChatEvent;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
+import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.Player;
@@ -17,16 +18,36 @@ import h2ph.cache.ProxyPlayerData;
         "User" })
 public class PrismChatVelocity {
 
+    private static final h2ph.metrics.Histogram CHAT_FANOUT_TIME = h2ph.metrics.Metrics.histogram(
+            "prism_chat_fanout_seconds", "Time spent delivering a chat message to local recipients.");
+    private static final h2ph.metrics.Counter CHAT_MESSAGES = h2ph.metrics.Metrics.counter(
+            "prism_chat_messages_total", "Chat messages delivered to local players.");
+    private static final h2ph.metrics.Counter CHAT_RECIPIENTS = h2ph.metrics.Metrics.counter(
+            "prism_chat_recipients_total", "Local recipients of chat messages.");
+
     private final ProxyServer server;
     private final Logger logger;
     private final java.nio.file.Path dataDirectory; // Inject data directory
     private DatabaseManager databaseManager;
+    private h2ph.db.PersistenceWriter persistenceWriter;
     private h2ph.redis.RedisManager redisManager;
+    private h2ph.redis.PresenceDirectory presenceDirectory;
+    private h2ph.redis.NetworkCounts networkCounts;
+    private h2ph.chat.PrivateMessageService privateMessages;
     private h2ph.config.ConfigManager configManager;
     private PlayerCache playerCache;
     private h2ph.chat.ChatFilter chatFilter;
+    private h2ph.chat.ChatFormats chatFormats;
+    private h2ph.chat.ChannelRegistry channelRegistry;
+    private h2ph.listeners.ChannelChatListener channelChat;
+    private h2ph.chat.ChatHistory chatHistory;
+    private h2ph.audit.AuditLog auditLog;
     private h2ph.listeners.PingListener pingListener;
+    private h2ph.listeners.CommandBlockListener commandBlockListener;
+    private h2ph.metrics.MetricsHttpServer metricsServer;
     private boolean assumeSignedWhenUnknown;
+    // Repeating tasks, cancelled first on shutdown
+    private final java.util.List<com.velocitypowered.api.scheduler.ScheduledTask> tasks = new java.util.ArrayList<>();
 
     @Inject
     public PrismChatVelocity(ProxyServer server, Logger logger,
@@ -38,12 +59,16 @@ public class PrismChatVelocity {
 
     @Subscribe
     public void onProxyInitialization(ProxyInitializeEvent event) {
+        long startedAt = System.nanoTime();
         // Initialize Config
         configManager = new h2ph.config.ConfigManager(dataDirectory);
         configManager.loadConfig();
+        h2ph.util.PrismLog.init(logger, configManager.getBoolean("logging.debug", false),
+                configManager.getInt("logging.error-window-seconds", 60));
 
         // Initialize Database
-        databaseManager = new DatabaseManager();
+        // Connects in the background; until then reads fall back and writes are journaled
+        databaseManager = new DatabaseManager(configManager);
         databaseManager.initialize(
             configManager.getDatabaseHost("localhost"),
             configManager.getDatabasePort(3306),
@@ -51,25 +76,87 @@ public class PrismChatVelocity {
             configManager.getDatabaseUsername("root"),
             configManager.getDatabasePassword("password"));
 
+        // Writes are journaled locally and replayed to MySQL in the background
+        persistenceWriter = new h2ph.db.PersistenceWriter(databaseManager, openWriteJournal(),
+                configManager.getInt("journal.batch-size", 200), dataDirectory.resolve("journal").resolve("dead-letter.log"));
+
+        // Stable id for this proxy; sessions and cross-proxy messages are tagged with it
+        String instanceId = configManager.getString("proxy.id", "");
+        if (instanceId.isEmpty()) {
+            instanceId = java.util.UUID.randomUUID().toString();
+        }
+
         // Initialize Redis
-        redisManager = new h2ph.redis.RedisManager(configManager);
+        redisManager = new h2ph.redis.RedisManager(configManager, instanceId);
+        redisManager.probe().whenComplete((exists, error) -> {
+            if (error == null) {
+                h2ph.util.PrismLog.info("Connected to Redis.");
+            } else {
+                h2ph.util.PrismLog.warn("Redis is not reachable yet, chat stays local to this proxy until it is: {}",
+                        error.getMessage());
+            }
+        });
+
+        // Network-wide presence, replicated locally for /find, /msg and player counts
+        int presenceHeartbeat = Math.max(1, configManager.getInt("presence.heartbeat-seconds", 5));
+        presenceDirectory = new h2ph.redis.PresenceDirectory(server, redisManager, presenceHeartbeat,
+                configManager.getInt("presence.resync-seconds", 30),
+                configManager.getInt("presence.proxy-timeout-seconds", 20));
+        server.getEventManager().register(this, presenceDirectory);
+        presenceDirectory.start();
+        tasks.add(server.getScheduler().buildTask(this, presenceDirectory::heartbeat)
+                .delay(java.time.Duration.ofSeconds(presenceHeartbeat))
+                .repeat(java.time.Duration.ofSeconds(presenceHeartbeat))
+                .schedule());
+
+        // Network player counts for the server list, recomputed off the ping path
+        networkCounts = new h2ph.redis.NetworkCounts(server, presenceDirectory);
+        networkCounts.setRegions(configManager.getSection("regions"));
+        networkCounts.refresh();
+        tasks.add(server.getScheduler().buildTask(this, networkCounts::refresh)
+                .repeat(java.time.Duration.ofSeconds(Math.max(1, configManager.getInt("server-list.count-refresh-seconds", 2))))
+                .schedule());
 
         // Initialize Player Cache
-        playerCache = new PlayerCache(databaseManager);
+        playerCache = new PlayerCache(databaseManager, configManager);
+        // Players who joined while MySQL was down have no cache entry yet
+        databaseManager.addConnectListener(() -> {
+            for (Player player : server.getAllPlayers()) {
+                if (playerCache.get(player.getUniqueId()) == null) {
+                    playerCache.loadAsync(player.getUniqueId());
+                }
+            }
+        });
         chatFilter = new h2ph.chat.ChatFilter(configManager);
+        chatFormats = new h2ph.chat.ChatFormats(configManager);
+        auditLog = openAuditLog();
+        // Channel membership as bitsets over per-player indexes, for global, local, team and configured channels
+        channelRegistry = new h2ph.chat.ChannelRegistry(playerCache, configManager);
+        server.getEventManager().register(this, channelRegistry);
+        // Recent chat, replayed on join from off-heap rings
+        if (configManager.getBoolean("history.enabled", true)) {
+            chatHistory = new h2ph.chat.ChatHistory(configManager);
+            server.getEventManager().register(this, new h2ph.listeners.ChatHistoryListener(server, chatHistory, chatFormats,
+                    playerCache, configManager));
+        }
         assumeSignedWhenUnknown = configManager.getBoolean("chat.assume-signed-when-unknown", true);
+        h2ph.util.PrismLog.info("Chat signature probe: {}", h2ph.util.ChatEventSignUtil.describe(PlayerChatEvent.class));
 
         // Register Team Chat Listener (handles intercepting chat and redis subscription)
-        String instanceId = java.util.UUID.randomUUID().toString();
-        server.getEventManager().register(this, new h2ph.listeners.TeamChatListener(server, databaseManager, redisManager, playerCache, instanceId, chatFilter, assumeSignedWhenUnknown));
+        server.getEventManager().register(this, new h2ph.listeners.TeamChatListener(server, databaseManager, redisManager, playerCache, instanceId, chatFilter, chatFormats, channelRegistry, chatHistory, auditLog, assumeSignedWhenUnknown, configManager));
+        channelChat = new h2ph.listeners.ChannelChatListener(redisManager, playerCache,
+                channelRegistry, chatFilter, chatFormats, auditLog, instanceId, assumeSignedWhenUnknown);
+        server.getEventManager().register(this, channelChat);
+        channelChat.start();
 
         // Register Listeners
-        server.getEventManager().register(this, new h2ph.listeners.PlayerDataListener(databaseManager, redisManager, playerCache));
-        server.getEventManager().register(this, new h2ph.listeners.CommandBlockListener());
+        server.getEventManager().register(this, new h2ph.listeners.PlayerDataListener(persistenceWriter, redisManager, playerCache));
+        commandBlockListener = new h2ph.listeners.CommandBlockListener(configManager);
+        server.getEventManager().register(this, commandBlockListener);
 
         // Register Ping/MOTD Listener with configured MOTD
         String initialMotd = configManager.getMotd("§5§lprismsmp.net§r\n           §3§lɴᴏʀᴛʜ ᴀᴍᴇʀɪᴄᴀ ᴇᴀѕᴛ ʀᴇʟᴇᴀѕᴇᴅ");
-        pingListener = new h2ph.listeners.PingListener(initialMotd);
+        pingListener = new h2ph.listeners.PingListener(initialMotd, configManager, networkCounts);
         server.getEventManager().register(this, pingListener);
 
         // Subscribe to prism:player_update for cache invalidation
@@ -77,9 +164,11 @@ public class PrismChatVelocity {
             try {
                 java.util.UUID uuid = java.util.UUID.fromString(msg);
                 playerCache.invalidate(uuid);
-                System.out.println("[PrismChat-Debug] Invalidated cache for " + uuid);
+                if (h2ph.util.PrismLog.isDebug()) {
+                    h2ph.util.PrismLog.debug("Invalidated cache for {}", uuid);
+                }
             } catch (Exception e) {
-                e.printStackTrace();
+                h2ph.util.PrismLog.error("Could not handle a player_update message", e);
             }
         });
         server.getEventManager().register(this, new h2ph.listeners.PersistenceListener(server, databaseManager));
@@ -90,6 +179,160 @@ public class PrismChatVelocity {
                     // Do nothing
                 });
 
+        // Cross-proxy private messages: /msg <player> <message>, /reply <message>
+        privateMessages = new h2ph.chat.PrivateMessageService(server, redisManager, presenceDirectory, chatFilter, chatFormats, auditLog, configManager);
+        server.getEventManager().register(this, privateMessages);
+        privateMessages.start();
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("msg").aliases("tell", "w", "whisper", "m").build(),
+                new com.velocitypowered.api.command.SimpleCommand() {
+                    @Override
+                    public void execute(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        if (!(invocation.source() instanceof Player)) {
+                            invocation.source().sendMessage(Component.text("Only players can send private messages."));
+                            return;
+                        }
+                        if (args.length < 2) {
+                            invocation.source().sendMessage(Component.text("Usage: /msg <player> <message>"));
+                            return;
+                        }
+                        String message = String.join(" ", java.util.Arrays.copyOfRange(args, 1, args.length));
+                        privateMessages.send((Player) invocation.source(), args[0], message);
+                    }
+
+                    @Override
+                    public java.util.List<String> suggest(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        if (args.length > 1) return java.util.List.of();
+                        return presenceDirectory.suggestNames(args.length > 0 ? args[0] : "", 20);
+                    }
+                });
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("reply").aliases("r").build(),
+                (com.velocitypowered.api.command.SimpleCommand) invocation -> {
+                    String[] args = invocation.arguments();
+                    if (!(invocation.source() instanceof Player)) {
+                        invocation.source().sendMessage(Component.text("Only players can send private messages."));
+                        return;
+                    }
+                    if (args.length < 1) {
+                        invocation.source().sendMessage(Component.text("Usage: /reply <message>"));
+                        return;
+                    }
+                    privateMessages.reply((Player) invocation.source(), String.join(" ", args));
+                });
+
+        // Chat channels: /channel [list], /channel <name> [message] to talk there, /channel leave <name>
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("channel").aliases("ch").build(),
+                new com.velocitypowered.api.command.SimpleCommand() {
+                    @Override
+                    public void execute(Invocation invocation) {
+                        if (!(invocation.source() instanceof Player)) {
+                            invocation.source().sendMessage(Component.text("Only players can use chat channels."));
+                            return;
+                        }
+                        switchChannel((Player) invocation.source(), invocation.arguments());
+                    }
+
+                    @Override
+                    public java.util.List<String> suggest(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        if (args.length > 2 || !(invocation.source() instanceof Player)
+                                || (args.length == 2 && !"leave".equalsIgnoreCase(args[0]))) return java.util.List.of();
+                        String prefix = args.length > 0 ? args[args.length - 1].toLowerCase(java.util.Locale.ROOT) : "";
+                        java.util.List<String> names = new java.util.ArrayList<>();
+                        if (args.length <= 1) {
+                            names.add("list");
+                            names.add("leave");
+                            names.add(h2ph.chat.ChannelRegistry.GLOBAL);
+                            names.add("local");
+                        }
+                        for (h2ph.chat.ChannelRegistry.Channel channel : channelRegistry.getConfigured()) {
+                            if (channel.getPermission() == null || invocation.source().hasPermission(channel.getPermission())) {
+                                names.add(channel.getName());
+                            }
+                        }
+                        names.removeIf(name -> !name.startsWith(prefix));
+                        return names;
+                    }
+                });
+
+        // Where is a player on the network: /find <player>
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("find").build(),
+                new com.velocitypowered.api.command.SimpleCommand() {
+                    @Override
+                    public void execute(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        com.velocitypowered.api.command.CommandSource src = invocation.source();
+                        if (args.length != 1) {
+                            src.sendMessage(Component.text("Usage: /find <player>"));
+                            return;
+                        }
+                        h2ph.redis.PresenceDirectory.Presence presence = presenceDirectory.findByName(args[0]);
+                        if (presence == null) {
+                            src.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&c" + args[0] + " is not online."));
+                        } else {
+                            src.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&d" + presence.getName()
+                                    + " &7is online on &f" + (presence.getServer().isEmpty() ? "?" : presence.getServer())));
+                        }
+                    }
+
+                    @Override
+                    public java.util.List<String> suggest(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        return presenceDirectory.suggestNames(args.length > 0 ? args[args.length - 1] : "", 20);
+                    }
+
+                    @Override
+                    public boolean hasPermission(Invocation invocation) {
+                        return invocation.source().hasPermission("prismchat.find");
+                    }
+                });
+
+        // Counters, latency histograms and connection/queue state: /prismstats
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("prismstats").build(),
+                new com.velocitypowered.api.command.SimpleCommand() {
+                    @Override
+                    public void execute(Invocation invocation) {
+                        com.velocitypowered.api.command.CommandSource src = invocation.source();
+                        for (String line : collectStats()) {
+                            src.sendMessage(Component.text(line));
+                        }
+                    }
+
+                    @Override
+                    public boolean hasPermission(Invocation invocation) {
+                        return invocation.source().hasPermission("prismchat.stats");
+                    }
+                });
+        startMetricsServer();
+
+        // Search the chat audit log: /prismlog <player|uuid> [minutes] [limit]
+        server.getCommandManager().register(
+                server.getCommandManager().metaBuilder("prismlog").build(),
+                new com.velocitypowered.api.command.SimpleCommand() {
+                    @Override
+                    public void execute(Invocation invocation) {
+                        queryAuditLog(invocation.source(), invocation.arguments());
+                    }
+
+                    @Override
+                    public java.util.List<String> suggest(Invocation invocation) {
+                        String[] args = invocation.arguments();
+                        if (args.length > 1) return java.util.List.of();
+                        return presenceDirectory.suggestNames(args.length > 0 ? args[0] : "", 20);
+                    }
+
+                    @Override
+                    public boolean hasPermission(Invocation invocation) {
+                        return invocation.source().hasPermission("prismchat.audit");
+                    }
+                });
+
         // Command to reload MOTD from config: /prismmotd reload
         server.getCommandManager().register(
                 server.getCommandManager().metaBuilder("prismmotd").build(),
@@ -98,29 +341,218 @@ public class PrismChatVelocity {
                     com.velocitypowered.api.command.CommandSource src = invocation.source();
                     if (args.length > 0 && "reload".equalsIgnoreCase(args[0])) {
                         configManager.loadConfig();
+                        h2ph.util.PrismLog.configure(configManager.getBoolean("logging.debug", false),
+                                configManager.getInt("logging.error-window-seconds", 60));
                         String newMotd = configManager.getMotd(initialMotd);
                         if (pingListener != null) {
+                            networkCounts.setRegions(configManager.getSection("regions"));
                             pingListener.setMotd(newMotd);
+                            pingListener.reload(configManager);
                         }
-                        src.sendMessage(Component.text("PrismMOTD: reloaded MOTD."));
+                        chatFormats.reload(configManager);
+                        commandBlockListener.reload(configManager);
+                        src.sendMessage(Component.text("PrismMOTD: reloaded MOTD, chat formats and command lists."));
                     } else {
                         src.sendMessage(Component.text("Usage: /prismmotd reload"));
                     }
                 });
 
-        // Schedule Ping Update Task (every 10 seconds)
-        server.getScheduler().buildTask(this, () -> {
-            if (redisManager != null) {
+        // Publish pings: one hash per proxy, delta-only, spread over the interval
+        int pingIntervalSeconds = Math.max(1, configManager.getInt("ping.interval-seconds", 10));
+        int pingSlices = Math.max(1, configManager.getInt("ping.slices", 10));
+        h2ph.redis.PingPublisher pingPublisher = new h2ph.redis.PingPublisher(server, redisManager,
+                pingIntervalSeconds, pingSlices, configManager.getInt("ping.min-delta-ms", 5));
+        tasks.add(server.getScheduler().buildTask(this, pingPublisher::tick)
+                .repeat(java.time.Duration.ofMillis(Math.max(100L, pingIntervalSeconds * 1000L / pingSlices)))
+                .schedule());
+
+        // Keep Redis sessions of online players alive; crashed proxies' sessions expire
+        tasks.add(server.getScheduler().buildTask(this, () -> {
+            if (redisManager != null && redisManager.isAvailable()) {
+                java.util.Map<java.util.UUID, String> online = new java.util.HashMap<>();
                 for (Player player : server.getAllPlayers()) {
-                    long ping = player.getPing();
-                    redisManager.setPlayerPing(player.getUniqueId(), ping);
+                    online.put(player.getUniqueId(), player.getUsername());
                 }
+                redisManager.refreshSessions(online);
             }
         })
-                .repeat(java.time.Duration.ofSeconds(10))
-                .schedule();
+                .repeat(java.time.Duration.ofSeconds(Math.max(5, redisManager.getSessionTtlSeconds() / 3)))
+                .schedule());
+
+        logger.info("PrismChat has been enabled in " + (System.nanoTime() - startedAt) / 1_000_000L
+                + " ms; MySQL and Redis connect in the background.");
+    }
+
+    private java.util.List<String> collectStats() {
+        java.util.List<String> lines = new java.util.ArrayList<>();
+        lines.add("-- Metrics");
+        lines.addAll(h2ph.metrics.Metrics.describe());
+        lines.add("-- MySQL (" + (databaseManager.isConnected() ? "connected" : "not connected, degraded") + ")");
+        lines.addAll(databaseManager.getPoolStats());
+        lines.add("-- Redis (circuit " + redisManager.getCircuitBreaker().getState() + ")");
+        lines.add("commands: " + redisManager.getCommandQueue().describe());
+        lines.addAll(redisManager.getSubscriptionStats());
+        lines.add("-- Network");
+        lines.add("presence: players=" + presenceDirectory.getNetworkCount() + ", proxies=" + presenceDirectory.getProxyCount());
+        lines.add("server list: rate-limited pings=" + pingListener.getLimitedCount());
+        lines.add("chat signature probe: " + h2ph.util.ChatEventSignUtil.describe(PlayerChatEvent.class));
+        return lines;
+    }
+
+    private void startMetricsServer() {
+        if (!configManager.getBoolean("metrics.enabled", false)) {
+            return;
+        }
+        String bind = configManager.getString("metrics.bind", "127.0.0.1");
+        int port = configManager.getInt("metrics.port", 9464);
+        try {
+            metricsServer = new h2ph.metrics.MetricsHttpServer(bind, port);
+            metricsServer.start();
+            logger.info("Serving Prometheus metrics on http://" + bind + ":" + port + "/metrics");
+        } catch (java.io.IOException e) {
+            logger.error("Could not start the metrics endpoint on " + bind + ":" + port, e);
+        }
+    }
+
+    private void switchChannel(Player player, String[] args) {
+        if (args.length == 0 || (args.length == 1 && "list".equalsIgnoreCase(args[0]))) {
+            StringBuilder list = new StringBuilder("&7Talking in &f")
+                    .append(channelRegistry.getFocus(player).getName()).append("&7. Channels: &fglobal&7, &flocal");
+            for (h2ph.chat.ChannelRegistry.Channel channel : channelRegistry.getConfigured()) {
+                if (channel.getPermission() == null || player.hasPermission(channel.getPermission())) {
+                    // Joined channels in white, the others grey
+                    list.append("&7, ").append(channelRegistry.isMember(player, channel) ? "&f" : "&8")
+                            .append(channel.getName());
+                }
+            }
+            player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy(list.toString()));
+            return;
+        }
+        boolean leaving = "leave".equalsIgnoreCase(args[0]);
+        if (leaving && args.length != 2) {
+            player.sendMessage(Component.text("Usage: /channel [list | <channel> [message] | leave <channel>]"));
+            return;
+        }
+        String name = (leaving ? args[1] : args[0]).toLowerCase(java.util.Locale.ROOT);
+        h2ph.chat.ChannelRegistry.Channel channel = name.equals(h2ph.chat.ChannelRegistry.GLOBAL) ? channelRegistry.global()
+                : name.equals("local") ? channelRegistry.getLocal(player) : channelRegistry.get(name);
+        if (channel == null || (channel.getPermission() != null && !player.hasPermission(channel.getPermission()))) {
+            player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&cNo channel named " + name + "."));
+            return;
+        }
+        if (leaving) {
+            if (!channel.isCrossProxy()) {
+                player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&cYou cannot leave " + name + "."));
+                return;
+            }
+            channelRegistry.leave(player, channel);
+            player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&7Left &f" + channel.getName() + "&7."));
+        } else if (args.length > 1) {
+            // One message without switching; commands never reach the backend, signed or not
+            if (!channel.isCrossProxy()) {
+                player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&cUse plain chat to talk in " + name + "."));
+                return;
+            }
+            channelRegistry.join(player, channel);
+            channelChat.send(player, channel, String.join(" ", java.util.Arrays.copyOfRange(args, 1, args.length)));
+        } else if (channel.isCrossProxy() && h2ph.util.ChatEventSignUtil.signsChat(player)) {
+            // Signed chat cannot be cancelled, so it would reach everyone on the player's server too
+            channelRegistry.join(player, channel);
+            player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&cYour client signs chat, so your chat cannot be "
+                    + "kept out of your server. Joined " + channel.getName() + "; use /channel " + channel.getName()
+                    + " <message> to talk there."));
+        } else if (channelRegistry.focus(player, channel)) {
+            player.sendMessage(h2ph.util.ChatFormatUtil.deserializeLegacy("&7Now talking in &f" + channel.getName() + "&7."));
+        }
+    }
+
+    private void queryAuditLog(com.velocitypowered.api.command.CommandSource src, String[] args) {
+        if (auditLog == null) {
+            src.sendMessage(Component.text("The chat audit log is disabled."));
+            return;
+        }
+        if (args.length < 1 || args.length > 3) {
+            src.sendMessage(Component.text("Usage: /prismlog <player|uuid> [minutes] [limit]"));
+            return;
+        }
+        java.util.UUID target;
+        try {
+            target = java.util.UUID.fromString(args[0]);
+        } catch (IllegalArgumentException notUuid) {
+            java.util.Optional<Player> online = server.getPlayer(args[0]);
+            h2ph.redis.PresenceDirectory.Presence presence = presenceDirectory.findByName(args[0]);
+            target = online.isPresent() ? online.get().getUniqueId() : presence != null ? presence.getUuid() : null;
+        }
+        if (target == null) {
+            src.sendMessage(Component.text(args[0] + " is not online; pass their UUID instead."));
+            return;
+        }
+        int minutes;
+        int limit;
+        try {
+            minutes = args.length > 1 ? Math.max(1, Integer.parseInt(args[1])) : 60;
+            limit = args.length > 2 ? Math.max(1, Math.min(500, Integer.parseInt(args[2]))) : 20;
+        } catch (NumberFormatException e) {
+            src.sendMessage(Component.text("Usage: /prismlog <player|uuid> [minutes] [limit]"));
+            return;
+        }
+        java.util.UUID uuid = target;
+        long since = System.currentTimeMillis() - minutes * 60_000L;
+        // Reads segment files; keep it off the command thread
+        server.getScheduler().buildTask(this, () -> {
+            java.util.List<h2ph.audit.AuditLog.Entry> entries;
+            try {
+                entries = auditLog.query(uuid, since, limit);
+            } catch (java.io.IOException e) {
+                h2ph.util.PrismLog.error("Could not search the chat audit log", e);
+                src.sendMessage(Component.text("Could not search the chat audit log: " + e.getMessage()));
+                return;
+            }
+            if (entries.isEmpty()) {
+                src.sendMessage(Component.text("No chat from " + args[0] + " in the last " + minutes + " minute(s)."));
+                return;
+            }
+            java.time.format.DateTimeFormatter time = java.time.format.DateTimeFormatter.ofPattern("MM-dd HH:mm:ss")
+                    .withZone(java.time.ZoneId.systemDefault());
+            // Oldest first, like chat
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                h2ph.audit.AuditLog.Entry entry = entries.get(i);
+                src.sendMessage(Component.text("[" + time.format(java.time.Instant.ofEpochMilli(entry.getTimestamp())) + "] ["
+                        + entry.getChannel() + "] " + entry.getSenderName() + ": " + entry.getMessage()));
+            }
+        }).schedule();
+    }
 
-        logger.info("PrismChat has been enabled!");
+    private h2ph.audit.AuditLog openAuditLog() {
+        if (!configManager.getBoolean("audit.enabled", true)) {
+            return null;
+        }
+        try {
+            return new h2ph.audit.AuditLog(dataDirectory.resolve("audit"),
+                    Math.max(1, configManager.getInt("audit.segment-size-mb", 16)) * 1024 * 1024,
+                    Math.max(1, configManager.getInt("audit.roll-minutes", 60)) * 60_000L,
+                    configManager.getInt("audit.retention-days", 30) * 86_400_000L,
+                    configManager.getInt("audit.queue-size", 65536));
+        } catch (java.io.IOException e) {
+            logger.error("Could not open the chat audit log, chat will not be audited.", e);
+            return null;
+        }
+    }
+
+    private h2ph.db.WriteJournal openWriteJournal() {
+        if (!configManager.getBoolean("journal.enabled", true)) {
+            return null;
+        }
+        h2ph.db.WriteJournal journal = new h2ph.db.WriteJournal(dataDirectory.resolve("journal"),
+                Math.max(64, configManager.getInt("journal.segment-size-kb", 4096)) * 1024,
+                configManager.getBoolean("journal.fsync", false));
+        try {
+            journal.open();
+            return journal;
+        } catch (java.io.IOException e) {
+            logger.error("Could not open the write journal, pending writes will only be buffered in memory.", e);
+            return null;
+        }
     }
 
     @Subscribe
@@ -135,6 +567,13 @@ public class PrismChatVelocity {
             // Team chat will be handled by TeamChatListener/Redis instead.
             return;
         }
+        h2ph.chat.ChannelRegistry.Channel focus = channelRegistry.getFocus(player);
+        if (focus.isCrossProxy()) {
+            // Staff and custom channels go through ChannelChatListener
+            return;
+        }
+        h2ph.jfr.ChatMessageEvent jfrEvent = new h2ph.jfr.ChatMessageEvent();
+        jfrEvent.begin();
         if (chatFilter != null) {
             h2ph.chat.ChatFilter.ChatDecision decision = chatFilter.check(player, message);
             if (!decision.isAllowed()) {
@@ -145,34 +584,95 @@ public class PrismChatVelocity {
                 if (!h2ph.util.ChatEventSignUtil.isSigned(event, assumeSignedWhenUnknown)) {
                     event.setResult(PlayerChatEvent.ChatResult.message(""));
                 }
+                jfrEvent.finish("global", "denied", 0, message.length());
                 return;
             }
         }
 
-        String displayNameLegacy = h2ph.util.ChatFormatUtil.getDisplayNameLegacy(player);
-        Component displayNameComponent = h2ph.util.ChatFormatUtil.deserializeLegacy(displayNameLegacy);
-
-        Component formattedMessage = Component.text()
-                .append(Component.text("<"))
-                .append(displayNameComponent)
-                .append(Component.text("> "))
-                .append(Component.text(message))
-                .build();
-
-        // Broadcast to players on OTHER servers to make it "Global"
-        for (Player p : server.getAllPlayers()) {
-            if (p.getCurrentServer().isPresent() && player.getCurrentServer().isPresent()) {
-                String pServer = p.getCurrentServer().get().getServerInfo().getName();
-                String myServer = player.getCurrentServer().get().getServerInfo().getName();
-
-                if (!pServer.equals(myServer)) {
-                    p.sendMessage(formattedMessage);
-                }
+        if (focus.getType() == h2ph.chat.ChannelRegistry.Type.LOCAL) {
+            // The backend shows local chat to its own players; only the broadcast is skipped
+            if (auditLog != null) {
+                auditLog.record(focus.getName(), player.getUniqueId(), player.getUsername(), message);
             }
+            jfrEvent.finish("local", "allowed", 0, message.length());
+            return;
+        }
+
+        String displayNameLegacy = h2ph.util.ChatFormatUtil.getDisplayNameLegacy(player);
+        Component formattedMessage = chatFormats.global().render(displayNameLegacy, message);
+
+        // Broadcast to players on OTHER servers to make it "Global"; the sender's own server
+        // already shows the message
+        long fanoutStart = System.nanoTime();
+        int recipients = 0;
+        if (player.getCurrentServer().isPresent()) {
+            h2ph.chat.ChannelRegistry.Channel sameServer = channelRegistry.local(
+                    player.getCurrentServer().get().getServerInfo().getName());
+            recipients = channelRegistry.forEachMember(channelRegistry.global(), sameServer, p -> p.sendMessage(formattedMessage));
+        }
+        CHAT_FANOUT_TIME.recordSince(fanoutStart);
+        if (chatHistory != null) {
+            chatHistory.record("global", "", displayNameLegacy, message);
+        }
+        if (auditLog != null) {
+            auditLog.record("global", player.getUniqueId(), player.getUsername(), message);
         }
+        CHAT_MESSAGES.increment();
+        CHAT_RECIPIENTS.add(recipients);
+        jfrEvent.finish("global", "allowed", recipients, message.length());
     }
 
-    // Cleanup on disable/shutdown if needed, though Velocity doesn't have a direct
-    // onDisable counterpart in the same way.
-    // Usually handled via ProxyShutdownEvent if critical.
+    /**
+     * Orderly shutdown within {@code shutdown.timeout-seconds}: stop new work, record where
+     * everyone still online was, close the audit log, drain the Redis and MySQL queues,
+     * then close the pools.
+     */
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        if (configManager == null) return;
+        h2ph.util.ShutdownSequence shutdown = new h2ph.util.ShutdownSequence(
+                Math.max(1, configManager.getInt("shutdown.timeout-seconds", 10)) * 1000L);
+
+        shutdown.run("stop new work", () -> {
+            for (com.velocitypowered.api.scheduler.ScheduledTask task : tasks) {
+                task.cancel();
+            }
+            server.getEventManager().unregisterListeners(this);
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        });
+        shutdown.run("flush online players", () -> {
+            // Players normally disconnect before this event; anyone left is written here
+            for (Player player : server.getAllPlayers()) {
+                String serverName = player.getCurrentServer().isPresent()
+                        ? player.getCurrentServer().get().getServerInfo().getName() : "";
+                persistenceWriter.submit(h2ph.db.PlayerWrite.disconnect(player.getUniqueId().toString(),
+                        player.getUsername(), serverName));
+                redisManager.removeSession(player.getUniqueId(), player.getUsername());
+            }
+            presenceDirectory.close();
+        });
+        if (auditLog != null) {
+            // Chat has stopped; local disk only, so it goes before the network drains use up the budget
+            shutdown.run("close audit log", () -> auditLog.close(shutdown.remainingMillis()));
+        }
+        shutdown.run("drain redis", () -> {
+            int dropped = redisManager.close(shutdown.remainingMillis());
+            if (dropped > 0) {
+                h2ph.util.PrismLog.warn("Dropped {} queued Redis command(s) at shutdown.", dropped);
+            }
+        });
+        shutdown.run("drain persistence", () -> {
+            if (!persistenceWriter.close(shutdown.remainingMillis())) {
+                h2ph.util.PrismLog.warn("MySQL writes still pending at shutdown are kept in the journal for the next start.");
+            }
+        });
+        shutdown.run("close mysql", () -> {
+            playerCache.close();
+            databaseManager.close();
+        });
+        h2ph.util.PrismLog.info("PrismChat shut down: {}", shutdown.summary());
+        h2ph.util.PrismLog.close();
+    }
 }
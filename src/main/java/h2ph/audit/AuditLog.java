@@ -0,0 +1,537 @@
+package h2ph.audit;
+
+import h2ph.metrics.Counter;
+import h2ph.metrics.Metrics;
+import h2ph.util.MappedBuffers;
+import h2ph.util.PrismLog;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only record of chat sent by players on this proxy, for moderation.
+ *
+ * Chat threads hand records to a single writer through a lock-free queue and never
+ * wait; if the queue is full the record is dropped and counted. The writer appends to
+ * memory-mapped segment files ({@code audit-<startMillis>.log}) that roll every
+ * {@code audit.roll-minutes} or when full. Next to each segment an index
+ * ({@code .idx}) holds one fixed-size entry per record: sender uuid, timestamp and
+ * offset. Closed segments are unmapped and gzipped in the background; their index
+ * stays plain, so {@link #query} only reads the records the index points at.
+ *
+ * Records are timestamped by the writer as it appends them, never earlier than the
+ * record before, so timestamps only grow along a segment and across segments; a query
+ * reading an index backwards stops at the first record older than it asks for.
+ *
+ * Record layout: {@code [int length][long time][long uuidMsb][long uuidLsb]} followed
+ * by the length-prefixed UTF-8 channel, sender name and message. The length is written
+ * last and a zero length marks the end of a segment.
+ */
+public class AuditLog {
+
+    private static final Counter RECORDED = Metrics.counter("prism_audit_recorded_total", "Chat lines written to the audit log.");
+    private static final Counter DROPPED = Metrics.counter("prism_audit_dropped_total", "Chat lines dropped because the audit queue was full.");
+
+    private static final String PREFIX = "audit-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String GZIP_SUFFIX = ".log.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    // uuid msb, uuid lsb, time, offset
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 8 + 4;
+    private static final int RECORD_HEADER_BYTES = 4 + 8 + 8 + 8;
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * One logged chat line.
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final UUID sender;
+        private final String senderName;
+        private final String channel;
+        private final String message;
+
+        private Entry(long timestamp, UUID sender, String senderName, String channel, String message) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.senderName = senderName;
+            this.channel = channel;
+            this.message = message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public UUID getSender() {
+            return sender;
+        }
+
+        public String getSenderName() {
+            return senderName;
+        }
+
+        /**
+         * @return {@code global}, {@code team:<name>} or {@code msg:<target>}
+         */
+        public String getChannel() {
+            return channel;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long rollMillis;
+    private final long retentionMillis;
+    private final int queueCapacity;
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Thread writer;
+    private final ExecutorService compressor;
+    private volatile boolean running = true;
+    private volatile boolean parked;
+
+    // Writer thread only
+    private Segment active;
+    private long lastTimestamp;
+    private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(INDEX_ENTRY_BYTES * 256);
+
+    public AuditLog(Path directory, int segmentSize, long rollMillis, long retentionMillis, int queueCapacity) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.rollMillis = rollMillis;
+        this.retentionMillis = retentionMillis;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        Files.createDirectories(directory);
+        this.compressor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "prism-audit-compress");
+            t.setDaemon(true);
+            return t;
+        });
+        TreeMap<Long, Path> segments = listSegments();
+        // Never stamp earlier than the segments already here, even if the clock stepped back
+        lastTimestamp = segments.isEmpty() ? 0L : segments.lastKey();
+        // Segments left open by a crash or an unclean stop
+        for (long start : segments.keySet()) {
+            if (Files.exists(logPath(start))) {
+                compressor.execute(() -> recoverAndCompress(start));
+            }
+        }
+        this.writer = new Thread(this::run, "prism-audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a chat line. Never blocks.
+     */
+    public void record(String channel, UUID sender, String senderName, String message) {
+        if (!running) return;
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            DROPPED.increment();
+            return;
+        }
+        // Stamped by the writer, which keeps timestamps in append order
+        queue.offer(new Entry(0L, sender, senderName, channel, message));
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Newest first, up to {@code limit} lines sent by {@code sender} at or after
+     * {@code sinceMillis}. Reads only index files and the records they point at.
+     */
+    public List<Entry> query(UUID sender, long sinceMillis, int limit) throws IOException {
+        List<Entry> results = new ArrayList<>();
+        TreeMap<Long, Path> segments = listSegments();
+        for (Long start : segments.descendingKeySet()) {
+            if (results.size() >= limit) break;
+            Long next = segments.higherKey(start);
+            if (next != null && next <= sinceMillis) break;
+            List<Integer> offsets = matchIndex(segments.get(start), sender, sinceMillis, limit - results.size());
+            if (!offsets.isEmpty()) {
+                results.addAll(readRecords(start, offsets));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Write out what is queued (waiting at most {@code timeoutMillis}) and stop.
+     */
+    public void close(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(Math.max(1L, timeoutMillis));
+            compressor.shutdown();
+            // An unfinished compression is redone from the plain segment on the next start
+            compressor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                if (!running) break;
+                try {
+                    idle();
+                } catch (IOException e) {
+                    PrismLog.error("Could not roll the audit log", e);
+                }
+                parked = true;
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                parked = false;
+                continue;
+            }
+            queued.decrementAndGet();
+            try {
+                append(entry);
+                RECORDED.increment();
+            } catch (IOException e) {
+                DROPPED.increment();
+                PrismLog.error("Could not write to the audit log", e);
+            }
+        }
+        try {
+            if (active != null) {
+                closeActive();
+            }
+        } catch (IOException e) {
+            PrismLog.error("Could not close the audit log", e);
+        }
+    }
+
+    // Queue drained: make the index visible to queries and roll a segment past its time
+    private void idle() throws IOException {
+        if (active == null) return;
+        flushIndex();
+        if (System.currentTimeMillis() - active.start >= rollMillis) {
+            closeActive();
+        }
+    }
+
+    private void append(Entry entry) throws IOException {
+        // Chat threads race to the queue, and the clock may step back
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        byte[] channel = entry.channel.getBytes(StandardCharsets.UTF_8);
+        byte[] name = entry.senderName.getBytes(StandardCharsets.UTF_8);
+        byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER_BYTES + 6 + channel.length + name.length + message.length;
+        // Leave room for the zero end marker
+        if (size + 4 > segmentSize || channel.length > 0xFFFF || name.length > 0xFFFF || message.length > 0xFFFF) {
+            throw new IOException("Audit record of " + size + " bytes exceeds the segment size.");
+        }
+        if (active != null && (active.limit + size + 4 > segmentSize || timestamp - active.start >= rollMillis)) {
+            closeActive();
+        }
+        if (active == null) {
+            openSegment(timestamp);
+        }
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.limit;
+        int at = offset + 4;
+        buffer.putLong(at, timestamp);
+        buffer.putLong(at + 8, entry.sender.getMostSignificantBits());
+        buffer.putLong(at + 16, entry.sender.getLeastSignificantBits());
+        at += 24;
+        at = putField(buffer, at, channel);
+        at = putField(buffer, at, name);
+        putField(buffer, at, message);
+        buffer.putInt(offset, size - 4);
+        active.limit = offset + size;
+        lastTimestamp = timestamp;
+
+        if (indexBuffer.remaining() < INDEX_ENTRY_BYTES) {
+            flushIndex();
+        }
+        indexBuffer.putLong(entry.sender.getMostSignificantBits())
+                .putLong(entry.sender.getLeastSignificantBits())
+                .putLong(timestamp)
+                .putInt(offset);
+    }
+
+    private static int putField(ByteBuffer buffer, int at, byte[] bytes) {
+        buffer.putShort(at, (short) bytes.length);
+        buffer.put(at + 2, bytes);
+        return at + 2 + bytes.length;
+    }
+
+    private void openSegment(long now) throws IOException {
+        long start = now;
+        // Segment names must be unique even when two roll within one millisecond
+        while (Files.exists(indexPath(start))) {
+            start++;
+        }
+        FileChannel log = FileChannel.open(logPath(start), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = FileChannel.open(indexPath(start), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        active = new Segment(start, log, log.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize), index);
+        deleteExpired(now);
+    }
+
+    private void closeActive() throws IOException {
+        Segment segment = active;
+        active = null;
+        flushIndex(segment);
+        segment.buffer.force();
+        segment.index.force(false);
+        segment.index.close();
+        segment.log.close();
+        // Only this thread ever touched the mapping; release it now rather than at some GC
+        MappedBuffers.unmap(segment.buffer);
+        long start = segment.start;
+        int limit = segment.limit;
+        try {
+            compressor.execute(() -> compress(start, limit));
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the next start recovers and compresses it
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        flushIndex(active);
+    }
+
+    private void flushIndex(Segment segment) throws IOException {
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining()) {
+            segment.index.write(indexBuffer);
+        }
+        indexBuffer.clear();
+    }
+
+    private void compress(long start, int limit) {
+        Path log = logPath(start);
+        Path temp = directory.resolve(PREFIX + start + GZIP_SUFFIX + ".tmp");
+        try (FileChannel in = FileChannel.open(log, StandardOpenOption.READ);
+                OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024)) {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            long position = 0;
+            while (position < limit) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), limit - position));
+                int read = in.read(chunk, position);
+                if (read < 0) break;
+                out.write(chunk.array(), 0, read);
+                position += read;
+            }
+        } catch (IOException e) {
+            PrismLog.error("Could not compress audit segment " + log.getFileName(), e);
+            return;
+        }
+        try {
+            Files.move(temp, gzipPath(start), StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(log);
+        } catch (IOException e) {
+            PrismLog.error("Could not replace audit segment " + log.getFileName(), e);
+        }
+    }
+
+    // Find where a segment left open ends, rebuild its index from the records, compress it
+    private void recoverAndCompress(long start) {
+        Path log = logPath(start);
+        int limit = 0;
+        try (FileChannel in = FileChannel.open(log, StandardOpenOption.READ);
+                FileChannel index = FileChannel.open(indexPath(start), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            while (limit + RECORD_HEADER_BYTES <= size) {
+                header.clear();
+                if (in.read(header, limit) < RECORD_HEADER_BYTES) break;
+                int length = header.getInt(0);
+                if (length <= 0 || limit + 4L + length > size) break;
+                entry.clear();
+                entry.putLong(header.getLong(12)).putLong(header.getLong(20)).putLong(header.getLong(4)).putInt(limit).flip();
+                index.write(entry);
+                limit += 4 + length;
+            }
+        } catch (IOException e) {
+            PrismLog.error("Could not recover audit segment " + log.getFileName(), e);
+            return;
+        }
+        compress(start, limit);
+    }
+
+    private void deleteExpired(long now) throws IOException {
+        if (retentionMillis <= 0) return;
+        TreeMap<Long, Path> segments = listSegments();
+        for (Long start : segments.keySet()) {
+            Long next = segments.higherKey(start);
+            if (next == null || next >= now - retentionMillis) break;
+            Files.deleteIfExists(gzipPath(start));
+            Files.deleteIfExists(logPath(start));
+            Files.deleteIfExists(indexPath(start));
+        }
+    }
+
+    // Segment start -> index file
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - INDEX_SUFFIX.length())), path);
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        return segments;
+    }
+
+    // Offsets of matching records, newest first
+    private List<Integer> matchIndex(Path index, UUID sender, long sinceMillis, int limit) throws IOException {
+        List<Integer> offsets = new ArrayList<>();
+        long msb = sender.getMostSignificantBits();
+        long lsb = sender.getLeastSignificantBits();
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            // The active index may end in a partly written entry
+            long entries = channel.size() / INDEX_ENTRY_BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(entries, 4096) * INDEX_ENTRY_BYTES);
+            long position = entries * INDEX_ENTRY_BYTES;
+            // Read backwards in chunks so the newest matches come first
+            while (position > 0 && offsets.size() < limit) {
+                int chunk = (int) Math.min(buffer.capacity(), position);
+                position -= chunk;
+                buffer.clear().limit(chunk);
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0) {
+                    // Fill the chunk
+                }
+                for (int at = chunk - INDEX_ENTRY_BYTES; at >= 0 && offsets.size() < limit; at -= INDEX_ENTRY_BYTES) {
+                    long time = buffer.getLong(at + 16);
+                    if (time < sinceMillis) {
+                        return offsets;
+                    }
+                    if (buffer.getLong(at) == msb && buffer.getLong(at + 8) == lsb) {
+                        offsets.add(buffer.getInt(at + 24));
+                    }
+                }
+            }
+        }
+        return offsets;
+    }
+
+    // Offsets are newest first; plain segments are read in place, gzipped ones streamed in order
+    private List<Entry> readRecords(long start, List<Integer> offsets) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath(start), StandardOpenOption.READ)) {
+            List<Entry> entries = new ArrayList<>(offsets.size());
+            for (int offset : offsets) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                channel.read(length, offset);
+                ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+                while (body.hasRemaining() && channel.read(body, offset + 4 + body.position()) >= 0) {
+                    // Fill the record
+                }
+                entries.add(decode(body.array()));
+            }
+            return entries;
+        } catch (NoSuchFileException e) {
+            // Already compressed
+        }
+        List<Integer> ascending = new ArrayList<>(offsets);
+        Collections.reverse(ascending);
+        List<Entry> entries = new ArrayList<>(offsets.size());
+        try (InputStream raw = new GZIPInputStream(Files.newInputStream(gzipPath(start)), 64 * 1024);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024))) {
+            long position = 0;
+            for (int offset : ascending) {
+                in.skipNBytes(offset - position);
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                entries.add(decode(body));
+                position = offset + 4L + body.length;
+            }
+        } catch (EOFException e) {
+            // Index points past the compressed data; return what was found
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    private static Entry decode(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        long time = buffer.getLong();
+        UUID sender = new UUID(buffer.getLong(), buffer.getLong());
+        String channel = getField(buffer);
+        String name = getField(buffer);
+        return new Entry(time, sender, name, channel, getField(buffer));
+    }
+
+    private static String getField(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private Path logPath(long start) {
+        return directory.resolve(PREFIX + start + LOG_SUFFIX);
+    }
+
+    private Path gzipPath(long start) {
+        return directory.resolve(PREFIX + start + GZIP_SUFFIX);
+    }
+
+    private Path indexPath(long start) {
+        return directory.resolve(PREFIX + start + INDEX_SUFFIX);
+    }
+
+    private static final class Segment {
+        private final long start;
+        private final FileChannel log;
+        private final MappedByteBuffer buffer;
+        private final FileChannel index;
+        private int limit;
+
+        private Segment(long start, FileChannel log, MappedByteBuffer buffer, FileChannel index) {
+            this.start = start;
+            this.log = log;
+            this.buffer = buffer;
+            this.index = index;
+        }
+    }
+}
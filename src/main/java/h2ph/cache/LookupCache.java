@@ -0,0 +1,67 @@
+package h2ph.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache for remote lookups with a short TTL. Misses can be cached too
+ * (negative caching, usually with a shorter TTL) so repeated lookups of an offline
+ * name don't hit Redis every time.
+ */
+public class LookupCache<K, V> {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    public LookupCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > LookupCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the cached entry, or null if absent or expired. A present entry may hold a
+     *         null value (cached miss).
+     */
+    public synchronized Entry<V> get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) return null;
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    public synchronized void put(K key, V value) {
+        long ttl = value != null ? ttlMillis : negativeTtlMillis;
+        if (ttl <= 0) return;
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        public V getValue() {
+            return value;
+        }
+    }
+}
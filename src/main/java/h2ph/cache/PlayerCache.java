@@ -1,10 +1,26 @@
 package h2ph.cache;
 
+import h2ph.config.ConfigManager;
 import h2ph.db.DatabaseManager;
+import h2ph.db.ReadFailedException;
+import h2ph.jfr.PlayerCacheLoadEvent;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.util.PrismLog;
 
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
 
 /**
@@ -12,11 +28,38 @@ import java.util.Map;
  */
 public class PlayerCache {
 
+    private static final Histogram LOAD_TIME = Metrics.histogram("prism_player_cache_load_seconds", "Time to load a player's chat data from MySQL.");
+    private static final Counter LOAD_ERRORS = Metrics.counter("prism_player_cache_load_errors_total", "Player cache loads that failed.");
+    // Loads waiting for a thread; past this, a join burst is served from the cache
+    private static final int LOAD_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Notified when a cached player's team changes, including joins (old team null)
+     * and removals (new team null).
+     */
+    public interface TeamChangeListener {
+        void onTeamChange(UUID uuid, String oldTeamId, String newTeamId);
+    }
+
     private final Map<UUID, ProxyPlayerData> cache = new ConcurrentHashMap<>();
+    // One id per stay on this proxy; a load stores its result only while its id is current
+    private final Map<UUID, Long> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong sessionIds = new AtomicLong();
     private final DatabaseManager databaseManager;
+    private final List<TeamChangeListener> teamListeners = new CopyOnWriteArrayList<>();
+    // Blocking MySQL reads run here rather than on the common ForkJoinPool
+    private final ExecutorService loader;
 
-    public PlayerCache(DatabaseManager databaseManager) {
+    public PlayerCache(DatabaseManager databaseManager, ConfigManager configManager) {
         this.databaseManager = databaseManager;
+        int threads = Math.max(1, configManager.getInt("resilience.cache-load-threads", 4));
+        AtomicInteger threadIds = new AtomicInteger();
+        this.loader = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(LOAD_QUEUE_CAPACITY), r -> {
+                    Thread t = new Thread(r, "prism-cache-load-" + threadIds.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
     }
 
     /**
@@ -26,37 +69,123 @@ public class PlayerCache {
         return cache.get(uuid);
     }
 
+    public void addTeamChangeListener(TeamChangeListener listener) {
+        teamListeners.add(listener);
+    }
+
     /**
      * Remove a player from the cache (e.g., on disconnect).
      */
     public void remove(UUID uuid) {
-        cache.remove(uuid);
+        ProxyPlayerData old;
+        synchronized (this) {
+            sessions.remove(uuid);
+            old = cache.remove(uuid);
+        }
+        if (old != null) {
+            fireTeamChange(uuid, old.teamId, null);
+        }
     }
 
     /**
-     * Load player data from DB asynchronously and store in cache.
+     * Load player data from DB asynchronously and store in cache. While the database
+     * circuit is open, or when the read fails, the existing cache entry (if any) is
+     * served instead and kept as it is. A load that finishes after {@link #remove} is dropped.
      */
     public CompletableFuture<ProxyPlayerData> loadAsync(UUID uuid) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                String uuidStr = uuid.toString();
-                boolean teamChatEnabled = databaseManager.isTeamChatEnabled(uuidStr);
-                String teamId = databaseManager.getTeamIdForPlayer(uuidStr);
-                String teamName = databaseManager.getTeamName(teamId);
-                ProxyPlayerData data = new ProxyPlayerData(teamChatEnabled, teamId, teamName);
-                cache.put(uuid, data);
-                return data;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
+        return loadAsync(uuid, false);
+    }
+
+    /**
+     * @param fresh read from the primary instead of the replica, for reloads that must
+     *              observe a write that just happened
+     */
+    public CompletableFuture<ProxyPlayerData> loadAsync(UUID uuid, boolean fresh) {
+        Long session = sessions.computeIfAbsent(uuid, k -> sessionIds.incrementAndGet());
+        if (!databaseManager.isAvailable()) {
+            return CompletableFuture.completedFuture(cache.get(uuid));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> load(uuid, fresh, session), loader);
+        } catch (RejectedExecutionException e) {
+            LOAD_ERRORS.increment();
+            PrismLog.error("Player cache load queue is full", e);
+            return CompletableFuture.completedFuture(cache.get(uuid));
+        }
+    }
+
+    private ProxyPlayerData load(UUID uuid, boolean fresh, Long session) {
+        long start = System.nanoTime();
+        PlayerCacheLoadEvent jfrEvent = new PlayerCacheLoadEvent();
+        jfrEvent.begin();
+        boolean success = false;
+        try {
+            String uuidStr = uuid.toString();
+            boolean teamChatEnabled = databaseManager.isTeamChatEnabled(uuidStr, fresh);
+            String teamId = databaseManager.getTeamIdForPlayer(uuidStr, fresh);
+            String teamName = databaseManager.getTeamName(teamId, fresh);
+            ProxyPlayerData data = new ProxyPlayerData(teamChatEnabled, teamId, teamName);
+            ProxyPlayerData old;
+            synchronized (this) {
+                if (!session.equals(sessions.get(uuid))) {
+                    // The player left while this load ran
+                    return null;
+                }
+                old = cache.put(uuid, data);
+            }
+            fireTeamChange(uuid, old != null ? old.teamId : null, teamId);
+            LOAD_TIME.recordSince(start);
+            success = true;
+            return data;
+        } catch (ReadFailedException e) {
+            LOAD_ERRORS.increment();
+            if (PrismLog.isDebug()) {
+                PrismLog.debug("Kept the cached data for {}: {}", uuid, e.getMessage());
+            }
+            return cache.get(uuid);
+        } catch (Exception e) {
+            LOAD_ERRORS.increment();
+            PrismLog.error("Could not load player data", e);
+            return null;
+        } finally {
+            jfrEvent.end();
+            if (jfrEvent.shouldCommit()) {
+                jfrEvent.uuid = uuid.toString();
+                jfrEvent.fresh = fresh;
+                jfrEvent.success = success;
+                jfrEvent.commit();
             }
-        });
+        }
     }
 
     /**
-     * Invalidate and reload a player's cache entry.
+     * Invalidate and reload a player's cache entry. Invalidations follow a write, so
+     * the reload bypasses the replica.
      */
     public void invalidate(UUID uuid) {
-        loadAsync(uuid);
+        // Updates are broadcast network-wide; only reload players staying on this proxy
+        if (sessions.containsKey(uuid)) {
+            loadAsync(uuid, true);
+        }
+    }
+
+    /**
+     * Stop the load threads. Loads still queued are dropped; the cache goes with the proxy.
+     */
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    private void fireTeamChange(UUID uuid, String oldTeamId, String newTeamId) {
+        if (oldTeamId == null ? newTeamId == null : oldTeamId.equals(newTeamId)) {
+            return;
+        }
+        for (TeamChangeListener listener : teamListeners) {
+            try {
+                listener.onTeamChange(uuid, oldTeamId, newTeamId);
+            } catch (Exception e) {
+                PrismLog.error("Team change listener failed", e);
+            }
+        }
     }
 }
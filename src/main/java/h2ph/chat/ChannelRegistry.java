@@ -0,0 +1,407 @@
+package h2ph.chat;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import h2ph.cache.PlayerCache;
+import h2ph.cache.ProxyPlayerData;
+import h2ph.config.ConfigManager;
+import h2ph.metrics.Metrics;
+import h2ph.util.PrismLog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Chat channels and who is in them.
+ *
+ * Every player on this proxy gets a small dense index, reused after they leave. A
+ * channel's members are a bitset over those indexes, so delivering a message walks the
+ * set bits instead of testing every online player. Joins, server switches and team
+ * changes copy the bitset under this registry's lock; delivery reads it without one.
+ * Each player also has a focused channel, the one their plain chat goes to.
+ */
+public class ChannelRegistry implements PlayerCache.TeamChangeListener {
+
+    public static final String GLOBAL = "global";
+    private static final String LOCAL_PREFIX = "local:";
+    private static final long[] NO_MEMBERS = new long[0];
+
+    public enum Type {
+        /** Everyone on this proxy. */
+        GLOBAL,
+        /** Players on one backend server, {@code local:<server>}; the server shows their chat itself. */
+        LOCAL,
+        /** Holders of the channel's permission, joined automatically, network-wide. */
+        STAFF,
+        /** Online members of a team, {@code team:<id>}. */
+        TEAM,
+        /** Configured under {@code channels:} and joined with /channel, network-wide. */
+        CUSTOM
+    }
+
+    /**
+     * A channel and its current members.
+     */
+    public static final class Channel {
+        private final String name;
+        private final Type type;
+        private final String permission;
+        // Bit i is set while the player with index i is a member; replaced, never mutated
+        private volatile long[] members = NO_MEMBERS;
+
+        private Channel(String name, Type type, String permission) {
+            this.name = name;
+            this.type = type;
+            this.permission = permission;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the permission needed to join, or null if anyone may
+         */
+        public String getPermission() {
+            return permission;
+        }
+
+        /**
+         * @return whether chat in this channel is relayed to the other proxies
+         */
+        public boolean isCrossProxy() {
+            return type == Type.STAFF || type == Type.CUSTOM;
+        }
+
+        public int size() {
+            int size = 0;
+            for (long word : members) {
+                size += Long.bitCount(word);
+            }
+            return size;
+        }
+
+        private boolean contains(int index) {
+            long[] words = members;
+            int word = index >>> 6;
+            return word < words.length && (words[word] & (1L << index)) != 0;
+        }
+    }
+
+    // Per-player state, guarded by the registry lock except for the final fields
+    private static final class Member {
+        private final Player player;
+        private final int index;
+        private final Set<Channel> joined = new HashSet<>();
+        private volatile Channel focus;
+        private Channel local;
+        private Channel team;
+
+        private Member(Player player, int index, Channel focus) {
+            this.player = player;
+            this.index = index;
+            this.focus = focus;
+        }
+    }
+
+    private final PlayerCache playerCache;
+    private final Channel global = new Channel(GLOBAL, Type.GLOBAL, null);
+    // Configured staff and custom channels, by name
+    private final Map<String, Channel> configured;
+    // Local and team channels, created with their first member and dropped with their last
+    private final Map<String, Channel> dynamic = new ConcurrentHashMap<>();
+    private final Map<UUID, Member> members = new ConcurrentHashMap<>();
+    private final Deque<Integer> freeIndexes = new ArrayDeque<>();
+    private int nextIndex;
+    // Index -> member; grown under the lock, read without it
+    private volatile AtomicReferenceArray<Member> slots = new AtomicReferenceArray<>(64);
+
+    public ChannelRegistry(PlayerCache playerCache, ConfigManager configManager) {
+        this.playerCache = playerCache;
+        this.configured = loadChannels(configManager.getSection("channels"));
+        if (playerCache != null) {
+            playerCache.addTeamChangeListener(this);
+        }
+        Metrics.gauge("prism_chat_channels", "Chat channels with members on this proxy.",
+                () -> configured.size() + dynamic.size() + 1);
+    }
+
+    public Channel global() {
+        return global;
+    }
+
+    /**
+     * @return the channel of players on {@code server}, or null if nobody is there
+     */
+    public Channel local(String server) {
+        return dynamic.get(LOCAL_PREFIX + server);
+    }
+
+    /**
+     * @return the channel of a team's local members, or null if none are online here
+     */
+    public Channel team(String teamId) {
+        return teamId != null ? dynamic.get(ChatHistory.teamChannel(teamId)) : null;
+    }
+
+    /**
+     * @return a staff or custom channel from the config, or null
+     */
+    public Channel get(String name) {
+        return configured.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    public List<Channel> getConfigured() {
+        return new ArrayList<>(configured.values());
+    }
+
+    /**
+     * @return where {@code player}'s chat goes; global until they pick another channel
+     */
+    public Channel getFocus(Player player) {
+        Member member = members.get(player.getUniqueId());
+        return member != null ? member.focus : global;
+    }
+
+    /**
+     * @return the player's current server channel, or null before they reach a server
+     */
+    public Channel getLocal(Player player) {
+        Member member = members.get(player.getUniqueId());
+        if (member == null) return null;
+        synchronized (this) {
+            return member.local;
+        }
+    }
+
+    public boolean isMember(Player player, Channel channel) {
+        Member member = members.get(player.getUniqueId());
+        return member != null && channel.contains(member.index);
+    }
+
+    // Dense index of an online player, or -1; for tests
+    synchronized int indexOf(Player player) {
+        Member member = members.get(player.getUniqueId());
+        return member != null ? member.index : -1;
+    }
+
+    /**
+     * Join {@code channel} to receive its chat. Permissions are checked by the caller.
+     *
+     * @return false if the player has not reached a server yet
+     */
+    public synchronized boolean join(Player player, Channel channel) {
+        Member member = members.get(player.getUniqueId());
+        if (member == null) return false;
+        join(member, channel);
+        return true;
+    }
+
+    /**
+     * Join {@code channel} if needed and send {@code player}'s chat there. Permissions
+     * are checked by the caller.
+     *
+     * @return false if the player has not reached a server yet
+     */
+    public synchronized boolean focus(Player player, Channel channel) {
+        Member member = members.get(player.getUniqueId());
+        if (member == null) return false;
+        join(member, channel);
+        member.focus = channel;
+        return true;
+    }
+
+    /**
+     * Leave a staff or custom channel; chat falls back to global if it was focused.
+     */
+    public synchronized void leave(Player player, Channel channel) {
+        Member member = members.get(player.getUniqueId());
+        if (member == null || !channel.isCrossProxy()) return;
+        leave(member, channel);
+        if (member.focus == channel) {
+            member.focus = global;
+        }
+    }
+
+    /**
+     * Run {@code action} for each member of {@code channel} who is not also in
+     * {@code excluded} (may be null).
+     *
+     * @return the number of players it ran for
+     */
+    public int forEachMember(Channel channel, Channel excluded, Consumer<Player> action) {
+        if (channel == null) return 0;
+        long[] words = channel.members;
+        long[] skip = excluded != null ? excluded.members : NO_MEMBERS;
+        AtomicReferenceArray<Member> current = slots;
+        int count = 0;
+        for (int w = 0; w < words.length; w++) {
+            long bits = words[w] & ~(w < skip.length ? skip[w] : 0L);
+            while (bits != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                Member member = index < current.length() ? current.get(index) : null;
+                // The index may have been handed to someone else since the bitset was read
+                if (member == null || !channel.contains(index)) continue;
+                try {
+                    action.accept(member.player);
+                    count++;
+                } catch (Exception e) {
+                    PrismLog.error("Could not deliver chat to a member of " + channel.name, e);
+                }
+            }
+        }
+        return count;
+    }
+
+    @Subscribe
+    public void onPostConnect(ServerPostConnectEvent event) {
+        Player player = event.getPlayer();
+        String server = player.getCurrentServer().map(connection -> connection.getServerInfo().getName()).orElse(null);
+        if (server == null) return;
+        // Permission lookups may be slow; do them before taking the lock
+        List<Channel> staff = new ArrayList<>();
+        if (event.getPreviousServer() == null) {
+            for (Channel channel : configured.values()) {
+                if (channel.type == Type.STAFF && player.hasPermission(channel.permission)) {
+                    staff.add(channel);
+                }
+            }
+        }
+        synchronized (this) {
+            Member member = members.get(player.getUniqueId());
+            if (member == null) {
+                member = new Member(player, allocateIndex(), global);
+                slots.set(member.index, member);
+                members.put(player.getUniqueId(), member);
+                join(member, global);
+                for (Channel channel : staff) {
+                    join(member, channel);
+                }
+                ProxyPlayerData cached = playerCache != null ? playerCache.get(player.getUniqueId()) : null;
+                if (cached != null) {
+                    setTeam(member, cached.teamId);
+                }
+            }
+            Channel local = dynamic(LOCAL_PREFIX + server, Type.LOCAL);
+            if (member.local != local) {
+                Channel previous = member.local;
+                join(member, local);
+                member.local = local;
+                if (previous != null) {
+                    leave(member, previous);
+                }
+                if (member.focus == previous) {
+                    member.focus = local;
+                }
+            }
+        }
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        synchronized (this) {
+            Member member = members.remove(event.getPlayer().getUniqueId());
+            if (member == null) return;
+            for (Channel channel : new ArrayList<>(member.joined)) {
+                leave(member, channel);
+            }
+            // Bits are cleared first, so delivery never reaches a reused index by mistake
+            slots.set(member.index, null);
+            freeIndexes.push(member.index);
+        }
+    }
+
+    @Override
+    public synchronized void onTeamChange(UUID uuid, String oldTeamId, String newTeamId) {
+        Member member = members.get(uuid);
+        if (member != null) {
+            setTeam(member, newTeamId);
+        }
+    }
+
+    private void setTeam(Member member, String teamId) {
+        Channel team = teamId != null && !teamId.isEmpty() ? dynamic(ChatHistory.teamChannel(teamId), Type.TEAM) : null;
+        if (member.team == team) return;
+        if (member.team != null) {
+            leave(member, member.team);
+        }
+        member.team = team;
+        if (team != null) {
+            join(member, team);
+        }
+    }
+
+    private Channel dynamic(String name, Type type) {
+        return dynamic.computeIfAbsent(name, key -> new Channel(key, type, null));
+    }
+
+    private void join(Member member, Channel channel) {
+        if (!member.joined.add(channel)) return;
+        int word = member.index >>> 6;
+        long[] words = Arrays.copyOf(channel.members, Math.max(channel.members.length, word + 1));
+        words[word] |= 1L << member.index;
+        channel.members = words;
+    }
+
+    private void leave(Member member, Channel channel) {
+        if (!member.joined.remove(channel)) return;
+        long[] words = channel.members.clone();
+        words[member.index >>> 6] &= ~(1L << member.index);
+        channel.members = words;
+        if ((channel.type == Type.LOCAL || channel.type == Type.TEAM) && channel.size() == 0) {
+            dynamic.remove(channel.name, channel);
+        }
+    }
+
+    private int allocateIndex() {
+        Integer free = freeIndexes.poll();
+        if (free != null) {
+            return free;
+        }
+        int index = nextIndex++;
+        AtomicReferenceArray<Member> current = slots;
+        if (index >= current.length()) {
+            AtomicReferenceArray<Member> grown = new AtomicReferenceArray<>(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            slots = grown;
+        }
+        return index;
+    }
+
+    private static Map<String, Channel> loadChannels(Map<String, String> section) {
+        Map<String, Channel> channels = new ConcurrentHashMap<>();
+        for (Map.Entry<String, String> entry : section.entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ROOT);
+            if (name.equals(GLOBAL) || name.equals("local") || name.equals("team") || name.equals("list")
+                    || name.equals("leave") || name.contains(":")) {
+                PrismLog.warn("Ignoring chat channel '{}': the name is reserved", entry.getKey());
+                continue;
+            }
+            String permission = entry.getValue().isEmpty() ? null : entry.getValue();
+            // staff is joined automatically by everyone allowed in; other channels on request
+            Type type = name.equals("staff") && permission != null ? Type.STAFF : Type.CUSTOM;
+            channels.put(name, new Channel(name, type, permission));
+        }
+        return channels;
+    }
+}
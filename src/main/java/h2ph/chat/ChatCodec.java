@@ -0,0 +1,313 @@
+package h2ph.chat;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Wire format for {@link ChatMessage}s published between proxies.
+ *
+ * <pre>
+ * byte    magic (0xC7)
+ * byte    format version
+ * byte    kind
+ * long    timestamp (epoch millis, big-endian)
+ * string  origin proxy id
+ * uuid    sender (16 bytes, all zero when unknown)
+ * string  sender display name
+ * string  team id (channel name for channel messages)
+ * string  team name
+ * string  message
+ * uuid    target (optional, direct messages only)
+ * </pre>
+ *
+ * Strings are a varint byte length followed by UTF-8. Decoders ignore trailing bytes,
+ * so later versions may append fields. Payloads starting with '{' are decoded as the
+ * legacy JSON format so proxies can be upgraded one at a time.
+ */
+public final class ChatCodec {
+
+    public static final byte MAGIC = (byte) 0xC7;
+    public static final int VERSION = 1;
+
+    private static final int MAX_INTERNED_LENGTH = 64;
+    // Reused per thread; grown on demand for long messages
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[512]);
+    // Origins, team ids and team names repeat on almost every message
+    private static final Interner INTERNER = new Interner(1024);
+
+    private ChatCodec() {
+    }
+
+    public static byte[] encode(ChatMessage msg) {
+        byte[] buf = SCRATCH.get();
+        int max = 3 + 8 + 16 + 16 + 5 * 5 + 3 * (msg.getOrigin().length() + msg.getSender().length()
+                + msg.getTeamId().length() + msg.getTeamName().length() + msg.getMessage().length());
+        if (buf.length < max) {
+            buf = new byte[Math.max(max, buf.length * 2)];
+            SCRATCH.set(buf);
+        }
+        int pos = 0;
+        buf[pos++] = MAGIC;
+        buf[pos++] = (byte) VERSION;
+        buf[pos++] = (byte) msg.getKind().ordinal();
+        pos = writeLong(buf, pos, msg.getTimestamp());
+        pos = writeString(buf, pos, msg.getOrigin());
+        UUID sender = msg.getSenderUuid();
+        pos = writeLong(buf, pos, sender != null ? sender.getMostSignificantBits() : 0L);
+        pos = writeLong(buf, pos, sender != null ? sender.getLeastSignificantBits() : 0L);
+        pos = writeString(buf, pos, msg.getSender());
+        pos = writeString(buf, pos, msg.getTeamId());
+        pos = writeString(buf, pos, msg.getTeamName());
+        pos = writeString(buf, pos, msg.getMessage());
+        UUID target = msg.getTarget();
+        if (target != null) {
+            pos = writeLong(buf, pos, target.getMostSignificantBits());
+            pos = writeLong(buf, pos, target.getLeastSignificantBits());
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Legacy JSON encoding, used while older proxies in the network still expect it.
+     */
+    public static byte[] encodeJson(ChatMessage msg) {
+        StringWriter out = new StringWriter(128);
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("sender").value(msg.getSender());
+            writer.name("teamId").value(msg.getTeamId());
+            writer.name("teamName").value(msg.getTeamName());
+            writer.name("message").value(msg.getMessage());
+            writer.name("origin").value(msg.getOrigin());
+            if (msg.getSenderUuid() != null) {
+                writer.name("senderUuid").value(msg.getSenderUuid().toString());
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static ChatMessage decode(byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Empty chat payload");
+        }
+        if (data[0] == '{') {
+            return decodeJson(new String(data, StandardCharsets.UTF_8));
+        }
+        if (data[0] != MAGIC || data.length < 3) {
+            throw new IOException("Not a chat payload");
+        }
+        int version = data[1] & 0xFF;
+        if (version > VERSION) {
+            throw new IOException("Unsupported chat payload version " + version);
+        }
+        int kindIndex = data[2] & 0xFF;
+        if (kindIndex >= ChatMessage.Kind.values().length) {
+            throw new IOException("Unknown chat payload kind " + kindIndex);
+        }
+        Reader in = new Reader(data, 3);
+        long timestamp = in.readLong();
+        String origin = in.readString(true);
+        long msb = in.readLong();
+        long lsb = in.readLong();
+        String sender = in.readString(false);
+        String teamId = in.readString(true);
+        String teamName = in.readString(true);
+        String message = in.readString(false);
+        UUID senderUuid = msb == 0L && lsb == 0L ? null : new UUID(msb, lsb);
+        ChatMessage.Kind kind = ChatMessage.Kind.values()[kindIndex];
+        // Only direct messages carry a target; anything after the message of other kinds is a later field
+        UUID target = kind == ChatMessage.Kind.DIRECT && in.remaining() >= 16 ? new UUID(in.readLong(), in.readLong()) : null;
+        return new ChatMessage(kind, timestamp, origin, senderUuid, sender, teamId, teamName, message, target);
+    }
+
+    private static ChatMessage decodeJson(String raw) throws IOException {
+        JsonObject obj;
+        try {
+            obj = JsonParser.parseString(raw).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed JSON chat payload", e);
+        }
+        UUID senderUuid = null;
+        String uuid = jsonString(obj, "senderUuid");
+        if (uuid != null) {
+            try {
+                senderUuid = UUID.fromString(uuid);
+            } catch (IllegalArgumentException ignored) {
+                // Keep null
+            }
+        }
+        return new ChatMessage(ChatMessage.Kind.TEAM, System.currentTimeMillis(), jsonString(obj, "origin"), senderUuid,
+                jsonString(obj, "sender"), jsonString(obj, "teamId"), jsonString(obj, "teamName"), jsonString(obj, "message"));
+    }
+
+    private static String jsonString(JsonObject obj, String name) {
+        JsonElement el = obj.get(name);
+        return el != null && !el.isJsonNull() ? el.getAsString() : null;
+    }
+
+    private static int writeLong(byte[] buf, int pos, long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (v >>> shift);
+        }
+        return pos;
+    }
+
+    private static int writeVarInt(byte[] buf, int pos, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    // UTF-8 straight into the buffer, without an intermediate byte[] per string
+    private static int writeString(byte[] buf, int pos, String s) {
+        int len = s.length();
+        int utf8 = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8++;
+            } else if (c < 0x800) {
+                utf8 += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8 += 4;
+                i++;
+            } else {
+                utf8 += 3;
+            }
+        }
+        pos = writeVarInt(buf, pos, utf8);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                // Lone surrogate: written in 3-byte form, decoded as a replacement char
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int pos;
+
+        private Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private int remaining() {
+            return data.length - pos;
+        }
+
+        private long readLong() throws IOException {
+            if (pos + 8 > data.length) {
+                throw new IOException("Truncated chat payload");
+            }
+            long v = 0L;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (data[pos++] & 0xFFL);
+            }
+            return v;
+        }
+
+        private int readVarInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (pos >= data.length) {
+                    throw new IOException("Truncated chat payload");
+                }
+                byte b = data[pos++];
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint in chat payload");
+        }
+
+        private String readString(boolean intern) throws IOException {
+            int len = readVarInt();
+            if (len < 0 || pos + len > data.length) {
+                throw new IOException("Truncated chat payload");
+            }
+            String s;
+            if (len == 0) {
+                s = "";
+            } else if (intern && len <= MAX_INTERNED_LENGTH) {
+                s = INTERNER.intern(data, pos, len);
+            } else {
+                s = new String(data, pos, len, StandardCharsets.UTF_8);
+            }
+            pos += len;
+            return s;
+        }
+    }
+
+    /**
+     * Fixed-size, lossy intern table keyed by the encoded bytes. A hit returns the cached
+     * String without decoding or allocating; a collision simply replaces the slot.
+     */
+    private static final class Interner {
+        private final Entry[] entries;
+        private final int mask;
+
+        private Interner(int size) {
+            this.entries = new Entry[Integer.highestOneBit(size)];
+            this.mask = entries.length - 1;
+        }
+
+        private String intern(byte[] data, int off, int len) {
+            int h = 1;
+            for (int i = off; i < off + len; i++) {
+                h = 31 * h + data[i];
+            }
+            int slot = (h ^ (h >>> 16)) & mask;
+            // Entries are immutable, so a racy read sees either a whole entry or null
+            Entry e = entries[slot];
+            if (e != null && Arrays.equals(e.key, 0, e.key.length, data, off, off + len)) {
+                return e.value;
+            }
+            String value = new String(data, off, len, StandardCharsets.UTF_8);
+            entries[slot] = new Entry(Arrays.copyOfRange(data, off, off + len), value);
+            return value;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] key;
+        private final String value;
+
+        private Entry(byte[] key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
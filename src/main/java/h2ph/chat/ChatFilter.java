@@ -2,6 +2,9 @@ package h2ph.chat;
 
 import com.velocitypowered.api.proxy.Player;
 import h2ph.config.ConfigManager;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
 import net.kyori.adventure.text.Component;
 import h2ph.util.ChatFormatUtil;
 
@@ -17,6 +20,9 @@ public class ChatFilter {
     private static final String TOO_MANY = "&cYou are sending too many messages at once.";
     private static final String REPEAT = "&cPlease do not repeat the same (or similar) message.";
 
+    private static final Histogram CHECK_TIME = Metrics.histogram("prism_chat_filter_seconds", "Time spent in the chat filter.");
+    private static final Counter DENIED = Metrics.counter("prism_chat_filter_denied_total", "Messages rejected by the chat filter.");
+
     private final ConfigManager configManager;
     private final Map<UUID, State> states = new ConcurrentHashMap<>();
 
@@ -25,6 +31,16 @@ public class ChatFilter {
     }
 
     public ChatDecision check(Player player, String message) {
+        long start = System.nanoTime();
+        ChatDecision decision = evaluate(player, message);
+        CHECK_TIME.recordSince(start);
+        if (!decision.isAllowed()) {
+            DENIED.increment();
+        }
+        return decision;
+    }
+
+    private ChatDecision evaluate(Player player, String message) {
         if (player == null) {
             return ChatDecision.allow();
         }
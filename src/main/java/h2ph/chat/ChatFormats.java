@@ -0,0 +1,65 @@
+package h2ph.chat;
+
+import h2ph.config.ConfigManager;
+
+/**
+ * The configured chat formats, compiled once and recompiled on {@link #reload}.
+ */
+public class ChatFormats {
+
+    private static final String[] GLOBAL_SLOTS = {"sender", "message"};
+    private static final String[] TEAM_SLOTS = {"team", "sender", "message"};
+    private static final String[] CHANNEL_SLOTS = {"channel", "sender", "message"};
+    private static final String[] MSG_INCOMING_SLOTS = {"sender", "message"};
+    private static final String[] MSG_OUTGOING_SLOTS = {"target", "message"};
+    private static final ChatTemplate.SlotType[] LEGACY_TEXT = {ChatTemplate.SlotType.LEGACY, ChatTemplate.SlotType.TEXT};
+    private static final ChatTemplate.SlotType[] LEGACY_LEGACY_TEXT = {ChatTemplate.SlotType.LEGACY, ChatTemplate.SlotType.LEGACY, ChatTemplate.SlotType.TEXT};
+
+    private volatile ChatTemplate global;
+    private volatile ChatTemplate team;
+    private volatile ChatTemplate channel;
+    private volatile ChatTemplate msgIncoming;
+    private volatile ChatTemplate msgOutgoing;
+
+    public ChatFormats(ConfigManager configManager) {
+        reload(configManager);
+    }
+
+    public void reload(ConfigManager configManager) {
+        global = ChatTemplate.compile(configManager.getString("format.global", "<{sender}> {message}"),
+                GLOBAL_SLOTS, LEGACY_TEXT);
+        team = ChatTemplate.compile(configManager.getString("format.team", "&7[{team}&7] &5{sender}&r: {message}"),
+                TEAM_SLOTS, LEGACY_LEGACY_TEXT);
+        channel = ChatTemplate.compile(configManager.getString("format.channel", "&8[&b{channel}&8] &f{sender}&7: {message}"),
+                CHANNEL_SLOTS, LEGACY_LEGACY_TEXT);
+        msgIncoming = ChatTemplate.compile(configManager.getString("format.msg-incoming", "&d[&r{sender} &d-> &fme&d] &7{message}"),
+                MSG_INCOMING_SLOTS, LEGACY_TEXT);
+        msgOutgoing = ChatTemplate.compile(configManager.getString("format.msg-outgoing", "&d[&fme &d-> &f{target}&d] &7{message}"),
+                MSG_OUTGOING_SLOTS, LEGACY_TEXT);
+    }
+
+    /** Values: sender display name, message. */
+    public ChatTemplate global() {
+        return global;
+    }
+
+    /** Values: team name, sender display name, message. */
+    public ChatTemplate team() {
+        return team;
+    }
+
+    /** Values: channel name, sender display name, message. */
+    public ChatTemplate channel() {
+        return channel;
+    }
+
+    /** Values: sender display name, message. */
+    public ChatTemplate msgIncoming() {
+        return msgIncoming;
+    }
+
+    /** Values: target name, message. */
+    public ChatTemplate msgOutgoing() {
+        return msgOutgoing;
+    }
+}
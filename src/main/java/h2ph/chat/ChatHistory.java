@@ -0,0 +1,251 @@
+package h2ph.chat;
+
+import h2ph.config.ConfigManager;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent chat lines per channel ({@code "global"}, {@code "team:<id>"}), kept off-heap.
+ *
+ * One direct buffer of {@code history.max-memory-kb} is cut into fixed-size rings of
+ * {@code history.ring-kb}; each channel that has seen chat owns one ring and keeps its
+ * last {@code history.depth} lines there as compact records. When every ring is taken,
+ * the channel written least recently gives its ring up. Heap use is a few small arrays
+ * per ring and does not grow with traffic.
+ */
+public class ChatHistory {
+
+    private static final Counter RECORDED = Metrics.counter("prism_chat_history_recorded_total", "Chat lines written to the history rings.");
+    private static final Counter EVICTED = Metrics.counter("prism_chat_history_evicted_total", "History rings taken over by another channel.");
+
+    // timestamp + three u16 lengths
+    private static final int HEADER_BYTES = 8 + 2 * 3;
+    private static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    /**
+     * A decoded history line.
+     */
+    public static final class Line {
+        private final long timestamp;
+        private final String label;
+        private final String sender;
+        private final String message;
+
+        private Line(long timestamp, String label, String sender, String message) {
+            this.timestamp = timestamp;
+            this.label = label;
+            this.sender = sender;
+            this.message = message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the team name for team lines, empty for global ones
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private final ByteBuffer arena;
+    private final int ringBytes;
+    private final int depth;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    // Access order: the eldest entry is the channel written least recently
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ChatHistory(ConfigManager configManager) {
+        this.depth = Math.max(1, configManager.getInt("history.depth", 20));
+        this.ringBytes = Math.max(1, configManager.getInt("history.ring-kb", 16)) * 1024;
+        int slots = Math.max(1, configManager.getInt("history.max-memory-kb", 2048) * 1024 / ringBytes);
+        this.arena = ByteBuffer.allocateDirect(slots * ringBytes);
+        for (int i = 0; i < slots; i++) {
+            freeSlots.add(i * ringBytes);
+        }
+        Metrics.gauge("prism_chat_history_rings", "Channels with chat history held in memory.", this::ringCount);
+    }
+
+    /**
+     * Append a line to {@code channel}'s ring. Lines too large for a ring are skipped.
+     */
+    public void record(String channel, String label, String sender, String message) {
+        byte[] labelBytes = label.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_BYTES + labelBytes.length + senderBytes.length + messageBytes.length;
+        if (length > ringBytes || labelBytes.length > MAX_FIELD_BYTES || senderBytes.length > MAX_FIELD_BYTES
+                || messageBytes.length > MAX_FIELD_BYTES) {
+            return;
+        }
+        Ring ring = ringFor(channel);
+        synchronized (ring) {
+            if (ring.released) {
+                // Lost its slot to another channel between lookup and lock; drop the line
+                return;
+            }
+            int at = ring.reserve(length);
+            long timestamp = System.currentTimeMillis();
+            arena.putLong(at, timestamp);
+            at += 8;
+            at = putField(at, labelBytes);
+            at = putField(at, senderBytes);
+            putField(at, messageBytes);
+        }
+        RECORDED.increment();
+    }
+
+    /**
+     * @return up to {@code history.depth} lines of {@code channel}, oldest first, written
+     *         within the last {@code maxAgeMillis}
+     */
+    public List<Line> recent(String channel, long maxAgeMillis) {
+        Ring ring;
+        synchronized (rings) {
+            ring = rings.get(channel);
+        }
+        if (ring == null) {
+            return new ArrayList<>(0);
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        synchronized (ring) {
+            List<Line> lines = new ArrayList<>(ring.count);
+            if (ring.released) {
+                return lines;
+            }
+            for (int i = 0; i < ring.count; i++) {
+                int at = ring.base + ring.starts[(ring.head + i) % depth];
+                long timestamp = arena.getLong(at);
+                if (timestamp < cutoff) {
+                    continue;
+                }
+                at += 8;
+                int labelLength = Short.toUnsignedInt(arena.getShort(at));
+                String label = getString(at + 2, labelLength);
+                at += 2 + labelLength;
+                int senderLength = Short.toUnsignedInt(arena.getShort(at));
+                String sender = getString(at + 2, senderLength);
+                at += 2 + senderLength;
+                int messageLength = Short.toUnsignedInt(arena.getShort(at));
+                lines.add(new Line(timestamp, label, sender, getString(at + 2, messageLength)));
+            }
+            return lines;
+        }
+    }
+
+    public static String teamChannel(String teamId) {
+        return "team:" + teamId;
+    }
+
+    private int ringCount() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    private Ring ringFor(String channel) {
+        synchronized (rings) {
+            Ring ring = rings.get(channel);
+            if (ring != null) {
+                return ring;
+            }
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                Iterator<Ring> eldest = rings.values().iterator();
+                Ring victim = eldest.next();
+                eldest.remove();
+                synchronized (victim) {
+                    victim.released = true;
+                }
+                slot = victim.base;
+                EVICTED.increment();
+            }
+            ring = new Ring(slot);
+            rings.put(channel, ring);
+            return ring;
+        }
+    }
+
+    private int putField(int at, byte[] bytes) {
+        arena.putShort(at, (short) bytes.length);
+        arena.put(at + 2, bytes);
+        return at + 2 + bytes.length;
+    }
+
+    private String getString(int at, int length) {
+        byte[] bytes = new byte[length];
+        arena.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records are laid out back to back in the ring's slot and never wrap: a record
+     * that does not fit before the end starts over at offset 0. Writing drops the
+     * oldest records it overlaps, and the oldest line once {@code depth} is reached.
+     */
+    private final class Ring {
+        private final int base;
+        private final int[] starts = new int[depth];
+        private final int[] lengths = new int[depth];
+        private int head;
+        private int count;
+        private int writePos;
+        private boolean released;
+
+        private Ring(int base) {
+            this.base = base;
+        }
+
+        // Make room for a record and return its absolute offset in the arena
+        int reserve(int length) {
+            if (writePos + length > ringBytes) {
+                // Lines between the write position and the end are the oldest; the ring
+                // wraps past them, so they go first
+                while (count > 0 && starts[head] >= writePos) {
+                    dropOldest();
+                }
+                writePos = 0;
+            }
+            int end = writePos + length;
+            while (count > 0 && (count == depth || overlaps(starts[head], lengths[head], writePos, end))) {
+                dropOldest();
+            }
+            int index = (head + count) % depth;
+            starts[index] = writePos;
+            lengths[index] = length;
+            count++;
+            int at = base + writePos;
+            writePos = end;
+            return at;
+        }
+
+        private boolean overlaps(int start, int length, int from, int to) {
+            return start < to && from < start + length;
+        }
+
+        private void dropOldest() {
+            head = (head + 1) % depth;
+            count--;
+        }
+    }
+}
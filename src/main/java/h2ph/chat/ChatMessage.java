@@ -0,0 +1,111 @@
+package h2ph.chat;
+
+import java.util.UUID;
+
+/**
+ * A chat message relayed between proxies. Encoded on the wire by {@link ChatCodec}.
+ */
+public final class ChatMessage {
+
+    public enum Kind {
+        /** Team chat, delivered to online members of {@link #getTeamId()}. */
+        TEAM,
+        /** Private message to {@link #getTarget()}. */
+        DIRECT,
+        /** Staff or custom channel chat, delivered to local members of {@link #getChannel()}. */
+        CHANNEL
+    }
+
+    private final Kind kind;
+    private final long timestamp;
+    private final String origin;
+    private final UUID senderUuid;
+    private final String sender;
+    private final String teamId;
+    private final String teamName;
+    private final String message;
+    private final UUID target;
+
+    public ChatMessage(Kind kind, long timestamp, String origin, UUID senderUuid, String sender,
+            String teamId, String teamName, String message) {
+        this(kind, timestamp, origin, senderUuid, sender, teamId, teamName, message, null);
+    }
+
+    public ChatMessage(Kind kind, long timestamp, String origin, UUID senderUuid, String sender,
+            String teamId, String teamName, String message, UUID target) {
+        this.kind = kind;
+        this.timestamp = timestamp;
+        this.origin = origin != null ? origin : "";
+        this.senderUuid = senderUuid;
+        this.sender = sender != null ? sender : "";
+        this.teamId = teamId != null ? teamId : "";
+        this.teamName = teamName != null ? teamName : "";
+        this.message = message != null ? message : "";
+        this.target = target;
+    }
+
+    public static ChatMessage team(String origin, UUID senderUuid, String sender, String teamId, String teamName, String message) {
+        return new ChatMessage(Kind.TEAM, System.currentTimeMillis(), origin, senderUuid, sender, teamId, teamName, message);
+    }
+
+    public static ChatMessage direct(String origin, UUID senderUuid, String sender, UUID target, String message) {
+        return new ChatMessage(Kind.DIRECT, System.currentTimeMillis(), origin, senderUuid, sender, "", "", message, target);
+    }
+
+    public static ChatMessage channel(String origin, UUID senderUuid, String sender, String channel, String message) {
+        // The channel name travels in the team id field
+        return new ChatMessage(Kind.CHANNEL, System.currentTimeMillis(), origin, senderUuid, sender, channel, "", message);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the sender's uuid, or null if unknown (e.g. decoded from a legacy JSON payload)
+     */
+    public UUID getSenderUuid() {
+        return senderUuid;
+    }
+
+    /**
+     * @return the sender's display name in legacy color-code form
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    public String getTeamId() {
+        return teamId;
+    }
+
+    /**
+     * @return the channel name of a {@link Kind#CHANNEL} message
+     */
+    public String getChannel() {
+        return teamId;
+    }
+
+    public String getTeamName() {
+        return teamName;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the recipient of a {@link Kind#DIRECT} message, otherwise null
+     */
+    public UUID getTarget() {
+        return target;
+    }
+}
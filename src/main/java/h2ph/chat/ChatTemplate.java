@@ -0,0 +1,184 @@
+package h2ph.chat;
+
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.util.ChatFormatUtil;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.TextComponent;
+import net.kyori.adventure.text.format.Style;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chat format compiled once into static components and placeholder slots.
+ *
+ * Templates use '&' color codes and {@code {placeholder}}s, for example
+ * {@code "&7[{team}&7] &5{sender}&r: {message}"}. Static text is deserialized at
+ * compile time. Like in a legacy string, color codes carry over: each slot (and each
+ * later static segment) falls back to the style in effect where it appears, up to its
+ * own first color or {@code &r} code, which starts a fresh style. Rendering only
+ * assembles the final component tree.
+ */
+public final class ChatTemplate {
+
+    public enum SlotType {
+        /** Value may contain '&' color codes (display names, team names). */
+        LEGACY,
+        /** Value is shown as-is (player-typed message text). */
+        TEXT
+    }
+
+    // Private-use char marking the end of static text when probing its trailing style
+    private static final Histogram RENDER_TIME = Metrics.histogram("prism_chat_format_seconds", "Time spent rendering chat templates.");
+
+    private static final String MARKER = "\uE000";
+
+    private final String source;
+    private final Part[] parts;
+
+    private ChatTemplate(String source, Part[] parts) {
+        this.source = source;
+        this.parts = parts;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @param names placeholder names; {@link #render(String...)} takes values in this order
+     * @param types slot type of each name
+     */
+    public static ChatTemplate compile(String template, String[] names, SlotType[] types) {
+        List<Part> parts = new ArrayList<>();
+        StringBuilder staticSoFar = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            int close = c == '{' ? template.indexOf('}', i) : -1;
+            int slot = close > 0 ? indexOf(names, template.substring(i + 1, close)) : -1;
+            if (slot < 0) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+            flushLiteral(parts, literal, staticSoFar);
+            parts.add(new Slot(slot, types[slot], trailingStyle(staticSoFar)));
+            i = close + 1;
+        }
+        flushLiteral(parts, literal, staticSoFar);
+        return new ChatTemplate(template, parts.toArray(new Part[0]));
+    }
+
+    /**
+     * @param values one per placeholder name given at compile time; null renders empty
+     */
+    public Component render(String... values) {
+        long start = System.nanoTime();
+        TextComponent.Builder builder = Component.text();
+        for (Part part : parts) {
+            builder.append(part.render(values));
+        }
+        Component component = builder.build();
+        RENDER_TIME.recordSince(start);
+        return component;
+    }
+
+    private static void flushLiteral(List<Part> parts, StringBuilder literal, StringBuilder staticSoFar) {
+        if (literal.length() == 0) return;
+        parts.add(new Static(continueFrom(trailingStyle(staticSoFar), literal.toString())));
+        staticSoFar.append(literal);
+        literal.setLength(0);
+    }
+
+    // Legacy text following text in style carried; the carried style ends at the first color or reset code
+    private static Component continueFrom(Style carried, String legacy) {
+        if (carried.isEmpty()) return ChatFormatUtil.deserializeLegacy(legacy);
+        int reset = firstReset(legacy);
+        if (reset < 0) return ChatFormatUtil.deserializeLegacy(legacy).applyFallbackStyle(carried);
+        Component rest = ChatFormatUtil.deserializeLegacy(legacy.substring(reset));
+        if (reset == 0) return rest;
+        return Component.text()
+                .append(ChatFormatUtil.deserializeLegacy(legacy.substring(0, reset)).applyFallbackStyle(carried))
+                .append(rest)
+                .build();
+    }
+
+    // Index of the first '&' code that replaces the whole style (a color, hex color or &r), or -1
+    private static int firstReset(String legacy) {
+        for (int i = legacy.indexOf('&'); i >= 0 && i + 1 < legacy.length(); i = legacy.indexOf('&', i + 1)) {
+            char code = Character.toLowerCase(legacy.charAt(i + 1));
+            if (code == 'r' || code == '#' || (code >= '0' && code <= '9') || (code >= 'a' && code <= 'f')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // Style a character appended to the static text would get
+    private static Style trailingStyle(CharSequence legacy) {
+        if (legacy.length() == 0) return Style.empty();
+        Style style = findMarker(ChatFormatUtil.deserializeLegacy(legacy + MARKER), Style.empty());
+        return style != null ? style : Style.empty();
+    }
+
+    private static Style findMarker(Component component, Style inherited) {
+        Style here = inherited.merge(component.style());
+        if (component instanceof TextComponent && ((TextComponent) component).content().endsWith(MARKER)) {
+            return here;
+        }
+        List<Component> children = component.children();
+        for (int i = children.size() - 1; i >= 0; i--) {
+            Style found = findMarker(children.get(i), here);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    private interface Part {
+        Component render(String[] values);
+    }
+
+    private static final class Static implements Part {
+        private final Component component;
+
+        private Static(Component component) {
+            this.component = component;
+        }
+
+        @Override
+        public Component render(String[] values) {
+            return component;
+        }
+    }
+
+    private static final class Slot implements Part {
+        private final int index;
+        private final SlotType type;
+        private final Style fallback;
+
+        private Slot(int index, SlotType type, Style fallback) {
+            this.index = index;
+            this.type = type;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public Component render(String[] values) {
+            String value = index < values.length && values[index] != null ? values[index] : "";
+            if (type == SlotType.TEXT) {
+                return Component.text(value, fallback);
+            }
+            return continueFrom(fallback, value);
+        }
+    }
+}
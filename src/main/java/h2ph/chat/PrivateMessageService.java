@@ -0,0 +1,257 @@
+package h2ph.chat;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import h2ph.audit.AuditLog;
+import h2ph.cache.LookupCache;
+import h2ph.config.ConfigManager;
+import h2ph.redis.PresenceDirectory;
+import h2ph.redis.RedisManager;
+import h2ph.util.ChatFormatUtil;
+import h2ph.util.PrismLog;
+import net.kyori.adventure.text.Component;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cross-proxy private messages ({@code /msg}, {@code /reply}).
+ *
+ * Targets are resolved locally first, then through the presence replica, and only then
+ * through Redis (session name index), with results kept in a small LRU cache that also
+ * remembers misses. A message is published to the target's proxy only, on
+ * {@code prism:dm:<proxyId>}, instead of being broadcast to every proxy.
+ */
+public class PrivateMessageService {
+
+    private static final String CHANNEL_PREFIX = "prism:dm:";
+
+    /**
+     * A resolved recipient.
+     */
+    public static final class Target {
+        private final UUID uuid;
+        private final String name;
+        private final String proxy;
+
+        public Target(UUID uuid, String name, String proxy) {
+            this.uuid = uuid;
+            this.name = name;
+            this.proxy = proxy;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getProxy() {
+            return proxy;
+        }
+    }
+
+    private final ProxyServer server;
+    private final RedisManager redisManager;
+    private final PresenceDirectory presence;
+    private final ChatFilter chatFilter;
+    private final ChatFormats formats;
+    // Null when audit.enabled is off
+    private final AuditLog auditLog;
+    private final String proxyId;
+    private final LookupCache<String, Target> lookups;
+    // Player -> who they last messaged or heard from, for /reply
+    private final Map<UUID, UUID> replyTargets = new ConcurrentHashMap<>();
+
+    public PrivateMessageService(ProxyServer server, RedisManager redisManager, PresenceDirectory presence,
+            ChatFilter chatFilter, ChatFormats formats, AuditLog auditLog, ConfigManager configManager) {
+        this.server = server;
+        this.redisManager = redisManager;
+        this.presence = presence;
+        this.chatFilter = chatFilter;
+        this.formats = formats;
+        this.auditLog = auditLog;
+        this.proxyId = redisManager.getProxyId();
+        this.lookups = new LookupCache<>(configManager.getInt("msg.cache-size", 1000),
+                configManager.getInt("msg.cache-ttl-seconds", 10) * 1000L,
+                configManager.getInt("msg.negative-ttl-seconds", 3) * 1000L);
+    }
+
+    public void start() {
+        redisManager.subscribeBinary(CHANNEL_PREFIX + proxyId, this::onRemoteMessage);
+    }
+
+    /**
+     * /msg: resolve {@code targetName} and deliver.
+     */
+    public void send(Player sender, String targetName, String message) {
+        resolve(targetName).whenComplete((target, error) -> {
+            if (target == null) {
+                sender.sendMessage(ChatFormatUtil.deserializeLegacy("&c" + targetName + " is not online."));
+                return;
+            }
+            deliver(sender, target, message);
+        });
+    }
+
+    /**
+     * /reply: deliver to whoever {@code sender} last messaged or heard from.
+     */
+    public void reply(Player sender, String message) {
+        UUID last = replyTargets.get(sender.getUniqueId());
+        if (last == null) {
+            sender.sendMessage(ChatFormatUtil.deserializeLegacy("&cYou have nobody to reply to."));
+            return;
+        }
+        resolve(last).whenComplete((target, error) -> {
+            if (target == null) {
+                sender.sendMessage(ChatFormatUtil.deserializeLegacy("&cThat player is no longer online."));
+                return;
+            }
+            deliver(sender, target, message);
+        });
+    }
+
+    public CompletableFuture<Target> resolve(String name) {
+        Optional<Player> local = server.getPlayer(name);
+        if (local.isPresent()) {
+            return CompletableFuture.completedFuture(new Target(local.get().getUniqueId(), local.get().getUsername(), proxyId));
+        }
+        PresenceDirectory.Presence known = presence != null ? presence.findByName(name) : null;
+        if (known != null) {
+            return CompletableFuture.completedFuture(new Target(known.getUuid(), known.getName(), known.getProxy()));
+        }
+        String lower = name.toLowerCase(Locale.ROOT);
+        LookupCache.Entry<Target> cached = lookups.get(lower);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getValue());
+        }
+        if (!redisManager.isAvailable()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Target> result = redisManager
+                .<String>submit(lower, pipeline -> pipeline.get("prism:player:uuid:" + lower))
+                .thenCompose(uuid -> uuid != null ? lookupSession(UUID.fromString(uuid)) : CompletableFuture.completedFuture(null));
+        return cacheResult(lower, result);
+    }
+
+    public CompletableFuture<Target> resolve(UUID uuid) {
+        Optional<Player> local = server.getPlayer(uuid);
+        if (local.isPresent()) {
+            return CompletableFuture.completedFuture(new Target(uuid, local.get().getUsername(), proxyId));
+        }
+        PresenceDirectory.Presence known = presence != null ? presence.find(uuid) : null;
+        if (known != null) {
+            return CompletableFuture.completedFuture(new Target(uuid, known.getName(), known.getProxy()));
+        }
+        String key = uuid.toString();
+        LookupCache.Entry<Target> cached = lookups.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getValue());
+        }
+        if (!redisManager.isAvailable()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return cacheResult(key, lookupSession(uuid));
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        replyTargets.remove(event.getPlayer().getUniqueId());
+    }
+
+    private CompletableFuture<Target> lookupSession(UUID uuid) {
+        String key = "prism:session:" + uuid;
+        return redisManager.<Map<String, String>>submit(uuid.toString(), pipeline -> pipeline.hgetAll(key))
+                .thenApply(session -> {
+                    if (session == null || session.get("proxy") == null) return null;
+                    return new Target(uuid, session.getOrDefault("name", uuid.toString()), session.get("proxy"));
+                });
+    }
+
+    private CompletableFuture<Target> cacheResult(String key, CompletableFuture<Target> lookup) {
+        return lookup.handle((target, error) -> {
+            // Errors are not cached: Redis may be back on the next try
+            if (error == null) {
+                lookups.put(key, target);
+            }
+            return error == null ? target : null;
+        });
+    }
+
+    private void deliver(Player sender, Target target, String message) {
+        if (target.getUuid().equals(sender.getUniqueId())) {
+            sender.sendMessage(ChatFormatUtil.deserializeLegacy("&cYou cannot message yourself."));
+            return;
+        }
+        if (chatFilter != null) {
+            ChatFilter.ChatDecision decision = chatFilter.check(sender, message);
+            if (!decision.isAllowed()) {
+                if (decision.getMessage() != null) {
+                    sender.sendMessage(decision.getMessage());
+                }
+                return;
+            }
+        }
+        String senderDisplay = ChatFormatUtil.getDisplayNameLegacy(sender);
+        replyTargets.put(sender.getUniqueId(), target.getUuid());
+        if (auditLog != null) {
+            auditLog.record("msg:" + target.getName(), sender.getUniqueId(), sender.getUsername(), message);
+        }
+
+        if (target.getProxy().equals(proxyId)) {
+            Optional<Player> local = server.getPlayer(target.getUuid());
+            if (!local.isPresent()) {
+                sender.sendMessage(ChatFormatUtil.deserializeLegacy("&c" + target.getName() + " is not online."));
+                return;
+            }
+            showIncoming(local.get(), sender.getUniqueId(), senderDisplay, message);
+            showOutgoing(sender, target.getName(), message);
+            return;
+        }
+
+        ChatMessage msg = ChatMessage.direct(proxyId, sender.getUniqueId(), senderDisplay, target.getUuid(), message);
+        redisManager.publish(CHANNEL_PREFIX + target.getProxy(), ChatCodec.encode(msg)).whenComplete((receivers, error) -> {
+            if (error != null) {
+                sender.sendMessage(ChatFormatUtil.deserializeLegacy("&cCould not deliver your message right now."));
+            } else if (receivers == null || receivers == 0L) {
+                // Target proxy is gone; forget the stale route
+                lookups.invalidate(target.getName().toLowerCase(Locale.ROOT));
+                lookups.invalidate(target.getUuid().toString());
+                sender.sendMessage(ChatFormatUtil.deserializeLegacy("&c" + target.getName() + " is not online."));
+            } else {
+                showOutgoing(sender, target.getName(), message);
+            }
+        });
+    }
+
+    private void onRemoteMessage(byte[] raw) {
+        try {
+            ChatMessage msg = ChatCodec.decode(raw);
+            if (msg.getKind() != ChatMessage.Kind.DIRECT || msg.getTarget() == null) return;
+            server.getPlayer(msg.getTarget()).ifPresent(player ->
+                    showIncoming(player, msg.getSenderUuid(), msg.getSender(), msg.getMessage()));
+        } catch (Exception e) {
+            PrismLog.error("Could not deliver a private message", e);
+        }
+    }
+
+    private void showIncoming(Player recipient, UUID senderUuid, String senderDisplay, String message) {
+        if (senderUuid != null) {
+            replyTargets.put(recipient.getUniqueId(), senderUuid);
+        }
+        recipient.sendMessage(formats.msgIncoming().render(senderDisplay, message));
+    }
+
+    private void showOutgoing(Player sender, String targetName, String message) {
+        sender.sendMessage(formats.msgOutgoing().render(targetName, message));
+    }
+}
@@ -0,0 +1,90 @@
+package h2ph.chat;
+
+import h2ph.cache.PlayerCache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks which teams have members online on this proxy, so team chat only needs to
+ * receive traffic for those teams.
+ *
+ * {@code onFirstMember} runs when a team gains its first local member and
+ * {@code onLastMember} once it has had none for the linger period, so players
+ * relogging or switching servers don't cause subscribe/unsubscribe churn. Both
+ * callbacks run under this tracker's lock and must not block.
+ */
+public class TeamInterest implements PlayerCache.TeamChangeListener {
+
+    private final Map<String, Set<UUID>> members = new ConcurrentHashMap<>();
+    // Teams that lost their last member, with the time they became empty
+    private final Map<String, Long> emptySince = new HashMap<>();
+    private final Consumer<String> onFirstMember;
+    private final Consumer<String> onLastMember;
+    private final long lingerMillis;
+
+    public TeamInterest(Consumer<String> onFirstMember, Consumer<String> onLastMember, long lingerMillis) {
+        this.onFirstMember = onFirstMember;
+        this.onLastMember = onLastMember;
+        this.lingerMillis = Math.max(0L, lingerMillis);
+    }
+
+    /**
+     * Local members of a team; empty if none. The returned set is live and read-only.
+     */
+    public Set<UUID> getMembers(String teamId) {
+        if (teamId == null) return Collections.emptySet();
+        Set<UUID> set = members.get(teamId);
+        return set != null ? Collections.unmodifiableSet(set) : Collections.emptySet();
+    }
+
+    public boolean isInterested(String teamId) {
+        return teamId != null && members.containsKey(teamId);
+    }
+
+    public int getTeamCount() {
+        return members.size();
+    }
+
+    @Override
+    public synchronized void onTeamChange(UUID uuid, String oldTeamId, String newTeamId) {
+        if (oldTeamId != null && !oldTeamId.isEmpty()) {
+            Set<UUID> set = members.get(oldTeamId);
+            if (set != null && set.remove(uuid) && set.isEmpty()) {
+                long now = System.currentTimeMillis();
+                emptySince.put(oldTeamId, now);
+                CompletableFuture.delayedExecutor(lingerMillis, TimeUnit.MILLISECONDS)
+                        .execute(() -> expire(oldTeamId, now));
+            }
+        }
+        if (newTeamId != null && !newTeamId.isEmpty()) {
+            Set<UUID> set = members.get(newTeamId);
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+                members.put(newTeamId, set);
+                onFirstMember.accept(newTeamId);
+            }
+            set.add(uuid);
+            emptySince.remove(newTeamId);
+        }
+    }
+
+    private synchronized void expire(String teamId, long since) {
+        Long current = emptySince.get(teamId);
+        // Someone rejoined (and maybe left again) in the meantime
+        if (current == null || current != since) return;
+        emptySince.remove(teamId);
+        Set<UUID> set = members.get(teamId);
+        if (set != null && set.isEmpty()) {
+            members.remove(teamId);
+            onLastMember.accept(teamId);
+        }
+    }
+}
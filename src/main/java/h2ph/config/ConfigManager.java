@@ -8,6 +8,8 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import h2ph.util.PrismLog;
 
 public class ConfigManager {
 
@@ -41,7 +43,7 @@ public class ConfigManager {
             readConfig(backendConfig);
 
         } catch (IOException e) {
-            e.printStackTrace();
+            PrismLog.error("Could not load config.yml", e);
         }
     }
 
@@ -53,6 +55,17 @@ public class ConfigManager {
                 "  database: minecraft\n" +
                 "  username: root\n" +
                 "  password: password\n" +
+                "  pool-size: 10\n" +
+                "\n" +
+                "# Optional read-only MySQL replica for hot reads (falls back to the primary)\n" +
+                "mysql-replica:\n" +
+                "  enabled: false\n" +
+                "  host: localhost\n" +
+                "  port: 3306\n" +
+                "  database: minecraft\n" +
+                "  username: root\n" +
+                "  password: password\n" +
+                "  pool-size: 10\n" +
                 "\n" +
                 "# Redis Configuration\n" +
                 "redis:\n" +
@@ -60,6 +73,33 @@ public class ConfigManager {
                 "  port: 6379\n" +
                 "  username: \"\"\n" +
                 "  password: \"\"\n" +
+                "  session-ttl-seconds: 120\n" +
+                "  subscriber-threads: 2\n" +
+                "  io-threads: 2\n" +
+                "  command-queue-size: 10000\n" +
+                "  max-pipeline: 256\n" +
+                "\n" +
+                "# Unique id of this proxy (random per start when empty; team-chat streams need a fixed one)\n" +
+                "proxy:\n" +
+                "  id: \"\"\n" +
+                "\n" +
+                "# Network presence directory (replicated to every proxy)\n" +
+                "presence:\n" +
+                "  heartbeat-seconds: 5\n" +
+                "  resync-seconds: 30\n" +
+                "  proxy-timeout-seconds: 20\n" +
+                "\n" +
+                "# Private messages: cache of Redis name lookups (misses cached for negative-ttl)\n" +
+                "msg:\n" +
+                "  cache-size: 1000\n" +
+                "  cache-ttl-seconds: 10\n" +
+                "  negative-ttl-seconds: 3\n" +
+                "\n" +
+                "# Ping publishing to Redis (hash prism:ping:<proxy id>)\n" +
+                "ping:\n" +
+                "  interval-seconds: 10\n" +
+                "  slices: 10\n" +
+                "  min-delta-ms: 5\n" +
                 "\n" +
                 "# Chat filter / anti-spam\n" +
                 "chat:\n" +
@@ -68,7 +108,110 @@ public class ConfigManager {
                 "  spam-max-messages: 4\n" +
                 "  repeat-min-length: 4\n" +
                 "  repeat-similarity: 0.9\n" +
-                "  assume-signed-when-unknown: true\n";
+                "  assume-signed-when-unknown: true\n" +
+                "  # binary, or json while older proxies still need the legacy format\n" +
+                "  wire-format: binary\n" +
+                "\n" +
+                "# Server-list ping limits (pings per second, 0 = off). Excess pings get a minimal\n" +
+                "# cached response without favicon or player sample\n" +
+                "server-list:\n" +
+                "  # Show the network-wide player count instead of this proxy's\n" +
+                "  show-network-count: true\n" +
+                "  count-refresh-seconds: 2\n" +
+                "  per-ip-rate: 2\n" +
+                "  per-ip-burst: 10\n" +
+                "  global-rate: 200\n" +
+                "  global-burst: 400\n" +
+                "\n" +
+                "# Recent global and team chat replayed on join, held off-heap in rings of ring-kb\n" +
+                "history:\n" +
+                "  enabled: true\n" +
+                "  depth: 20\n" +
+                "  max-age-seconds: 600\n" +
+                "  ring-kb: 16\n" +
+                "  max-memory-kb: 2048\n" +
+                "\n" +
+                "# Chat sent on this proxy, searchable with /prismlog; closed segments are gzipped\n" +
+                "audit:\n" +
+                "  enabled: true\n" +
+                "  segment-size-mb: 16\n" +
+                "  roll-minutes: 60\n" +
+                "  retention-days: 30\n" +
+                "  queue-size: 65536\n" +
+                "\n" +
+                "# Upper bound for draining Redis and MySQL queues when the proxy stops\n" +
+                "shutdown:\n" +
+                "  timeout-seconds: 10\n" +
+                "\n" +
+                "# debug prints extra diagnostics; identical errors are logged once per window\n" +
+                "logging:\n" +
+                "  debug: false\n" +
+                "  error-window-seconds: 60\n" +
+                "\n" +
+                "# Prometheus endpoint (GET /metrics); /prismstats works either way\n" +
+                "metrics:\n" +
+                "  enabled: false\n" +
+                "  bind: 127.0.0.1\n" +
+                "  port: 9464\n" +
+                "\n" +
+                "# Named groups of backend servers, for {region:<name>} in the MOTD\n" +
+                "regions:\n" +
+                "  # na: lobby-na, survival-na\n" +
+                "\n" +
+                "# Comma-separated. Blocked commands are denied and hidden, hidden ones only left out of\n" +
+                "# the command tree. Plain names match under any namespace (server = velocity:server).\n" +
+                "# Hidden ones must keep running: prismvoid is a silent no-op and velocity:callback runs\n" +
+                "# clickable chat text, so blocking them would answer clicks with an error; prismstats and\n" +
+                "# prismlog check their own permission\n" +
+                "commands:\n" +
+                "  blocked: server, geyser, velocity, lp, lpv, luckperms, luckyperms, prismmotd, btabr\n" +
+                "  hidden: prismvoid, prismstats, prismlog, velocity:callback\n" +
+                "  bypass-permission: prismchat.commands.bypass\n" +
+                "\n" +
+                "# Chat channels for /channel besides global, local and team: name: permission ('' = anyone).\n" +
+                "# Holders of the staff permission join staff automatically; the rest join with /channel\n" +
+                "channels:\n" +
+                "  staff: prismchat.channel.staff\n" +
+                "  # trade: ''\n" +
+                "\n" +
+                "# Chat formats ('&' color codes). Placeholders: {sender}, {message}, {team}, {target}, {channel}\n" +
+                "format:\n" +
+                "  global: '<{sender}> {message}'\n" +
+                "  team: '&7[{team}&7] &5{sender}&r: {message}'\n" +
+                "  channel: '&8[&b{channel}&8] &f{sender}&7: {message}'\n" +
+                "  msg-incoming: '&d[&r{sender} &d-> &fme&d] &7{message}'\n" +
+                "  msg-outgoing: '&d[&fme &d-> &f{target}&d] &7{message}'\n" +
+                "\n" +
+                "# Cross-proxy team chat: pubsub (fire-and-forget) or streams (durable, replayed after reconnect)\n" +
+                "team-chat:\n" +
+                "  transport: pubsub\n" +
+                "  # One channel per team (one stream per hash slot); false = single legacy channel.\n" +
+                "  # Only enable once every proxy in the network runs a version that supports it\n" +
+                "  sharded: false\n" +
+                "  stream-slots: 16\n" +
+                "  unsubscribe-linger-seconds: 30\n" +
+                "  stream-max-length: 10000\n" +
+                "  stream-batch-size: 100\n" +
+                "  stream-block-ms: 2000\n" +
+                "  stream-replay-max-age-seconds: 60\n" +
+                "\n" +
+                "# Local write journal used while MySQL is unreachable or slow\n" +
+                "journal:\n" +
+                "  enabled: true\n" +
+                "  segment-size-kb: 4096\n" +
+                "  batch-size: 200\n" +
+                "  fsync: false\n" +
+                "\n" +
+                "# Latency budgets and circuit breakers for MySQL and Redis\n" +
+                "resilience:\n" +
+                "  redis-timeout-ms: 500\n" +
+                "  redis-budget-ms: 100\n" +
+                "  mysql-connection-timeout-ms: 1000\n" +
+                "  mysql-read-budget-ms: 250\n" +
+                "  mysql-write-budget-ms: 2000\n" +
+                "  cache-load-threads: 4\n" +
+                "  failure-threshold: 5\n" +
+                "  open-seconds: 10\n";
 
         // Add a default MOTD entry (uses legacy section sign codes and an escaped newline)
         defaultConfig += "\n# Server MOTD (use § color codes, use \n for newline)\n" +
@@ -157,6 +300,20 @@ public class ConfigManager {
         return configValues.getOrDefault(key, defaultValue);
     }
 
+    /**
+     * @return all keys of {@code section} (without the section prefix) and their values
+     */
+    public Map<String, String> getSection(String section) {
+        String prefix = section + ".";
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, String> entry : configValues.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                values.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return values;
+    }
+
     public String getMotd(String defaultValue) {
         String raw = configValues.get("motd");
         if (raw == null) return defaultValue;
@@ -6,14 +6,221 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.config.ConfigManager;
+import h2ph.jfr.DatabaseStatementEvent;
+import h2ph.util.CircuitBreaker;
+import h2ph.util.PrismLog;
 
+/**
+ * MySQL access through a primary pool and an optional read replica.
+ *
+ * Pools are created in the background: until the primary is up, reads return their
+ * fallback (the team reads behind the player cache throw {@link ReadFailedException}
+ * instead) and writes stay in the journal. A read while disconnected starts another
+ * connection attempt (rate limited) without waiting for it. Listeners added with
+ * {@link #addConnectListener} run each time the primary comes up.
+ */
 public class DatabaseManager {
 
-    private HikariDataSource dataSource;
+    // Minimum delay between reconnect attempts when the pool could not be created.
+    private static final long RECONNECT_INTERVAL_MS = 5000L;
+    // Marks a replica read that failed or was skipped, as opposed to a null result.
+    private static final Object REPLICA_UNAVAILABLE = new Object();
+    // Marks a primary read that failed or was rejected by the circuit breaker.
+    private static final Object READ_FAILED = new Object();
 
-    public void initialize(String host, int port, String database, String username, String password) {
+    /**
+     * A read executed on whichever pool the router picks.
+     */
+    @FunctionalInterface
+    private interface SqlQuery<T> {
+        T query(Connection connection) throws SQLException;
+    }
+
+    private volatile HikariDataSource dataSource;
+    private volatile HikariDataSource replicaDataSource;
+    private String host;
+    private int port;
+    private String database;
+    private String username;
+    private String password;
+    private volatile long lastConnectAttempt;
+    // The primary connection attempt in flight, if any; every attempt goes through it
+    private final AtomicReference<CompletableFuture<Boolean>> connecting = new AtomicReference<>();
+    private final List<Runnable> connectListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService connector;
+    private volatile Boolean hasGamertagColumn;
+    private final long connectionTimeoutMs;
+    private final long readBudgetNanos;
+    private final long writeBudgetNanos;
+    private final CircuitBreaker breaker;
+    private final CircuitBreaker replicaBreaker;
+    private final int poolSize;
+    private final boolean replicaEnabled;
+    private final String replicaHost;
+    private final int replicaPort;
+    private final String replicaDatabase;
+    private final String replicaUsername;
+    private final String replicaPassword;
+    private final int replicaPoolSize;
+    private final LongAdder primaryReads = new LongAdder();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder replicaFallbacks = new LongAdder();
+
+    public DatabaseManager(ConfigManager configManager) {
+        this.poolSize = Math.max(1, configManager.getInt("mysql.pool-size", 10));
+        AtomicInteger threadIds = new AtomicInteger();
+        this.connector = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "prism-db-connect-" + threadIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.replicaEnabled = configManager.getBoolean("mysql-replica.enabled", false);
+        this.replicaHost = configManager.getString("mysql-replica.host", "localhost");
+        this.replicaPort = configManager.getInt("mysql-replica.port", 3306);
+        this.replicaDatabase = configManager.getString("mysql-replica.database", configManager.getDatabaseName("minecraft"));
+        this.replicaUsername = configManager.getString("mysql-replica.username", configManager.getDatabaseUsername("root"));
+        this.replicaPassword = configManager.getString("mysql-replica.password", configManager.getDatabasePassword("password"));
+        this.replicaPoolSize = Math.max(1, configManager.getInt("mysql-replica.pool-size", 10));
+        this.connectionTimeoutMs = Math.max(250L, configManager.getInt("resilience.mysql-connection-timeout-ms", 1000));
+        this.readBudgetNanos = configManager.getInt("resilience.mysql-read-budget-ms", 250) * 1_000_000L;
+        this.writeBudgetNanos = configManager.getInt("resilience.mysql-write-budget-ms", 2000) * 1_000_000L;
+        this.breaker = new CircuitBreaker("MySQL",
+                configManager.getInt("resilience.failure-threshold", 5),
+                configManager.getInt("resilience.open-seconds", 10) * 1000L,
+                SqlErrors::isTransient,
+                state -> {
+                    if (state == CircuitBreaker.State.OPEN) {
+                        PrismLog.warn("MySQL circuit opened: serving cached reads and journaling writes until it recovers.");
+                    } else if (state == CircuitBreaker.State.CLOSED) {
+                        PrismLog.info("MySQL circuit closed: database calls resumed.");
+                    }
+                });
+        this.replicaBreaker = new CircuitBreaker("MySQL replica",
+                configManager.getInt("resilience.failure-threshold", 5),
+                configManager.getInt("resilience.open-seconds", 10) * 1000L,
+                SqlErrors::isTransient,
+                state -> {
+                    if (state == CircuitBreaker.State.OPEN) {
+                        PrismLog.warn("MySQL replica circuit opened: routing reads to the primary.");
+                    } else if (state == CircuitBreaker.State.CLOSED) {
+                        PrismLog.info("MySQL replica circuit closed: reads routed to the replica again.");
+                    }
+                });
+    }
+
+    /**
+     * Start connecting to the primary and the replica in parallel. Returns immediately.
+     *
+     * @return completes with whether the primary came up on this first attempt
+     */
+    public CompletableFuture<Boolean> initialize(String host, int port, String database, String username, String password) {
+        this.host = host;
+        this.port = port;
+        this.database = database;
+        this.username = username;
+        this.password = password;
+        if (replicaEnabled) {
+            connector.execute(this::connectReplica);
+        }
+        return connectAsync();
+    }
+
+    /**
+     * Run {@code listener} every time the primary pool comes up, including right away
+     * if it is up already. Listeners run on a background thread.
+     */
+    public void addConnectListener(Runnable listener) {
+        boolean connected;
+        synchronized (this) {
+            connectListeners.add(listener);
+            connected = isConnected();
+        }
+        if (connected) {
+            listener.run();
+        }
+    }
+
+    // Joins the attempt in flight instead of starting a second one
+    private CompletableFuture<Boolean> connectAsync() {
+        CompletableFuture<Boolean> attempt = new CompletableFuture<>();
+        CompletableFuture<Boolean> running = connecting.compareAndExchange(null, attempt);
+        if (running != null) {
+            return running;
+        }
+        try {
+            connector.execute(() -> {
+                boolean connected = false;
+                try {
+                    connected = connect();
+                } finally {
+                    connecting.set(null);
+                    attempt.complete(connected);
+                }
+            });
+        } catch (RejectedExecutionException closed) {
+            connecting.set(null);
+            attempt.complete(false);
+        }
+        return attempt;
+    }
+
+    // Called from the read path while disconnected; never waits for the attempt
+    private void reconnectLater() {
+        if (host == null || System.currentTimeMillis() - lastConnectAttempt < RECONNECT_INTERVAL_MS) return;
+        connectAsync();
+    }
+
+    private void connectReplica() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:mysql://" + replicaHost + ":" + replicaPort + "/" + replicaDatabase);
+        config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+        config.setUsername(replicaUsername);
+        config.setPassword(replicaPassword);
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.setConnectionTimeout(connectionTimeoutMs);
+        config.setValidationTimeout(Math.max(250L, connectionTimeoutMs / 2));
+        config.setMaximumPoolSize(replicaPoolSize);
+        // Reads only: a statement still waiting after its budget is abandoned by the driver
+        setSocketTimeout(config, readBudgetNanos);
+        config.setPoolName("PrismChat-replica");
+        config.setMetricsTrackerFactory(poolMetrics("replica"));
+        config.setRegisterMbeans(true);
+        config.setReadOnly(true);
+        // Create the pool even if the replica is down right now; reads fall back to the primary.
+        config.setInitializationFailTimeout(-1);
+        try {
+            replicaDataSource = new HikariDataSource(config);
+        } catch (Exception e) {
+            PrismLog.warn("Failed to create the MySQL replica pool, reads will use the primary: {}", e.getMessage());
+        }
+    }
+
+    // Only called through connectAsync, so at most one attempt runs at a time
+    private boolean connect() {
+        if (isConnected()) return true;
+        lastConnectAttempt = System.currentTimeMillis();
         HikariConfig config = new HikariConfig();
         // TODO: Load these from a config file
         config.setJdbcUrl("jdbc:mysql://" + host + ":" + port + "/" + database);
@@ -23,16 +230,77 @@ public class DatabaseManager {
         config.addDataSourceProperty("cachePrepStmts", "true");
         config.addDataSourceProperty("prepStmtCacheSize", "250");
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        // Fail fast instead of stalling callers for Hikari's 30s default
+        config.setConnectionTimeout(connectionTimeoutMs);
+        config.setValidationTimeout(Math.max(250L, connectionTimeoutMs / 2));
+        config.setMaximumPoolSize(poolSize);
+        // Sized for batched writes; reads tighten it per connection in read()
+        setSocketTimeout(config, Math.max(readBudgetNanos, writeBudgetNanos));
+        config.setPoolName("PrismChat-primary");
+        config.setMetricsTrackerFactory(poolMetrics("primary"));
+        config.setRegisterMbeans(true);
 
+        HikariDataSource created;
         try {
-            dataSource = new HikariDataSource(config);
-            createTable();
+            created = new HikariDataSource(config);
         } catch (Exception e) {
-            System.err.println(
-                    "[PrismChat] Failed to connect to MySQL database! Please check your config.yml and ensure MySQL is running.");
-            System.err.println("[PrismChat] Error: " + e.getMessage());
-            // We don't throw here to allow the proxy to start, but DB features won't work.
+            PrismLog.warn("Failed to connect to MySQL database! Please check your config.yml and ensure MySQL is running. Error: {}",
+                    e.getMessage());
+            // Degraded until a later attempt succeeds: reads fall back, writes stay journaled.
+            return false;
+        }
+        HikariDataSource previous;
+        List<Runnable> listeners;
+        synchronized (this) {
+            previous = dataSource;
+            dataSource = created;
+            hasGamertagColumn = null;
+            // Listeners added from here on see the pool as up and run themselves
+            listeners = new ArrayList<>(connectListeners);
         }
+        if (previous != null) {
+            previous.close();
+        }
+        createTable();
+        PrismLog.info("Connected to MySQL.");
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                PrismLog.error("MySQL connect listener failed", e);
+            }
+        }
+        return true;
+    }
+
+    public boolean isConnected() {
+        HikariDataSource ds = dataSource;
+        return ds != null && !ds.isClosed();
+    }
+
+    /**
+     * False while neither the primary nor the replica can serve reads. Callers should
+     * fall back to cached data instead of issuing queries.
+     */
+    public boolean isAvailable() {
+        return (dataSource != null && breaker.isAvailable())
+                || (replicaDataSource != null && replicaBreaker.isAvailable());
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Try to create the pool again if the initial connection failed, waiting for the
+     * attempt (or the one already running). Attempts are rate limited so callers can
+     * invoke this from a retry loop.
+     */
+    public boolean tryReconnect() {
+        if (isConnected()) return true;
+        if (host == null) return false;
+        if (System.currentTimeMillis() - lastConnectAttempt < RECONNECT_INTERVAL_MS) return false;
+        return connectAsync().join();
     }
 
     /**
@@ -41,16 +309,15 @@ public class DatabaseManager {
     public boolean hasColumn(String tableName, String columnName) {
         if (dataSource == null) return false;
         String sql = "SELECT 1 FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ? LIMIT 1";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, tableName);
-            stmt.setString(2, columnName);
-            try (java.sql.ResultSet rs = stmt.executeQuery()) {
-                return rs.next();
+        return breaker.call(readBudgetNanos, () -> {
+            try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, tableName);
+                stmt.setString(2, columnName);
+                try (java.sql.ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
-        }
+        }, () -> false);
     }
 
     /**
@@ -85,118 +352,345 @@ public class DatabaseManager {
 
                     // offline_players table removed — backend handles offline storage now
         } catch (SQLException e) {
-            e.printStackTrace();
+            PrismLog.error("Could not create the player_data table", e);
         }
     }
 
     // offline player helper methods removed — backend handles offline storage
 
+    // Hot reads route to the replica by default. Pass fresh = true for read-after-write
+    // cases that must see the primary's latest state.
+
     public String getLastRegion(String uuid) {
-        if (dataSource == null) return null;
-        String sql = "SELECT last_region FROM player_data WHERE uuid = ?";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, uuid);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("last_region");
+        return getLastRegion(uuid, false);
+    }
+
+    public String getLastRegion(String uuid, boolean fresh) {
+        return read("getLastRegion", fresh, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT last_region FROM player_data WHERE uuid = ?")) {
+                stmt.setString(1, uuid);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString("last_region") : null;
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return null;
+        }, null);
     }
 
     // Team chat related queries
-    public boolean isTeamChatEnabled(String uuid) {
-        if (dataSource == null) return false;
-        String sql = "SELECT team_chat_enabled FROM player_data WHERE uuid = ?";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, uuid);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("team_chat_enabled") == 1;
+    public boolean isTeamChatEnabled(String uuid) throws ReadFailedException {
+        return isTeamChatEnabled(uuid, false);
+    }
+
+    public boolean isTeamChatEnabled(String uuid, boolean fresh) throws ReadFailedException {
+        return read("isTeamChatEnabled", fresh, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT team_chat_enabled FROM player_data WHERE uuid = ?")) {
+                stmt.setString(1, uuid);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() && rs.getInt("team_chat_enabled") == 1;
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
+        });
+    }
+
+    public String getTeamIdForPlayer(String uuid) throws ReadFailedException {
+        return getTeamIdForPlayer(uuid, false);
     }
 
-    public String getTeamIdForPlayer(String uuid) {
-        if (dataSource == null) return null;
-        String sql = "SELECT team_id FROM player_data WHERE uuid = ?";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, uuid);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("team_id");
+    public String getTeamIdForPlayer(String uuid, boolean fresh) throws ReadFailedException {
+        return read("getTeamIdForPlayer", fresh, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT team_id FROM player_data WHERE uuid = ?")) {
+                stmt.setString(1, uuid);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString("team_id") : null;
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        });
+    }
+
+    public String getTeamName(String teamId) throws ReadFailedException {
+        return getTeamName(teamId, false);
+    }
+
+    public String getTeamName(String teamId, boolean fresh) throws ReadFailedException {
+        if (teamId == null) return null;
+        return read("getTeamName", fresh, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT name FROM teams WHERE id = ?")) {
+                stmt.setString(1, teamId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString("name") : null;
+                }
+            }
+        });
+    }
+
+    public boolean isPlayerInTeam(String uuid, String teamId) {
+        if (teamId == null) return false;
+        return read("isPlayerInTeam", false, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM player_data WHERE uuid = ? AND team_id = ? LIMIT 1")) {
+                stmt.setString(1, uuid);
+                stmt.setString(2, teamId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            }
+        }, false);
+    }
+
+    public java.util.Set<String> getTeamMembers(String teamId) {
+        return getTeamMembers(teamId, false);
+    }
+
+    public java.util.Set<String> getTeamMembers(String teamId, boolean fresh) {
+        if (teamId == null) return new java.util.HashSet<>();
+        return read("getTeamMembers", fresh, connection -> {
+            java.util.Set<String> result = new java.util.HashSet<>();
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT uuid FROM player_data WHERE team_id = ?")) {
+                stmt.setString(1, teamId);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String u = rs.getString("uuid");
+                        if (u != null) result.add(u);
+                    }
+                }
+            }
+            return result;
+        }, new java.util.HashSet<>());
+    }
+
+    // Returns the fallback where read(statement, fresh, query) would throw
+    private <T> T read(String statement, boolean fresh, SqlQuery<T> query, T fallback) {
+        try {
+            return read(statement, fresh, query);
+        } catch (ReadFailedException e) {
+            return fallback;
         }
-        return null;
     }
 
-    public String getTeamName(String teamId) {
-        if (dataSource == null || teamId == null) return null;
-        String sql = "SELECT name FROM teams WHERE id = ?";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, teamId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("name");
+    /**
+     * Run a read on the replica unless {@code fresh} is set, falling back to the primary
+     * when no replica is configured or the replica call fails or is circuit-broken.
+     *
+     * @throws ReadFailedException when neither pool answered, so a missing row is not
+     *         mistaken for an outage
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T read(String statement, boolean fresh, SqlQuery<T> query) throws ReadFailedException {
+        HikariDataSource replica = replicaDataSource;
+        if (!fresh && replica != null) {
+            DatabaseStatementEvent jfrEvent = new DatabaseStatementEvent();
+            jfrEvent.begin();
+            Object result = replicaBreaker.call(readBudgetNanos, () -> {
+                try (Connection connection = replica.getConnection()) {
+                    return query.query(connection);
                 }
+            }, () -> REPLICA_UNAVAILABLE);
+            commitStatementEvent(jfrEvent, statement, "replica", 0, result != REPLICA_UNAVAILABLE);
+            if (result != REPLICA_UNAVAILABLE) {
+                replicaReads.increment();
+                return (T) result;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            replicaFallbacks.increment();
+        }
+        if (dataSource == null) {
+            reconnectLater();
+            throw new ReadFailedException(statement);
         }
-        return null;
+        primaryReads.increment();
+        DatabaseStatementEvent jfrEvent = new DatabaseStatementEvent();
+        jfrEvent.begin();
+        Object result = breaker.call(readBudgetNanos, () -> {
+            try (Connection connection = getConnection()) {
+                if (readBudgetNanos > 0) {
+                    // Hikari restores the pool's timeout when the connection is returned
+                    connection.setNetworkTimeout(Runnable::run, (int) (readBudgetNanos / 1_000_000L));
+                }
+                return query.query(connection);
+            }
+        }, () -> READ_FAILED);
+        commitStatementEvent(jfrEvent, statement, "primary", 0, result != READ_FAILED);
+        if (result == READ_FAILED) {
+            throw new ReadFailedException(statement);
+        }
+        return (T) result;
     }
 
-    public boolean isPlayerInTeam(String uuid, String teamId) {
-        if (dataSource == null || teamId == null) return false;
-        String sql = "SELECT 1 FROM player_data WHERE uuid = ? AND team_id = ? LIMIT 1";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, uuid);
-            stmt.setString(2, teamId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next();
+    // Connector/J's socketTimeout turns a budget into a hard bound: a stalled statement
+    // fails with a transient error instead of holding its caller past the budget
+    private static void setSocketTimeout(HikariConfig config, long budgetNanos) {
+        if (budgetNanos > 0) {
+            config.addDataSourceProperty("socketTimeout", String.valueOf(budgetNanos / 1_000_000L));
+        }
+    }
+
+    private static void commitStatementEvent(DatabaseStatementEvent event, String statement, String pool, int rows, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.statement = statement;
+            event.pool = pool;
+            event.rows = rows;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    /**
+     * Connection wait times and timeouts of a pool, plus gauges of its live counters.
+     */
+    private static MetricsTrackerFactory poolMetrics(String pool) {
+        String prefix = "prism_db_" + pool + "_";
+        Histogram acquireTime = Metrics.histogram(prefix + "acquire_seconds", "Time waited for a " + pool + " pool connection.");
+        Counter timeouts = Metrics.counter(prefix + "acquire_timeouts_total", "Timed out " + pool + " pool connection requests.");
+        return (poolName, stats) -> {
+            Metrics.gauge(prefix + "active_connections", "Busy " + pool + " pool connections.", stats::getActiveConnections);
+            Metrics.gauge(prefix + "pending_threads", "Threads waiting for a " + pool + " pool connection.", stats::getPendingThreads);
+            return new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    acquireTime.record(elapsedAcquiredNanos);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    timeouts.increment();
+                }
+            };
+        };
+    }
+
+    /**
+     * One line per pool with its sizing, live Hikari counters and routed read counts.
+     */
+    public List<String> getPoolStats() {
+        List<String> lines = new ArrayList<>();
+        lines.add(describePool("primary", dataSource, poolSize, primaryReads.sum(), breaker));
+        if (replicaEnabled) {
+            lines.add(describePool("replica", replicaDataSource, replicaPoolSize, replicaReads.sum(), replicaBreaker)
+                    + ", fallbacks=" + replicaFallbacks.sum());
+        }
+        return lines;
+    }
+
+    private static String describePool(String name, HikariDataSource ds, int maxSize, long reads, CircuitBreaker cb) {
+        StringBuilder sb = new StringBuilder(name).append(": ");
+        HikariPoolMXBean pool = ds != null && !ds.isClosed() ? ds.getHikariPoolMXBean() : null;
+        if (pool == null) {
+            sb.append("not connected");
+        } else {
+            sb.append("active=").append(pool.getActiveConnections())
+                    .append(", idle=").append(pool.getIdleConnections())
+                    .append(", waiting=").append(pool.getThreadsAwaitingConnection())
+                    .append(", total=").append(pool.getTotalConnections());
+        }
+        return sb.append(", max=").append(maxSize)
+                .append(", reads=").append(reads)
+                .append(", circuit=").append(cb.getState())
+                .toString();
+    }
+
+    /**
+     * Apply journaled player writes in order using JDBC batches. Consecutive writes of
+     * the same type share a batch; the whole list is committed as one transaction.
+     */
+    public void applyPlayerWrites(List<PlayerWrite> writes) throws SQLException {
+        if (writes.isEmpty()) return;
+        if (!breaker.allowRequest()) {
+            throw new SQLTransientConnectionException("MySQL circuit is open.");
+        }
+        DatabaseStatementEvent jfrEvent = new DatabaseStatementEvent();
+        jfrEvent.begin();
+        long start = System.nanoTime();
+        try {
+            applyPlayerWritesBatched(writes);
+            breaker.recordSuccess(System.nanoTime() - start, writeBudgetNanos);
+            commitStatementEvent(jfrEvent, "applyPlayerWrites", "primary", writes.size(), true);
+        } catch (SQLException | RuntimeException e) {
+            if (breaker.countsAsFailure(e)) {
+                breaker.recordFailure();
+            } else {
+                // MySQL answered; a bad statement or record says nothing about its health
+                breaker.recordIgnored();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            commitStatementEvent(jfrEvent, "applyPlayerWrites", "primary", writes.size(), false);
+            throw e;
         }
-        return false;
     }
 
-    public java.util.Set<String> getTeamMembers(String teamId) {
-        java.util.Set<String> result = new java.util.HashSet<>();
-        if (dataSource == null || teamId == null) return result;
-        String sql = "SELECT uuid FROM player_data WHERE team_id = ?";
-        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, teamId);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    String u = rs.getString("uuid");
-                    if (u != null) result.add(u);
+    private void applyPlayerWritesBatched(List<PlayerWrite> writes) throws SQLException {
+        try (Connection connection = getConnection()) {
+            boolean hasGamertag = hasGamertagColumn(connection);
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement connect = connection.prepareStatement(hasGamertag
+                            ? "INSERT INTO player_data (uuid, gamertag, last_region, last_location) VALUES (?, ?, ?, ?) " +
+                                    "ON DUPLICATE KEY UPDATE gamertag = VALUES(gamertag), last_region = VALUES(last_region), last_location = VALUES(last_location)"
+                            : "INSERT INTO player_data (uuid, last_region, last_location) VALUES (?, ?, ?) " +
+                                    "ON DUPLICATE KEY UPDATE last_region = VALUES(last_region), last_location = VALUES(last_location)");
+                    PreparedStatement disconnect = connection.prepareStatement(hasGamertag
+                            ? "INSERT INTO player_data (uuid, gamertag, last_region, last_location) VALUES (?, ?, ?, ?) " +
+                                    "ON DUPLICATE KEY UPDATE last_region = VALUES(last_region), last_location = VALUES(last_location)"
+                            : "INSERT INTO player_data (uuid, last_region, last_location) VALUES (?, ?, ?) " +
+                                    "ON DUPLICATE KEY UPDATE last_region = VALUES(last_region), last_location = VALUES(last_location)")) {
+                PreparedStatement pending = null;
+                for (PlayerWrite write : writes) {
+                    PreparedStatement stmt = write.getType() == PlayerWrite.Type.CONNECT ? connect : disconnect;
+                    if (pending != null && pending != stmt) {
+                        // Flush the other statement first so writes hit MySQL in journal order.
+                        pending.executeBatch();
+                    }
+                    int i = 1;
+                    stmt.setString(i++, write.getUuid());
+                    if (hasGamertag) {
+                        stmt.setString(i++, write.getGamertag());
+                    }
+                    stmt.setString(i++, write.getLastRegion());
+                    stmt.setString(i, write.getLastLocation());
+                    stmt.addBatch();
+                    pending = stmt;
+                }
+                if (pending != null) {
+                    pending.executeBatch();
                 }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return result;
+    }
+
+    // Cached per pool: the schema does not change underneath a running proxy.
+    private boolean hasGamertagColumn(Connection connection) throws SQLException {
+        Boolean cached = hasGamertagColumn;
+        if (cached == null) {
+            String sql = "SELECT 1 FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'player_data' AND COLUMN_NAME = 'gamertag' LIMIT 1";
+            try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+                cached = rs.next();
+            }
+            hasGamertagColumn = cached;
+        }
+        return cached;
     }
 
     public Connection getConnection() throws SQLException {
-        if (dataSource == null) {
-            throw new SQLException("Database is not connected.");
+        HikariDataSource ds = dataSource;
+        if (ds == null) {
+            throw new SQLTransientConnectionException("Database is not connected.");
+        }
+        try {
+            return ds.getConnection();
+        } catch (SQLException e) {
+            // Not getting a connection at all is an outage, whatever the driver calls it
+            throw SqlErrors.isTransient(e) ? e : new SQLTransientConnectionException(e.getMessage(), e.getSQLState(), e);
         }
-        return dataSource.getConnection();
     }
 
     public void close() {
+        connector.shutdownNow();
+        if (replicaDataSource != null) {
+            replicaDataSource.close();
+        }
         if (dataSource != null) {
             dataSource.close();
         }
@@ -0,0 +1,269 @@
+package h2ph.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import h2ph.util.PrismLog;
+
+/**
+ * Write-behind queue for player_data updates. Writes are appended to the local
+ * {@link WriteJournal} on the calling thread and replayed to MySQL in order, in
+ * batches, by a single background thread. While MySQL is unreachable the journal
+ * keeps growing and the writer retries with backoff until connectivity returns.
+ *
+ * A batch that fails for a reason retrying cannot fix (a value too long for its column,
+ * a constraint violation) is split in halves until the bad write is isolated. That write
+ * goes to the dead-letter file and the journal moves past it.
+ */
+public class PersistenceWriter {
+
+    private static final long IDLE_WAIT_MS = 1000L;
+    private static final long MAX_BACKOFF_MS = 30000L;
+    private static final long DRAIN_POLL_MS = 10L;
+    // Only used when the journal is disabled or unwritable.
+    private static final int MAX_MEMORY_QUEUE = 10000;
+
+    private final DatabaseManager databaseManager;
+    private final WriteJournal journal;
+    private final int batchSize;
+    // Null to only log writes MySQL rejected
+    private final Path deadLetterFile;
+    private final Deque<PlayerWrite> memoryQueue = new ArrayDeque<>();
+    private final Object signal = new Object();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean workPending;
+
+    /**
+     * @param journal        opened journal, or null to buffer writes in memory only
+     * @param deadLetterFile where writes MySQL rejects are appended, or null
+     */
+    public PersistenceWriter(DatabaseManager databaseManager, WriteJournal journal, int batchSize, Path deadLetterFile) {
+        this.databaseManager = databaseManager;
+        this.journal = journal;
+        this.batchSize = Math.max(1, batchSize);
+        this.deadLetterFile = deadLetterFile;
+        this.thread = new Thread(this::run, "prism-persistence-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a write. Never touches MySQL on the calling thread.
+     */
+    public void submit(PlayerWrite write) {
+        boolean journaled = false;
+        if (journal != null) {
+            try {
+                journal.append(write.encode());
+                journaled = true;
+            } catch (IOException e) {
+                PrismLog.warn("Could not append to write journal, buffering in memory: {}", e.getMessage());
+            }
+        }
+        if (!journaled) {
+            synchronized (memoryQueue) {
+                if (memoryQueue.size() >= MAX_MEMORY_QUEUE) {
+                    memoryQueue.pollFirst();
+                }
+                memoryQueue.addLast(write);
+            }
+        }
+        synchronized (signal) {
+            workPending = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Give the writer up to {@code timeoutMillis} to replay everything pending, then stop
+     * it. Gives up early while MySQL is unavailable; whatever is left stays in the journal
+     * and is replayed on the next start.
+     *
+     * @return true if nothing was left pending
+     */
+    public boolean close(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (signal) {
+            workPending = true;
+            signal.notifyAll();
+        }
+        try {
+            while (hasPending() && databaseManager.isConnected() && databaseManager.getCircuitBreaker().isAvailable()
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(DRAIN_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean drained = !hasPending();
+        close();
+        return drained;
+    }
+
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(2000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                PrismLog.error("Could not close the write journal", e);
+            }
+        }
+    }
+
+    private void run() {
+        int failures = 0;
+        while (running) {
+            boolean more;
+            try {
+                more = flushOnce();
+                if (failures > 0) {
+                    PrismLog.info("MySQL reachable again, replaying journaled writes.");
+                    failures = 0;
+                }
+            } catch (Exception e) {
+                if (failures == 0) {
+                    PrismLog.warn("Could not write to MySQL, journaling writes until it is back: {}", e.getMessage());
+                }
+                failures++;
+                more = false;
+            }
+            if (more) {
+                continue;
+            }
+            try {
+                if (failures > 0) {
+                    Thread.sleep(Math.min(MAX_BACKOFF_MS, 500L << Math.min(failures, 6)));
+                } else {
+                    synchronized (signal) {
+                        if (!workPending) {
+                            signal.wait(IDLE_WAIT_MS);
+                        }
+                        workPending = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replay one batch. Returns true if a batch was written and more may be pending.
+     */
+    private boolean flushOnce() throws Exception {
+        if (!hasPending()) {
+            return false;
+        }
+        if (!databaseManager.isConnected() && !databaseManager.tryReconnect()) {
+            throw new java.sql.SQLException("Database is not connected.");
+        }
+
+        if (journal != null) {
+            List<WriteJournal.Entry> entries = journal.read(batchSize);
+            if (!entries.isEmpty()) {
+                List<PlayerWrite> writes = new ArrayList<>(entries.size());
+                for (WriteJournal.Entry entry : entries) {
+                    if (!entry.isValid()) {
+                        PrismLog.warn("Skipping corrupt write journal record.");
+                        continue;
+                    }
+                    try {
+                        writes.add(PlayerWrite.decode(entry.getPayload()));
+                    } catch (IOException e) {
+                        PrismLog.warn("Skipping unreadable write journal record: {}", e.getMessage());
+                    }
+                }
+                apply(writes);
+                journal.commit(entries.get(entries.size() - 1));
+                return true;
+            }
+        }
+
+        List<PlayerWrite> writes = new ArrayList<>();
+        synchronized (memoryQueue) {
+            while (writes.size() < batchSize && !memoryQueue.isEmpty()) {
+                writes.add(memoryQueue.pollFirst());
+            }
+        }
+        if (writes.isEmpty()) {
+            return false;
+        }
+        try {
+            apply(writes);
+        } catch (Exception e) {
+            synchronized (memoryQueue) {
+                for (int i = writes.size() - 1; i >= 0; i--) {
+                    memoryQueue.addFirst(writes.get(i));
+                }
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Apply {@code writes} in order. Non-transient failures are narrowed down by halving
+     * the batch; transient ones propagate so the whole batch is retried later.
+     */
+    private void apply(List<PlayerWrite> writes) throws SQLException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        try {
+            databaseManager.applyPlayerWrites(writes);
+        } catch (SQLException | RuntimeException e) {
+            if (SqlErrors.isTransient(e)) {
+                throw e;
+            }
+            if (writes.size() == 1) {
+                deadLetter(writes.get(0), e);
+                return;
+            }
+            int half = writes.size() / 2;
+            apply(writes.subList(0, half));
+            apply(writes.subList(half, writes.size()));
+        }
+    }
+
+    private void deadLetter(PlayerWrite write, Exception error) {
+        String line = Instant.now() + "\t" + write.getType() + "\t" + write.getUuid() + "\t" + write.getGamertag()
+                + "\t" + write.getLastRegion() + "\t" + write.getLastLocation() + "\t" + error + "\n";
+        PrismLog.warn("MySQL rejected a player_data write for {}, skipping it: {}", write.getUuid(), error.toString());
+        if (deadLetterFile == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(deadLetterFile.getParent());
+            Files.write(deadLetterFile, line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            PrismLog.error("Could not append to " + deadLetterFile, e);
+        }
+    }
+
+    private boolean hasPending() {
+        if (journal != null && !journal.isEmpty()) {
+            return true;
+        }
+        synchronized (memoryQueue) {
+            return !memoryQueue.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package h2ph.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A pending player_data upsert. Serialized into the {@link WriteJournal} so it survives
+ * MySQL outages and proxy restarts.
+ */
+public final class PlayerWrite {
+
+    private static final int FORMAT_VERSION = 1;
+
+    public enum Type {
+        /** Player joined: refresh gamertag and clear the stored region. */
+        CONNECT,
+        /** Player left: remember the region they were in. */
+        DISCONNECT
+    }
+
+    private final Type type;
+    private final String uuid;
+    private final String gamertag;
+    private final String lastRegion;
+    private final String lastLocation;
+    private final long createdAt;
+
+    public PlayerWrite(Type type, String uuid, String gamertag, String lastRegion, String lastLocation, long createdAt) {
+        this.type = type;
+        this.uuid = uuid;
+        this.gamertag = gamertag != null ? gamertag : "";
+        this.lastRegion = lastRegion != null ? lastRegion : "";
+        this.lastLocation = lastLocation != null ? lastLocation : "";
+        this.createdAt = createdAt;
+    }
+
+    public static PlayerWrite connect(String uuid, String gamertag) {
+        return new PlayerWrite(Type.CONNECT, uuid, gamertag, "", "", System.currentTimeMillis());
+    }
+
+    public static PlayerWrite disconnect(String uuid, String gamertag, String lastRegion) {
+        return new PlayerWrite(Type.DISCONNECT, uuid, gamertag, lastRegion, "", System.currentTimeMillis());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getGamertag() {
+        return gamertag;
+    }
+
+    public String getLastRegion() {
+        return lastRegion;
+    }
+
+    public String getLastLocation() {
+        return lastLocation;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(type.ordinal());
+            out.writeLong(createdAt);
+            out.writeUTF(uuid);
+            out.writeUTF(gamertag);
+            out.writeUTF(lastRegion);
+            out.writeUTF(lastLocation);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static PlayerWrite decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported journal record version " + version);
+        }
+        int typeIndex = in.readUnsignedByte();
+        if (typeIndex >= Type.values().length) {
+            throw new IOException("Unknown journal record type " + typeIndex);
+        }
+        long createdAt = in.readLong();
+        return new PlayerWrite(Type.values()[typeIndex], in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), createdAt);
+    }
+}
@@ -0,0 +1,14 @@
+package h2ph.db;
+
+import java.sql.SQLException;
+
+/**
+ * A read that failed or was rejected by the circuit breaker, as opposed to one that
+ * found no row. Callers that cache results keep what they have instead of caching a default.
+ */
+public class ReadFailedException extends SQLException {
+
+    public ReadFailedException(String statement) {
+        super("MySQL read failed or skipped: " + statement);
+    }
+}
@@ -1,5 +1,6 @@
 package h2ph.db;
 
+import h2ph.util.PrismLog;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
@@ -23,10 +24,9 @@ public class RedisManager {
         }
 
         try (Jedis jedis = jedisPool.getResource()) {
-            System.out.println("[PrismChat] Successfully connected to Redis!");
+            PrismLog.info("Successfully connected to Redis!");
         } catch (Exception e) {
-            System.err.println("[PrismChat] Failed to connect to Redis!");
-            e.printStackTrace();
+            PrismLog.error("Failed to connect to Redis!", e);
         }
     }
 
@@ -0,0 +1,37 @@
+package h2ph.db;
+
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+
+/**
+ * Tells MySQL outages apart from errors in the statement or the data.
+ */
+public final class SqlErrors {
+
+    private SqlErrors() {
+    }
+
+    /**
+     * @return true for connection loss, timeouts, deadlocks and the like, which may
+     *         succeed when retried; false for syntax errors, missing columns,
+     *         constraint violations and other errors that will fail the same way again
+     */
+    public static boolean isTransient(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                    || e instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (e instanceof SQLException) {
+                String state = ((SQLException) e).getSQLState();
+                // 08: connection exception, 40: transaction rollback (deadlock), HY: driver timeouts
+                if (state != null && (state.startsWith("08") || state.startsWith("40") || state.equals("HYT00"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
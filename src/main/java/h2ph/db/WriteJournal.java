@@ -0,0 +1,336 @@
+package h2ph.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import h2ph.util.MappedBuffers;
+import h2ph.util.PrismLog;
+
+/**
+ * Append-only local journal backed by memory-mapped segment files.
+ *
+ * Each record is laid out as {@code [int length][int crc32][payload]}. The length is
+ * written last so a torn append is never visible to readers; a zero length marks the
+ * end of a segment. A small checkpoint file stores the position of the last record
+ * that was replayed, and fully replayed segments are deleted.
+ */
+public class WriteJournal implements AutoCloseable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long committedSegment;
+    private int committedOffset;
+    private boolean closed;
+
+    public WriteJournal(Path directory, int segmentSize, boolean fsync) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Open existing segments, recover their write positions and restore the replay
+     * cursor from the checkpoint.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        long[] checkpoint = readCheckpoint();
+
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    found.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        found.sort(null);
+
+        boolean lastDamaged = false;
+        for (long seq : found) {
+            Path path = segmentPath(seq);
+            if (seq < checkpoint[0]) {
+                // Fully replayed before the last shutdown
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Segment segment = mapSegment(seq, path, false);
+            lastDamaged = recover(segment);
+            segments.put(seq, segment);
+        }
+
+        if (segments.isEmpty() || lastDamaged) {
+            // Never append behind a damaged record; start a fresh segment instead.
+            long next = segments.isEmpty() ? Math.max(1L, checkpoint[0]) : segments.lastKey() + 1;
+            roll(next);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+
+        if (segments.containsKey(checkpoint[0])) {
+            committedSegment = checkpoint[0];
+            committedOffset = (int) Math.min(checkpoint[1], segments.get(checkpoint[0]).limit);
+        } else {
+            committedSegment = segments.firstKey();
+            committedOffset = 0;
+        }
+    }
+
+    /**
+     * Append one record. Returns once the record is in the mapped segment, which
+     * survives a process crash; call with {@code fsync} enabled to also survive
+     * an OS crash.
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        if (closed || active == null) {
+            throw new IOException("Write journal is not open.");
+        }
+        int recordSize = HEADER_BYTES + payload.length;
+        if (recordSize > segmentSize) {
+            throw new IOException("Journal record of " + payload.length + " bytes exceeds the segment size.");
+        }
+        if (active.limit + recordSize > active.buffer.capacity()) {
+            roll(active.seq + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        MappedByteBuffer buffer = active.buffer;
+        int pos = active.limit;
+        buffer.putInt(pos + 4, (int) crc.getValue());
+        buffer.put(pos + HEADER_BYTES, payload);
+        buffer.putInt(pos, payload.length);
+        if (fsync) {
+            buffer.force(pos, recordSize);
+        }
+        active.limit = pos + recordSize;
+    }
+
+    /**
+     * Read up to {@code max} records after the last committed position without
+     * consuming them. Call {@link #commit(Entry)} once they have been applied.
+     */
+    public synchronized List<Entry> read(int max) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, 64));
+        long seq = committedSegment;
+        int offset = committedOffset;
+        while (entries.size() < max) {
+            Segment segment = segments.get(seq);
+            if (segment == null) {
+                break;
+            }
+            if (offset + HEADER_BYTES > segment.limit) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(seq);
+                if (next == null) {
+                    break;
+                }
+                seq = next.getKey();
+                offset = 0;
+                continue;
+            }
+            ByteBuffer buffer = segment.buffer;
+            int length = buffer.getInt(offset);
+            int checksum = buffer.getInt(offset + 4);
+            byte[] payload = new byte[length];
+            buffer.get(offset + HEADER_BYTES, payload);
+            offset += HEADER_BYTES + length;
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            entries.add(new Entry(payload, (int) crc.getValue() == checksum, seq, offset));
+        }
+        return entries;
+    }
+
+    /**
+     * Mark everything up to and including {@code entry} as replayed and delete
+     * segments that no longer hold pending records.
+     */
+    public synchronized void commit(Entry entry) throws IOException {
+        committedSegment = entry.segment;
+        committedOffset = entry.nextOffset;
+        writeCheckpoint();
+
+        Iterator<Map.Entry<Long, Segment>> it = segments.entrySet().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next().getValue();
+            if (segment.seq >= committedSegment || segment == active) {
+                break;
+            }
+            it.remove();
+            // Entries copy their payloads out, so nothing reads the mapping after this
+            MappedBuffers.unmap(segment.buffer);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Segment segment : segments.tailMap(committedSegment, true).values()) {
+            int start = segment.seq == committedSegment ? committedOffset : 0;
+            if (start + HEADER_BYTES <= segment.limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+            MappedBuffers.unmap(segment.buffer);
+            segment.channel.close();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    private void roll(long seq) throws IOException {
+        if (active != null && fsync) {
+            active.buffer.force();
+        }
+        Segment segment = mapSegment(seq, segmentPath(seq), true);
+        segments.put(seq, segment);
+        active = segment;
+    }
+
+    private Segment mapSegment(long seq, Path path, boolean create) throws IOException {
+        FileChannel channel = create
+                ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = create ? segmentSize : Math.max(channel.size(), HEADER_BYTES);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(seq, path, channel, buffer);
+    }
+
+    /**
+     * Scan a segment to find its write position. Returns true if the scan stopped at
+     * a torn or corrupt record rather than a clean end marker.
+     */
+    private static boolean recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int capacity = buffer.capacity();
+        int pos = 0;
+        boolean damaged = false;
+        while (pos + HEADER_BYTES <= capacity) {
+            int length = buffer.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || pos + HEADER_BYTES + length > capacity) {
+                damaged = true;
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(pos + HEADER_BYTES, payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                damaged = true;
+                break;
+            }
+            pos += HEADER_BYTES + length;
+        }
+        if (damaged) {
+            PrismLog.warn("Write journal segment {} is damaged at offset {}; records after it are ignored.",
+                    segment.path.getFileName(), pos);
+        }
+        segment.limit = pos;
+        return damaged;
+    }
+
+    private long[] readCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        try {
+            if (Files.exists(file)) {
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+                if (data.remaining() >= 12) {
+                    return new long[] { data.getLong(), data.getInt() };
+                }
+            }
+        } catch (IOException e) {
+            PrismLog.warn("Could not read write journal checkpoint: {}", e.getMessage());
+        }
+        return new long[] { 0L, 0L };
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(12);
+        data.putLong(committedSegment);
+        data.putInt(committedOffset);
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp, data.array());
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segmentPath(long seq) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private static final class Segment {
+        private final long seq;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private volatile int limit;
+
+        private Segment(long seq, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A record read from the journal together with the position just after it.
+     */
+    public static final class Entry {
+        private final byte[] payload;
+        private final boolean valid;
+        private final long segment;
+        private final int nextOffset;
+
+        private Entry(byte[] payload, boolean valid, long segment, int nextOffset) {
+            this.payload = payload;
+            this.valid = valid;
+            this.segment = segment;
+            this.nextOffset = nextOffset;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /** False if the stored checksum does not match the payload. */
+        public boolean isValid() {
+            return valid;
+        }
+    }
+}
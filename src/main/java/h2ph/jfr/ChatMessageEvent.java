@@ -0,0 +1,47 @@
+package h2ph.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("h2ph.ChatMessage")
+@Label("Chat Message")
+@Category({"PrismChat", "Chat"})
+@Description("Processing of one chat message: filtering, formatting and local delivery.")
+@StackTrace(false)
+@Threshold("1 ms")
+public class ChatMessageEvent extends Event {
+
+    @Label("Channel")
+    @Description("global, team or team-remote")
+    public String channel;
+
+    @Label("Filter Decision")
+    @Description("allowed, denied or skipped (remote messages are filtered at their origin)")
+    public String decision;
+
+    @Label("Recipients")
+    @Description("Local players the message was delivered to")
+    public int recipients;
+
+    @Label("Message Length")
+    public int length;
+
+    /**
+     * End the event and commit it if recording is enabled and it is over the threshold.
+     */
+    public void finish(String channel, String decision, int recipients, int length) {
+        end();
+        if (shouldCommit()) {
+            this.channel = channel;
+            this.decision = decision;
+            this.recipients = recipients;
+            this.length = length;
+            commit();
+        }
+    }
+}
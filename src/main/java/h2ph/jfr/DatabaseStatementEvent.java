@@ -0,0 +1,33 @@
+package h2ph.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("h2ph.DatabaseStatement")
+@Label("Database Statement")
+@Category({"PrismChat", "Database"})
+@Description("A MySQL read or write batch, including the wait for a pooled connection.")
+@StackTrace(false)
+@Threshold("5 ms")
+public class DatabaseStatementEvent extends Event {
+
+    @Label("Statement")
+    @Description("Logical statement name")
+    public String statement;
+
+    @Label("Pool")
+    @Description("primary or replica")
+    public String pool;
+
+    @Label("Rows")
+    @Description("Batched writes; 0 for reads")
+    public int rows;
+
+    @Label("Success")
+    public boolean success;
+}
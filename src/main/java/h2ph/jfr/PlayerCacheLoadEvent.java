@@ -0,0 +1,28 @@
+package h2ph.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("h2ph.PlayerCacheLoad")
+@Label("Player Cache Load")
+@Category({"PrismChat", "Cache"})
+@Description("Loading one player's chat data from MySQL into the PlayerCache.")
+@StackTrace(false)
+@Threshold("5 ms")
+public class PlayerCacheLoadEvent extends Event {
+
+    @Label("Player")
+    public String uuid;
+
+    @Label("Fresh")
+    @Description("Read from the primary instead of the replica")
+    public boolean fresh;
+
+    @Label("Success")
+    public boolean success;
+}
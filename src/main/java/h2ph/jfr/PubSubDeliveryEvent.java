@@ -0,0 +1,30 @@
+package h2ph.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+@Name("h2ph.PubSubDelivery")
+@Label("Pub/Sub Delivery")
+@Category({"PrismChat", "Redis"})
+@Description("Handling one Redis pub/sub message; the event spans handler execution only.")
+@StackTrace(false)
+@Threshold("1 ms")
+public class PubSubDeliveryEvent extends Event {
+
+    @Label("Channel")
+    public String channel;
+
+    @Label("Payload Bytes")
+    public int bytes;
+
+    @Label("Queue Lag")
+    @Description("Time between receiving the message and starting its handler")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lagNanos;
+}
@@ -0,0 +1,24 @@
+package h2ph.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("h2ph.RedisPipeline")
+@Label("Redis Pipeline")
+@Category({"PrismChat", "Redis"})
+@Description("One pipelined round-trip of queued Redis commands.")
+@StackTrace(false)
+@Threshold("2 ms")
+public class RedisPipelineEvent extends Event {
+
+    @Label("Commands")
+    public int commands;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,156 @@
+package h2ph.listeners;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.player.PlayerChatEvent;
+import com.velocitypowered.api.proxy.Player;
+import h2ph.audit.AuditLog;
+import h2ph.cache.PlayerCache;
+import h2ph.cache.ProxyPlayerData;
+import h2ph.chat.ChannelRegistry;
+import h2ph.chat.ChatCodec;
+import h2ph.chat.ChatFilter;
+import h2ph.chat.ChatFormats;
+import h2ph.chat.ChatMessage;
+import h2ph.jfr.ChatMessageEvent;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.redis.RedisManager;
+import h2ph.util.ChatEventSignUtil;
+import h2ph.util.ChatFormatUtil;
+import h2ph.util.PrismLog;
+import net.kyori.adventure.text.Component;
+
+/**
+ * Chat of players focused on a staff or custom channel. Local members get it straight
+ * from the {@link ChannelRegistry} bitset; other proxies through
+ * {@code prism:channel:<name>}, which every proxy subscribes to for each configured
+ * channel. Global and local focus are left to the global chat handler, team chat to
+ * {@link TeamChatListener}.
+ *
+ * Signed chat cannot be cancelled and would reach the backend server as well, so
+ * clients that sign chat cannot focus these channels and use {@link #send} through
+ * {@code /channel <name> <message>} instead.
+ */
+public class ChannelChatListener {
+
+    private static final String CHANNEL_PREFIX = "prism:channel:";
+
+    private static final Histogram FANOUT_TIME = Metrics.histogram("prism_chat_fanout_seconds", "Time spent delivering a chat message to local recipients.");
+    private static final Counter MESSAGES = Metrics.counter("prism_chat_messages_total", "Chat messages delivered to local players.");
+    private static final Counter RECIPIENTS = Metrics.counter("prism_chat_recipients_total", "Local recipients of chat messages.");
+
+    private final RedisManager redisManager;
+    private final PlayerCache playerCache;
+    private final ChannelRegistry channels;
+    private final ChatFilter chatFilter;
+    private final ChatFormats formats;
+    // Null when audit.enabled is off
+    private final AuditLog auditLog;
+    private final String instanceId;
+    private final boolean assumeSignedWhenUnknown;
+
+    public ChannelChatListener(RedisManager redisManager, PlayerCache playerCache, ChannelRegistry channels,
+            ChatFilter chatFilter, ChatFormats formats, AuditLog auditLog, String instanceId, boolean assumeSignedWhenUnknown) {
+        this.redisManager = redisManager;
+        this.playerCache = playerCache;
+        this.channels = channels;
+        this.chatFilter = chatFilter;
+        this.formats = formats;
+        this.auditLog = auditLog;
+        this.instanceId = instanceId != null ? instanceId : "";
+        this.assumeSignedWhenUnknown = assumeSignedWhenUnknown;
+    }
+
+    public void start() {
+        for (ChannelRegistry.Channel channel : channels.getConfigured()) {
+            redisManager.subscribeBinary(CHANNEL_PREFIX + channel.getName(), this::deliverRemote);
+        }
+    }
+
+    @Subscribe
+    public void onChat(PlayerChatEvent event) {
+        Player player = event.getPlayer();
+        ProxyPlayerData cached = playerCache != null ? playerCache.get(player.getUniqueId()) : null;
+        if (cached != null && cached.teamChatEnabled) {
+            return;
+        }
+        ChannelRegistry.Channel channel = channels.getFocus(player);
+        if (!channel.isCrossProxy()) {
+            return;
+        }
+        if (ChatEventSignUtil.isSigned(event, assumeSignedWhenUnknown)) {
+            // Already on its way to the backend; relaying it would only spread it further
+            channels.focus(player, channels.global());
+            player.sendMessage(ChatFormatUtil.deserializeLegacy("&cYour client signs chat, so it cannot be kept out of "
+                    + "your server; your chat goes to global again. Use /channel " + channel.getName() + " <message>."));
+            return;
+        }
+        event.setResult(PlayerChatEvent.ChatResult.message(""));
+        send(player, channel, event.getMessage());
+    }
+
+    /**
+     * Send {@code message} from {@code player} to {@code channel}, which must be a staff
+     * or custom channel. Runs the chat filter and the permission check.
+     */
+    public void send(Player player, ChannelRegistry.Channel channel, String message) {
+        ChatMessageEvent jfrEvent = new ChatMessageEvent();
+        jfrEvent.begin();
+        if (channel.getPermission() != null && !player.hasPermission(channel.getPermission())) {
+            channels.leave(player, channel);
+            player.sendMessage(ChatFormatUtil.deserializeLegacy("&cYou can no longer talk in " + channel.getName()
+                    + "; your chat goes to global again."));
+            jfrEvent.finish("channel", "denied", 0, message.length());
+            return;
+        }
+        if (chatFilter != null) {
+            ChatFilter.ChatDecision decision = chatFilter.check(player, message);
+            if (!decision.isAllowed()) {
+                if (decision.getMessage() != null) {
+                    player.sendMessage(decision.getMessage());
+                    player.sendActionBar(decision.getMessage());
+                }
+                jfrEvent.finish("channel", "denied", 0, message.length());
+                return;
+            }
+        }
+
+        String senderDisplay = ChatFormatUtil.getDisplayNameLegacy(player);
+        if (redisManager.isAvailable()) {
+            // Always binary: proxies too old for channel messages do not subscribe to them
+            ChatMessage msg = ChatMessage.channel(instanceId, player.getUniqueId(), senderDisplay, channel.getName(), message);
+            redisManager.publish(CHANNEL_PREFIX + channel.getName(), ChatCodec.encode(msg));
+        }
+        int recipients = deliver(channel, senderDisplay, message);
+        if (auditLog != null) {
+            auditLog.record(channel.getName(), player.getUniqueId(), player.getUsername(), message);
+        }
+        jfrEvent.finish("channel", "allowed", recipients, message.length());
+    }
+
+    private int deliver(ChannelRegistry.Channel channel, String senderDisplay, String message) {
+        long start = System.nanoTime();
+        Component formattedMessage = formats.channel().render(channel.getName(), senderDisplay, message);
+        int recipients = channels.forEachMember(channel, null, member -> member.sendMessage(formattedMessage));
+        FANOUT_TIME.recordSince(start);
+        MESSAGES.increment();
+        RECIPIENTS.add(recipients);
+        return recipients;
+    }
+
+    private void deliverRemote(byte[] raw) {
+        try {
+            ChatMessage msg = ChatCodec.decode(raw);
+            if (msg.getKind() != ChatMessage.Kind.CHANNEL || msg.getOrigin().equals(instanceId)) return;
+            ChannelRegistry.Channel channel = channels.get(msg.getChannel());
+            if (channel == null) return;
+            ChatMessageEvent jfrEvent = new ChatMessageEvent();
+            jfrEvent.begin();
+            int recipients = deliver(channel, msg.getSender(), msg.getMessage());
+            jfrEvent.finish("channel-remote", "skipped", recipients, msg.getMessage().length());
+        } catch (Exception e) {
+            PrismLog.error("Could not deliver remote channel chat", e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package h2ph.listeners;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import h2ph.cache.PlayerCache;
+import h2ph.cache.ProxyPlayerData;
+import h2ph.chat.ChatFormats;
+import h2ph.chat.ChatHistory;
+import h2ph.config.ConfigManager;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replays recent global and team chat from {@link ChatHistory} when a player joins this
+ * proxy. Team lines wait for the player's cache entry, which is loaded on connect
+ * anyway, so replay never reads the database.
+ */
+public class ChatHistoryListener implements PlayerCache.TeamChangeListener {
+
+    private final ProxyServer server;
+    private final ChatHistory history;
+    private final ChatFormats formats;
+    private final PlayerCache playerCache;
+    private final long maxAgeMillis;
+    // Joined players whose team was not known yet at join
+    private final Set<UUID> awaitingTeam = ConcurrentHashMap.newKeySet();
+
+    public ChatHistoryListener(ProxyServer server, ChatHistory history, ChatFormats formats, PlayerCache playerCache,
+            ConfigManager configManager) {
+        this.server = server;
+        this.history = history;
+        this.formats = formats;
+        this.playerCache = playerCache;
+        this.maxAgeMillis = Math.max(1, configManager.getInt("history.max-age-seconds", 600)) * 1000L;
+        playerCache.addTeamChangeListener(this);
+    }
+
+    @Subscribe
+    public void onPostConnect(ServerPostConnectEvent event) {
+        if (event.getPreviousServer() != null) {
+            // Server switch within this proxy; the player has seen this chat already
+            return;
+        }
+        Player player = event.getPlayer();
+        for (ChatHistory.Line line : history.recent("global", maxAgeMillis)) {
+            player.sendMessage(formats.global().render(line.getSender(), line.getMessage()));
+        }
+        ProxyPlayerData cached = playerCache.get(player.getUniqueId());
+        if (cached != null && cached.teamId != null) {
+            replayTeam(player, cached.teamId);
+        } else {
+            awaitingTeam.add(player.getUniqueId());
+        }
+    }
+
+    @Override
+    public void onTeamChange(UUID uuid, String oldTeamId, String newTeamId) {
+        if (newTeamId != null && awaitingTeam.remove(uuid)) {
+            server.getPlayer(uuid).ifPresent(player -> replayTeam(player, newTeamId));
+        }
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        awaitingTeam.remove(event.getPlayer().getUniqueId());
+    }
+
+    private void replayTeam(Player player, String teamId) {
+        List<ChatHistory.Line> lines = history.recent(ChatHistory.teamChannel(teamId), maxAgeMillis);
+        for (ChatHistory.Line line : lines) {
+            String teamName = line.getLabel().isEmpty() ? "Team" : line.getLabel();
+            player.sendMessage(formats.team().render(teamName, line.getSender(), line.getMessage()));
+        }
+    }
+}
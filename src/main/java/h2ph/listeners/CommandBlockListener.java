@@ -6,20 +6,57 @@ import com.velocitypowered.api.event.command.PlayerAvailableCommandsEvent;
 import com.velocitypowered.api.event.player.TabCompleteEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.mojang.brigadier.tree.RootCommandNode;
+import h2ph.config.ConfigManager;
 import net.kyori.adventure.text.Component;
 
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Blocks and hides commands from players without the bypass permission.
+ *
+ * {@code commands.blocked} are denied, filtered from tab completion and pruned from the
+ * command tree; {@code commands.hidden} are only pruned from the tree. Plain names match
+ * under any namespace ({@code server} also covers {@code velocity:server}); names with a
+ * namespace match exactly. Both lists are compiled into one lookup table on
+ * {@link #reload}.
+ */
 public class CommandBlockListener {
 
     private static final Component MESSAGE_COMPONENT = Component.text("This command does not exist.")
             .color(net.kyori.adventure.text.format.NamedTextColor.RED);
 
+    private static final String DEFAULT_BLOCKED = "server, geyser, velocity, lp, lpv, luckperms, luckyperms, prismmotd, btabr";
+    // Still executable: prismvoid is a silent no-op and velocity:callback backs clickable text
+    private static final String DEFAULT_HIDDEN = "prismvoid, prismstats, prismlog, velocity:callback";
+
+    private volatile CommandTable commands;
+    private volatile String bypassPermission;
+
+    public CommandBlockListener(ConfigManager configManager) {
+        reload(configManager);
+    }
+
+    public void reload(ConfigManager configManager) {
+        CommandTable table = new CommandTable();
+        for (String name : parseList(configManager.getString("commands.blocked", DEFAULT_BLOCKED))) {
+            table.put(name, true);
+        }
+        for (String name : parseList(configManager.getString("commands.hidden", DEFAULT_HIDDEN))) {
+            table.put(name, false);
+        }
+        bypassPermission = configManager.getString("commands.bypass-permission", "prismchat.commands.bypass");
+        commands = table;
+    }
+
     @Subscribe
     public void onCommand(CommandExecuteEvent event) {
         if (!(event.getCommandSource() instanceof Player player)) {
             return;
         }
 
-        if (!isBlockedCommand(event.getCommand())) {
+        if (bypasses(player) || !isBlockedCommand(event.getCommand())) {
             return;
         }
 
@@ -32,70 +69,141 @@ public class CommandBlockListener {
 
     @Subscribe
     public void onTabComplete(TabCompleteEvent event) {
-        event.getSuggestions().removeIf(CommandBlockListener::isBlockedCommand);
+        if (bypasses(event.getPlayer())) {
+            return;
+        }
+        event.getSuggestions().removeIf(this::isBlockedCommand);
     }
 
     @Subscribe
     public void onAvailableCommands(PlayerAvailableCommandsEvent event) {
+        if (bypasses(event.getPlayer())) {
+            return;
+        }
+        CommandTable table = commands;
         RootCommandNode<?> root = event.getRootNode();
-        removeRootCommand(root, "server");
-        removeRootCommand(root, "velocity:server");
-        removeRootCommand(root, "velocity");
-        removeRootCommand(root, "geyser");
-        removeRootCommand(root, "geyser:geyser");
-        removeRootCommand(root, "lp");
-        removeRootCommand(root, "lpv");
-        removeRootCommand(root, "luckperms");
-        removeRootCommand(root, "luckyperms");
-        removeRootCommand(root, "prismmotd");
-        removeRootCommand(root, "prismvoid");
-        removeRootCommand(root, "velocity:callback");
-        removeRootCommand(root, "velocity");
-        removeRootCommand(root, "btabr");
+        root.getChildren().removeIf(node -> table.find(node.getName(), false) != null);
     }
 
-    private static void removeRootCommand(RootCommandNode<?> root, String name) {
-        if (root.getChild(name) != null) {
-            root.getChildren().removeIf(node -> node.getName().equalsIgnoreCase(name));
-        }
+    private boolean bypasses(Player player) {
+        String permission = bypassPermission;
+        return player != null && !permission.isEmpty() && player.hasPermission(permission);
     }
 
-    private static boolean isBlockedCommand(String raw) {
+    private boolean isBlockedCommand(String raw) {
         if (raw == null) {
             return false;
         }
-        String command = raw.trim();
-        if (command.startsWith("/")) {
-            command = command.substring(1);
-        }
-        if (command.isEmpty()) {
-            return false;
-        }
-        String base = command.split("\\s+")[0].toLowerCase();
-        if (base.endsWith(":")) {
-            base = base.substring(0, base.length() - 1);
-        }
-        if (base.endsWith(":server") || base.equals("server")) {
-            return true;
+        return Boolean.TRUE.equals(commands.find(raw, true));
+    }
+
+    private static Set<String> parseList(String value) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String part : value.split(",")) {
+            String name = part.trim().toLowerCase(Locale.ROOT);
+            if (name.startsWith("/")) {
+                name = name.substring(1);
+            }
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
         }
-        if (base.endsWith(":geyser") || base.equals("geyser")) {
-            return true;
+        return names;
+    }
+
+    /**
+     * Open-addressing table of lowercase command names. Lookups hash and compare regions of
+     * the input in place, so matching a command line allocates nothing.
+     */
+    static final class CommandTable {
+        private String[] keys = new String[16];
+        private boolean[] blocked = new boolean[16];
+        private int size;
+
+        /** Blocked wins over hidden if a name is in both lists. */
+        void put(String name, boolean isBlocked) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int slot = slotOf(name, 0, name.length());
+            if (keys[slot] == null) {
+                keys[slot] = name;
+                size++;
+            }
+            blocked[slot] |= isBlocked;
         }
-        if (base.endsWith(":velocity") || base.equals("velocity")) {
-            return true;
+
+        /**
+         * @param line a node name, or a command line if {@code parse} is set
+         *             ({@code "/ns:cmd args"}; leading slash, arguments and a trailing ':' are ignored)
+         * @return TRUE if blocked, FALSE if only hidden, null if neither
+         */
+        Boolean find(String line, boolean parse) {
+            int start = 0;
+            int end = line.length();
+            if (parse) {
+                while (start < end && Character.isWhitespace(line.charAt(start))) start++;
+                if (start < end && line.charAt(start) == '/') start++;
+                int i = start;
+                while (i < end && !Character.isWhitespace(line.charAt(i))) i++;
+                end = i;
+                if (end > start && line.charAt(end - 1) == ':') end--;
+            }
+            if (start >= end) {
+                return null;
+            }
+            int slot = slotOf(line, start, end);
+            if (keys[slot] != null) {
+                return blocked[slot];
+            }
+            int colon = line.lastIndexOf(':', end - 1);
+            if (colon >= start) {
+                slot = slotOf(line, colon + 1, end);
+                if (keys[slot] != null) {
+                    return blocked[slot];
+                }
+            }
+            return null;
         }
-        if (base.endsWith(":lp") || base.equals("lp")) {
-            return true;
+
+        // Slot holding the region's key, or the empty slot where it would go
+        private int slotOf(String s, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + lower(s.charAt(i));
+            }
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null && !matches(keys[slot], s, start, end)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
         }
-        if (base.endsWith(":lpv") || base.equals("lpv")) {
+
+        private static boolean matches(String key, String s, int start, int end) {
+            int length = end - start;
+            if (key.length() != length) return false;
+            for (int i = 0; i < length; i++) {
+                if (key.charAt(i) != lower(s.charAt(start + i))) return false;
+            }
             return true;
         }
-        if (base.endsWith(":luckperms") || base.equals("luckperms")) {
-            return true;
+
+        private static char lower(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + 32) : Character.toLowerCase(c);
         }
-        if (base.endsWith(":luckyperms") || base.equals("luckyperms")) {
-            return true;
+
+        private void grow() {
+            String[] oldKeys = keys;
+            boolean[] oldBlocked = blocked;
+            keys = new String[oldKeys.length * 2];
+            blocked = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldBlocked[i]);
+                }
+            }
         }
-        return base.endsWith(":prismmotd") || base.equals("prismmotd");
     }
 }
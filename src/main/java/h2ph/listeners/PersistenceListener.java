@@ -6,11 +6,8 @@ import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import com.velocitypowered.api.proxy.server.RegisteredServer;
 import h2ph.db.DatabaseManager;
+import h2ph.util.PrismLog;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Optional;
 
 public class PersistenceListener {
@@ -37,25 +34,16 @@ public class PersistenceListener {
             Optional<RegisteredServer> targetServer = server.getServer(lastRegion);
             if (targetServer.isPresent()) {
                 event.setResult(ServerPreConnectEvent.ServerResult.allowed(targetServer.get()));
-                System.out.println(
-                        "[PrismChat-Debug] Redirecting " + player.getUsername() + " to last server: " + lastRegion);
+                if (PrismLog.isDebug()) {
+                    PrismLog.debug("Redirecting {} to last server: {}", player.getUsername(), lastRegion);
+                }
             }
         }
     }
 
     private String getLastRegion(String uuid) {
-        try (Connection connection = databaseManager.getConnection();
-                PreparedStatement statement = connection
-                        .prepareStatement("SELECT last_region FROM player_data WHERE uuid = ?")) {
-            statement.setString(1, uuid);
-            try (ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    return resultSet.getString("last_region");
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return null;
+        // Read-after-write of our own disconnect update, so read from the primary.
+        // Goes through the MySQL circuit breaker; returns null (no redirect) while degraded.
+        return databaseManager.getLastRegion(uuid, true);
     }
 }
@@ -3,30 +3,259 @@ package h2ph.listeners;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.proxy.ProxyPingEvent;
 import com.velocitypowered.api.proxy.server.ServerPing;
+import h2ph.config.ConfigManager;
+import h2ph.redis.NetworkCounts;
+import h2ph.util.TokenBucket;
 import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Server-list pings with a pre-rendered MOTD.
+ *
+ * The MOTD may contain {@code {online}}, {@code {proxies}}, {@code {server:<name>}} and
+ * {@code {region:<name>}}, filled from the {@link NetworkCounts} snapshot. The description
+ * is deserialized once per MOTD and snapshot, and the built response is reused while the
+ * ping Velocity hands us (version, player counts) stays the same.
+ * Pings over the per-IP or global rate get a cached minimal response (no favicon or
+ * player sample), so a ping flood costs a couple of map lookups per request.
+ */
 public class PingListener {
 
-    private final AtomicReference<String> motdRawRef = new AtomicReference<>();
+    // At this many tracked addresses, new ones are only limited by the global bucket
+    private static final int MAX_TRACKED_ADDRESSES = 10000;
+    // Idle (refilled) per-IP buckets are dropped at most this often
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
 
-    public PingListener(String motdRaw) {
-        this.motdRawRef.set(motdRaw);
+    private final NetworkCounts networkCounts;
+    private final AtomicReference<Rendered> rendered = new AtomicReference<>();
+    private final Map<InetAddress, TokenBucket> perAddress = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder limited = new LongAdder();
+    private volatile TokenBucket global;
+    private volatile double perIpRate;
+    private volatile double perIpBurst;
+    private volatile boolean showNetworkCount;
+    private volatile String motdRaw = "";
+
+    /**
+     * @param networkCounts source of placeholder values, or null for a static MOTD
+     */
+    public PingListener(String motdRaw, ConfigManager configManager, NetworkCounts networkCounts) {
+        this.networkCounts = networkCounts;
+        reload(configManager);
+        setMotd(motdRaw);
     }
 
     public void setMotd(String motdRaw) {
-        this.motdRawRef.set(motdRaw);
+        this.motdRaw = motdRaw == null ? "" : motdRaw;
+        this.rendered.set(render(snapshot()));
+    }
+
+    public void reload(ConfigManager configManager) {
+        double globalRate = configManager.getDouble("server-list.global-rate", 200);
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, configManager.getDouble("server-list.global-burst", 400)) : null;
+        this.perIpRate = configManager.getDouble("server-list.per-ip-rate", 2);
+        this.perIpBurst = configManager.getDouble("server-list.per-ip-burst", 10);
+        this.showNetworkCount = configManager.getBoolean("server-list.show-network-count", true);
+        perAddress.clear();
+        this.rendered.set(render(snapshot()));
+    }
+
+    /**
+     * @return pings answered with the minimal response since startup
+     */
+    public long getLimitedCount() {
+        return limited.sum();
     }
 
     @Subscribe
     public void onProxyPing(ProxyPingEvent event) {
-        String motd = motdRawRef.get();
+        Rendered current = current();
         ServerPing ping = event.getPing();
-        Component description = LegacyComponentSerializer.legacySection().deserialize(motd == null ? "" : motd);
-        ServerPing.Builder builder = ping.asBuilder();
-        builder.description(description);
-        event.setPing(builder.build());
+        if (!allow(event)) {
+            limited.increment();
+            event.setPing(current.minimal(ping));
+            return;
+        }
+        event.setPing(current.full(ping));
+    }
+
+    private Rendered current() {
+        Rendered current = rendered.get();
+        NetworkCounts.Snapshot snapshot = snapshot();
+        if (current.snapshot == snapshot) {
+            return current;
+        }
+        // Counts changed since the last render; at most one rebuild per snapshot wins
+        Rendered next = render(snapshot);
+        return rendered.compareAndSet(current, next) ? next : rendered.get();
+    }
+
+    private NetworkCounts.Snapshot snapshot() {
+        return networkCounts != null ? networkCounts.getSnapshot() : null;
+    }
+
+    private Rendered render(NetworkCounts.Snapshot snapshot) {
+        String motd = snapshot != null ? applyPlaceholders(motdRaw, snapshot) : motdRaw;
+        Component description = LegacyComponentSerializer.legacySection().deserialize(motd);
+        int online = showNetworkCount && snapshot != null ? snapshot.getOnline() : -1;
+        return new Rendered(description, snapshot, online);
+    }
+
+    private static String applyPlaceholders(String raw, NetworkCounts.Snapshot snapshot) {
+        if (raw.indexOf('{') < 0) {
+            return raw;
+        }
+        StringBuilder out = new StringBuilder(raw.length());
+        int i = 0;
+        while (i < raw.length()) {
+            int open = raw.indexOf('{', i);
+            int close = open >= 0 ? raw.indexOf('}', open) : -1;
+            if (close < 0) {
+                out.append(raw, i, raw.length());
+                break;
+            }
+            out.append(raw, i, open);
+            String key = raw.substring(open + 1, close);
+            if (key.equals("online")) {
+                out.append(snapshot.getOnline());
+            } else if (key.equals("proxies")) {
+                out.append(snapshot.getProxies());
+            } else if (key.startsWith("server:")) {
+                out.append(snapshot.getServer(key.substring(7)));
+            } else if (key.startsWith("region:")) {
+                out.append(snapshot.getRegion(key.substring(7)));
+            } else {
+                out.append(raw, open, close + 1);
+            }
+            i = close + 1;
+        }
+        return out.toString();
+    }
+
+    private boolean allow(ProxyPingEvent event) {
+        if (perIpRate > 0) {
+            InetSocketAddress remote = event.getConnection().getRemoteAddress();
+            InetAddress address = remote != null ? remote.getAddress() : null;
+            if (address != null) {
+                TokenBucket bucket = perAddress.get(address);
+                if (bucket == null) {
+                    sweepIdle();
+                    if (perAddress.size() < MAX_TRACKED_ADDRESSES) {
+                        bucket = perAddress.computeIfAbsent(address, a -> new TokenBucket(perIpRate, perIpBurst));
+                    }
+                }
+                if (bucket != null && !bucket.tryAcquire()) {
+                    return false;
+                }
+            }
+        }
+        TokenBucket globalBucket = global;
+        return globalBucket == null || globalBucket.tryAcquire();
+    }
+
+    // One thread per interval drops buckets that have refilled; the rest skip straight past
+    private void sweepIdle() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        perAddress.values().removeIf(TokenBucket::isFull);
+    }
+
+    /**
+     * Responses built from one MOTD and snapshot, each cached against the ping it was built from.
+     */
+    private static final class Rendered {
+        private final Component description;
+        private final NetworkCounts.Snapshot snapshot;
+        // Network-wide count to show instead of this proxy's, or -1
+        private final int online;
+        private volatile Cached full;
+        private volatile Cached minimal;
+
+        private Rendered(Component description, NetworkCounts.Snapshot snapshot, int online) {
+            this.description = description;
+            this.snapshot = snapshot;
+            this.online = online;
+        }
+
+        private ServerPing.Builder builder(ServerPing base) {
+            ServerPing.Builder builder = base.asBuilder().description(description);
+            if (online >= 0 && base.getPlayers().isPresent()) {
+                // The replica can lag behind this proxy's own count right after joins
+                builder.onlinePlayers(Math.max(online, base.getPlayers().get().getOnline()));
+            }
+            return builder;
+        }
+
+        ServerPing full(ServerPing base) {
+            Cached cached = full;
+            if (cached != null && cached.matches(base)) {
+                return cached.response;
+            }
+            ServerPing response = builder(base).build();
+            // Pings carrying a player sample (set by another plugin) vary too much to cache
+            if (sampleSize(base) == 0) {
+                full = new Cached(base, response);
+            }
+            return response;
+        }
+
+        ServerPing minimal(ServerPing base) {
+            Cached cached = minimal;
+            if (cached != null && cached.matches(base)) {
+                return cached.response;
+            }
+            ServerPing response = builder(base)
+                    .clearFavicon()
+                    .clearSamplePlayers()
+                    .build();
+            minimal = new Cached(base, response);
+            return response;
+        }
+
+        private static int sampleSize(ServerPing ping) {
+            Optional<ServerPing.Players> players = ping.getPlayers();
+            return players.isPresent() && players.get().getSample() != null ? players.get().getSample().size() : 0;
+        }
+    }
+
+    private static final class Cached {
+        private final int protocol;
+        private final String versionName;
+        private final int online;
+        private final int max;
+        private final ServerPing response;
+
+        private Cached(ServerPing base, ServerPing response) {
+            this.protocol = base.getVersion().getProtocol();
+            this.versionName = base.getVersion().getName();
+            Optional<ServerPing.Players> players = base.getPlayers();
+            this.online = players.map(ServerPing.Players::getOnline).orElse(-1);
+            this.max = players.map(ServerPing.Players::getMax).orElse(-1);
+            this.response = response;
+        }
+
+        boolean matches(ServerPing base) {
+            ServerPing.Version version = base.getVersion();
+            if (version.getProtocol() != protocol || !version.getName().equals(versionName)) {
+                return false;
+            }
+            Optional<ServerPing.Players> players = base.getPlayers();
+            return players.isPresent()
+                    ? players.get().getOnline() == online && players.get().getMax() == max
+                    : online == -1 && max == -1;
+        }
     }
 }
@@ -1,38 +1,101 @@
 package h2ph.listeners;
 
-import com.google.gson.Gson;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.player.PlayerChatEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import h2ph.db.DatabaseManager;
 import h2ph.redis.RedisManager;
+import h2ph.audit.AuditLog;
 import h2ph.cache.PlayerCache;
 import h2ph.cache.ProxyPlayerData;
+import h2ph.chat.ChannelRegistry;
+import h2ph.chat.ChatCodec;
+import h2ph.chat.ChatFormats;
+import h2ph.chat.ChatHistory;
+import h2ph.chat.ChatMessage;
+import h2ph.chat.TeamInterest;
+import h2ph.config.ConfigManager;
+import h2ph.jfr.ChatMessageEvent;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.redis.StreamConsumer;
 import h2ph.util.ChatFormatUtil;
+import h2ph.util.PrismLog;
 import net.kyori.adventure.text.Component;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 public class TeamChatListener {
 
+    // Unsharded (legacy) channel and stream, used while team-chat.sharded is false
+    private static final String CHANNEL = "prism:team_chat";
+    private static final String STREAM_KEY = "prism:team_chat:stream";
+    // Sharded: one channel per team, or one stream per hash slot of team ids
+    private static final String TEAM_CHANNEL_PREFIX = "prism:team_chat:";
+    private static final String SLOT_STREAM_PREFIX = "prism:team_chat:stream:";
+    private static final Component NO_TEAM_MESSAGE = Component.text("You are not in a team; team chat messages go nowhere.")
+            .color(net.kyori.adventure.text.format.NamedTextColor.RED);
+
+    private static final Histogram FANOUT_TIME = Metrics.histogram("prism_chat_fanout_seconds", "Time spent delivering a chat message to local recipients.");
+    private static final Counter MESSAGES = Metrics.counter("prism_chat_messages_total", "Chat messages delivered to local players.");
+    private static final Counter RECIPIENTS = Metrics.counter("prism_chat_recipients_total", "Local recipients of chat messages.");
+
     private final DatabaseManager databaseManager;
     private final RedisManager redisManager;
     private final ProxyServer server;
     private final PlayerCache playerCache;
-    private final Gson gson = new Gson();
     private final h2ph.chat.ChatFilter chatFilter;
+    private final ChatFormats formats;
+    // Null when history.enabled is off
+    private final ChatHistory history;
+    // Null when audit.enabled is off
+    private final AuditLog auditLog;
     private final String instanceId;
     private final boolean assumeSignedWhenUnknown;
+    // Publish legacy JSON until every proxy in the network can decode the binary format
+    private final boolean jsonWireFormat;
+    // Durable delivery through a Redis stream instead of fire-and-forget pub/sub
+    private final boolean useStreams;
+    private final boolean sharded;
+    private final int streamSlots;
+    // Which teams to receive traffic for; delivery walks the team channel in channels
+    private final TeamInterest interest;
+    private final ChannelRegistry channels;
+    // Sharded streams: slot -> number of local teams hashed into it, and its consumer
+    private final Map<Integer, Integer> slotTeams = new HashMap<>();
+    private final Map<Integer, StreamConsumer> slotConsumers = new HashMap<>();
 
-    public TeamChatListener(ProxyServer server, DatabaseManager databaseManager, RedisManager redisManager, PlayerCache playerCache, String instanceId, h2ph.chat.ChatFilter chatFilter, boolean assumeSignedWhenUnknown) {
+    public TeamChatListener(ProxyServer server, DatabaseManager databaseManager, RedisManager redisManager, PlayerCache playerCache, String instanceId, h2ph.chat.ChatFilter chatFilter, ChatFormats formats, ChannelRegistry channels, ChatHistory history, AuditLog auditLog, boolean assumeSignedWhenUnknown, ConfigManager configManager) {
         this.server = server;
         this.databaseManager = databaseManager;
         this.redisManager = redisManager;
         this.playerCache = playerCache;
         this.instanceId = instanceId != null ? instanceId : "";
         this.chatFilter = chatFilter;
+        this.formats = formats;
+        this.channels = channels;
+        this.history = history;
+        this.auditLog = auditLog;
         this.assumeSignedWhenUnknown = assumeSignedWhenUnknown;
+        this.jsonWireFormat = "json".equalsIgnoreCase(configManager.getString("chat.wire-format", "binary"));
+        boolean streams = "streams".equalsIgnoreCase(configManager.getString("team-chat.transport", "pubsub"));
+        if (streams && configManager.getString("proxy.id", "").isEmpty()) {
+            // Consumer groups are named after the proxy id; a random id would leave a group behind per start
+            PrismLog.warn("team-chat.transport: streams needs a fixed proxy.id, using pubsub instead.");
+            streams = false;
+        }
+        this.useStreams = streams;
+        this.sharded = configManager.getBoolean("team-chat.sharded", false);
+        this.streamSlots = Math.max(1, configManager.getInt("team-chat.stream-slots", 16));
+        this.interest = new TeamInterest(this::onTeamOnline, this::onTeamOffline,
+                configManager.getInt("team-chat.unsubscribe-linger-seconds", 30) * 1000L);
+        if (playerCache != null) {
+            playerCache.addTeamChangeListener(interest);
+        }
         startSubscriber();
     }
 
@@ -49,6 +112,8 @@ public class TeamChatListener {
             // Not team chat — allow other handlers/global chat to proceed.
             return;
         }
+        ChatMessageEvent jfrEvent = new ChatMessageEvent();
+        jfrEvent.begin();
         if (chatFilter != null) {
             h2ph.chat.ChatFilter.ChatDecision decision = chatFilter.check(player, message);
             if (!decision.isAllowed()) {
@@ -59,6 +124,7 @@ public class TeamChatListener {
                 if (!h2ph.util.ChatEventSignUtil.isSigned(event, assumeSignedWhenUnknown)) {
                     event.setResult(PlayerChatEvent.ChatResult.message(""));
                 }
+                jfrEvent.finish("team", "denied", 0, message.length());
                 return;
             }
         }
@@ -68,87 +134,126 @@ public class TeamChatListener {
             event.setResult(PlayerChatEvent.ChatResult.message(""));
         }
 
-        final String senderDisplay = ChatFormatUtil.getDisplayNameLegacy(player);
         final String teamId = cached.teamId;
+        if (teamId == null || teamId.isEmpty()) {
+            // Team chat left on without a team; nothing to publish, deliver or record
+            player.sendMessage(NO_TEAM_MESSAGE);
+            jfrEvent.finish("team", "denied", 0, message.length());
+            return;
+        }
+        final String senderDisplay = ChatFormatUtil.getDisplayNameLegacy(player);
         final String teamName = cached.teamName;
 
-        // Publish to Redis instantly (non-blocking)
-        java.util.concurrent.CompletableFuture.runAsync(() -> {
-            try {
-                String payload = redisManager.makeTeamChatPayload(senderDisplay, teamId, teamName, message, instanceId);
-                redisManager.publishTeamChat("prism:team_chat", payload);
-            } catch (Exception e) {
-                e.printStackTrace();
+        // Publish to Redis through the pipelined command queue (non-blocking). While
+        // Redis is degraded team chat falls back to local-only delivery below.
+        if (redisManager.isAvailable()) {
+            ChatMessage msg = ChatMessage.team(instanceId, uuid, senderDisplay, teamId, teamName, message);
+            byte[] payload = jsonWireFormat ? ChatCodec.encodeJson(msg) : ChatCodec.encode(msg);
+            if (useStreams) {
+                redisManager.appendToStream(sharded ? slotStream(teamId) : STREAM_KEY, payload);
+            } else {
+                redisManager.publish(sharded ? TEAM_CHANNEL_PREFIX + teamId : CHANNEL, payload);
             }
-        });
+        }
 
         // Immediate local delivery to reduce perceived latency (check cache for team membership)
-        String label = String.format("&7[%s&7] &5", teamName != null ? teamName : "Team");
-        Component labelComponent = ChatFormatUtil.deserializeLegacy(label);
-        Component senderComponent = ChatFormatUtil.deserializeLegacy(senderDisplay);
-        Component messagePrefix = ChatFormatUtil.deserializeLegacy(": &f");
-        Component formattedMessage = Component.text()
-                .append(labelComponent)
-                .append(senderComponent)
-                .append(messagePrefix)
-                .append(Component.text(message))
-                .build();
-        for (Player p : server.getAllPlayers()) {
-            try {
-                ProxyPlayerData pData = playerCache != null ? playerCache.get(p.getUniqueId()) : null;
-                if (pData != null && teamId != null && teamId.equals(pData.teamId)) {
-                    p.sendMessage(formattedMessage);
-                }
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
+        Component formattedMessage = formats.team().render(teamName != null ? teamName : "Team", senderDisplay, message);
+        int recipients = deliverToTeam(teamId, formattedMessage);
+        if (history != null) {
+            history.record(ChatHistory.teamChannel(teamId), teamName != null ? teamName : "", senderDisplay, message);
         }
+        if (auditLog != null) {
+            auditLog.record("team:" + (teamName != null ? teamName : teamId), uuid, player.getUsername(), message);
+        }
+        jfrEvent.finish("team", "allowed", recipients, message.length());
     }
 
     private void startSubscriber() {
         if (redisManager == null) return;
 
-        redisManager.subscribe("prism:team_chat", raw -> {
-            try {
-                java.util.Map data = gson.fromJson(raw, java.util.Map.class);
-                if (data == null) return;
-                String origin = data.get("origin") != null ? (String) data.get("origin") : "";
-
-                // Ignore messages originating from this instance because we already delivered them locally.
-                if (origin.equals(this.instanceId)) return;
-
-                String sender = (String) data.get("sender");
-                String teamId = (String) data.get("teamId");
-                String teamName = (String) data.get("teamName");
-                String content = (String) data.get("message");
-
-                String label = String.format("&7[%s&7] &5", teamName != null ? teamName : "Team");
-                Component labelComponent = ChatFormatUtil.deserializeLegacy(label);
-                Component senderComponent = ChatFormatUtil.deserializeLegacy(sender != null ? sender : "");
-                Component messagePrefix = ChatFormatUtil.deserializeLegacy(": &f");
-                Component formattedMessage = Component.text()
-                        .append(labelComponent)
-                        .append(senderComponent)
-                        .append(messagePrefix)
-                        .append(Component.text(content != null ? content : ""))
-                        .build();
-
-                // Use cache for team membership check (instant, no DB query)
-                for (Player p : server.getAllPlayers()) {
-                    try {
-                        ProxyPlayerData pData = playerCache != null ? playerCache.get(p.getUniqueId()) : null;
-                        if (pData != null && teamId != null && teamId.equals(pData.teamId)) {
-                            p.sendMessage(formattedMessage);
-                        }
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
+        // Sharded subscriptions follow local team membership, see onTeamOnline/onTeamOffline
+        if (sharded) return;
+        if (useStreams) {
+            redisManager.consumeStream(STREAM_KEY, this::deliverRemote);
+        } else {
+            redisManager.subscribeBinary(CHANNEL, this::deliverRemote);
+        }
+    }
+
+    // Called under the TeamInterest lock, which also guards the slot maps
+    private void onTeamOnline(String teamId) {
+        if (!sharded || redisManager == null) return;
+        if (useStreams) {
+            int slot = slotOf(teamId);
+            if (slotTeams.merge(slot, 1, Integer::sum) == 1) {
+                slotConsumers.put(slot, redisManager.consumeStream(SLOT_STREAM_PREFIX + slot, this::deliverRemote));
+            }
+        } else {
+            redisManager.subscribeBinary(TEAM_CHANNEL_PREFIX + teamId, this::deliverRemote);
+        }
+    }
+
+    private void onTeamOffline(String teamId) {
+        if (!sharded || redisManager == null) return;
+        if (useStreams) {
+            int slot = slotOf(teamId);
+            Integer remaining = slotTeams.merge(slot, -1, Integer::sum);
+            if (remaining != null && remaining <= 0) {
+                slotTeams.remove(slot);
+                StreamConsumer consumer = slotConsumers.remove(slot);
+                if (consumer != null) {
+                    redisManager.stopStream(consumer);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-        });
+        } else {
+            redisManager.unsubscribe(TEAM_CHANNEL_PREFIX + teamId);
+        }
     }
-}
 
+    private int slotOf(String teamId) {
+        // String.hashCode is specified, so every proxy maps a team to the same slot
+        return (teamId.hashCode() & 0x7fffffff) % streamSlots;
+    }
+
+    private String slotStream(String teamId) {
+        return SLOT_STREAM_PREFIX + slotOf(teamId);
+    }
+
+    private int deliverToTeam(String teamId, Component formattedMessage) {
+        long start = System.nanoTime();
+        int recipients = channels.forEachMember(channels.team(teamId), null, member -> member.sendMessage(formattedMessage));
+        FANOUT_TIME.recordSince(start);
+        MESSAGES.increment();
+        RECIPIENTS.add(recipients);
+        return recipients;
+    }
 
+    private void deliverRemote(byte[] raw) {
+        try {
+            ChatMessage msg = ChatCodec.decode(raw);
+
+            // Ignore messages originating from this instance because we already delivered them locally.
+            if (msg.getOrigin().equals(this.instanceId)) return;
+            // Kept even with nobody of the team online here, for members who join later
+            if (history != null) {
+                history.record(ChatHistory.teamChannel(msg.getTeamId()), msg.getTeamName(), msg.getSender(), msg.getMessage());
+            }
+            // Slot streams and the legacy channel also carry teams with nobody online here
+            if (!interest.isInterested(msg.getTeamId())) return;
+
+            ChatMessageEvent jfrEvent = new ChatMessageEvent();
+            jfrEvent.begin();
+            String sender = msg.getSender();
+            String teamId = msg.getTeamId();
+            String teamName = msg.getTeamName().isEmpty() ? null : msg.getTeamName();
+            String content = msg.getMessage();
+
+            Component formattedMessage = formats.team().render(teamName != null ? teamName : "Team", sender, content);
+
+            int recipients = deliverToTeam(teamId, formattedMessage);
+            jfrEvent.finish("team-remote", "skipped", recipients, content.length());
+        } catch (Exception e) {
+            PrismLog.error("Could not deliver remote team chat", e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package h2ph.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry.
+ *
+ * Instruments are registered once, usually into a {@code static final} field of the
+ * class that records them, and then updated without locks or allocation. Registering
+ * the same name twice returns the existing instrument.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name Prometheus-style name, ending in {@code _total}
+     */
+    public static Counter counter(String name, String help) {
+        return COUNTERS.computeIfAbsent(name, n -> new Counter(n, help));
+    }
+
+    /**
+     * @param name Prometheus-style name, ending in {@code _seconds}; values are recorded in
+     *             nanoseconds and exported in seconds
+     */
+    public static Histogram histogram(String name, String help) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new Histogram(n, help));
+    }
+
+    /**
+     * Register (or replace) a gauge read on export.
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        GAUGES.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * @return one human-readable line per instrument, for /prismstats
+     */
+    public static List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Counter counter : COUNTERS.values()) {
+            lines.add(counter.getName() + " = " + counter.get());
+        }
+        for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+            lines.add(entry.getKey() + " = " + entry.getValue().read());
+        }
+        for (Histogram histogram : HISTOGRAMS.values()) {
+            long count = histogram.getCount();
+            if (count == 0) {
+                lines.add(histogram.getName() + ": no samples");
+                continue;
+            }
+            lines.add(String.format(Locale.ROOT, "%s: count=%d, avg=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms",
+                    histogram.getName(), count, histogram.getSumNanos() / (double) count / 1e6,
+                    histogram.getValueAtQuantile(0.5) / 1e6, histogram.getValueAtQuantile(0.99) / 1e6,
+                    histogram.getMaxNanos() / 1e6));
+        }
+        return lines;
+    }
+
+    /**
+     * @return all instruments in the Prometheus text exposition format (histograms as summaries)
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter counter : COUNTERS.values()) {
+            header(out, counter.getName(), counter.getHelp(), "counter");
+            out.append(counter.getName()).append(' ').append(counter.get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : GAUGES.entrySet()) {
+            header(out, entry.getKey(), entry.getValue().help, "gauge");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().read()).append('\n');
+        }
+        for (Histogram histogram : HISTOGRAMS.values()) {
+            String name = histogram.getName();
+            header(out, name, histogram.getHelp(), "summary");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getSumNanos())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static final class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        private Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+
+        private long read() {
+            try {
+                return value.getAsLong();
+            } catch (RuntimeException e) {
+                return -1L;
+            }
+        }
+    }
+}
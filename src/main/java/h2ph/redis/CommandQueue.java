@@ -0,0 +1,245 @@
+package h2ph.redis;
+
+import h2ph.jfr.RedisPipelineEvent;
+import h2ph.metrics.Counter;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.util.CircuitBreaker;
+import h2ph.util.PrismLog;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous, auto-pipelining front for the Redis pool.
+ *
+ * Callers submit commands and get a {@link CompletableFuture}. Each I/O thread drains
+ * whatever has queued up since its last flush and sends it as one pipeline over one
+ * pooled connection, so batches grow with load and a burst costs a few round-trips
+ * instead of one per command. Commands with the same routing key always go to the same
+ * thread and therefore execute in submission order.
+ */
+public class CommandQueue {
+
+    /**
+     * Queues one or more commands on the pipeline and returns the response that
+     * completes the caller's future.
+     */
+    @FunctionalInterface
+    public interface Command<T> {
+        Response<T> apply(Pipeline pipeline);
+    }
+
+    private static final Histogram COMMAND_TIME = Metrics.histogram("prism_redis_command_seconds", "Redis command latency from submit to reply, queueing included.");
+    private static final Histogram PIPELINE_TIME = Metrics.histogram("prism_redis_pipeline_seconds", "Round-trip time of one Redis pipeline.");
+    private static final Counter COMMAND_FAILURES = Metrics.counter("prism_redis_command_failures_total", "Redis commands that failed or were rejected.");
+
+    private final Supplier<Jedis> connections;
+    private final CircuitBreaker breaker;
+    private final long budgetNanos;
+    private final int maxBatch;
+    private final Worker[] workers;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private volatile boolean running = true;
+
+    public CommandQueue(Supplier<Jedis> connections, CircuitBreaker breaker, long budgetNanos,
+            int threads, int queueCapacity, int maxBatch) {
+        this.connections = connections;
+        this.breaker = breaker;
+        this.budgetNanos = budgetNanos;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, Math.max(16, queueCapacity));
+        }
+    }
+
+    /**
+     * Submit a command. Never blocks; if the queue is full or the Redis circuit is
+     * open the future fails right away.
+     *
+     * @param routingKey commands with equal keys run in order; null for no ordering
+     */
+    public <T> CompletableFuture<T> submit(String routingKey, Command<T> command) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new RejectedExecutionException("Redis command queue is closed"));
+            return future;
+        }
+        int index = routingKey != null
+                ? (routingKey.hashCode() & 0x7fffffff) % workers.length
+                : (roundRobin.getAndIncrement() & 0x7fffffff) % workers.length;
+        if (!workers[index].queue.offer(new Pending<>(command, future))) {
+            rejected.increment();
+            COMMAND_FAILURES.increment();
+            future.completeExceptionally(new RejectedExecutionException("Redis command queue is full"));
+            return future;
+        }
+        submitted.increment();
+        return future;
+    }
+
+    /**
+     * Stop accepting commands and let the I/O threads flush what is already queued.
+     * Commands still queued after {@code timeoutMillis} are failed.
+     *
+     * @return the number of commands that were failed instead of sent
+     */
+    public int close(long timeoutMillis) {
+        running = false;
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        RejectedExecutionException error = new RejectedExecutionException("Redis command queue is closed");
+        int abandoned = 0;
+        for (Worker worker : workers) {
+            Pending<?> pending;
+            while ((pending = worker.queue.poll()) != null) {
+                pending.future.completeExceptionally(error);
+                abandoned++;
+            }
+        }
+        COMMAND_FAILURES.add(abandoned);
+        return abandoned;
+    }
+
+    public String describe() {
+        long flushed = batches.sum();
+        long count = submitted.sum();
+        int queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.queue.size();
+        }
+        return String.format("commands=%d, pipelines=%d, avgBatch=%.1f, queued=%d, rejected=%d",
+                count, flushed, flushed > 0 ? (double) count / flushed : 0.0, queued, rejected.sum());
+    }
+
+    private final class Worker {
+        private final BlockingQueue<Pending<?>> queue;
+        private final Thread thread;
+
+        private Worker(int id, int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::run, "prism-redis-io-" + id);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        private void run() {
+            List<Pending<?>> batch = new ArrayList<>(maxBatch);
+            while (running || !queue.isEmpty()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        // Flush what is left before exiting
+                        queue.drainTo(batch, maxBatch);
+                        if (batch.isEmpty()) return;
+                    } else {
+                        continue;
+                    }
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending<?>> batch) {
+        if (!breaker.allowRequest()) {
+            RejectedExecutionException error = new RejectedExecutionException("Redis circuit is open");
+            COMMAND_FAILURES.add(batch.size());
+            for (Pending<?> pending : batch) {
+                pending.future.completeExceptionally(error);
+            }
+            return;
+        }
+        batches.increment();
+        RedisPipelineEvent jfrEvent = new RedisPipelineEvent();
+        jfrEvent.begin();
+        long start = System.nanoTime();
+        List<Response<?>> responses = new ArrayList<>(batch.size());
+        try (Jedis jedis = connections.get()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Pending<?> pending : batch) {
+                responses.add(pending.command.apply(pipeline));
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            if (breaker.getState() == CircuitBreaker.State.CLOSED) {
+                PrismLog.warn("Redis pipeline of {} command(s) failed: {}", batch.size(), e.toString());
+            }
+            breaker.recordFailure();
+            COMMAND_FAILURES.add(batch.size());
+            commitPipelineEvent(jfrEvent, batch.size(), false);
+            for (Pending<?> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+        // A pipeline costs one round-trip, so the budget covers the batch as a whole
+        long done = System.nanoTime();
+        breaker.recordSuccess(done - start, budgetNanos);
+        PIPELINE_TIME.record(done - start);
+        commitPipelineEvent(jfrEvent, batch.size(), true);
+        for (int i = 0; i < batch.size(); i++) {
+            Pending<?> pending = batch.get(i);
+            COMMAND_TIME.record(done - pending.submittedAt);
+            pending.complete(responses.get(i));
+        }
+    }
+
+    private static void commitPipelineEvent(RedisPipelineEvent event, int commands, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.commands = commands;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    private static final class Pending<T> {
+        private final Command<T> command;
+        private final CompletableFuture<T> future;
+        private final long submittedAt = System.nanoTime();
+
+        private Pending(Command<T> command, CompletableFuture<T> future) {
+            this.command = command;
+            this.future = future;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(Response<?> response) {
+            try {
+                // Errors of individual commands surface here, not from sync()
+                future.complete(response != null ? ((Response<T>) response).get() : null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
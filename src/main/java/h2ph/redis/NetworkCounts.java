@@ -0,0 +1,139 @@
+package h2ph.redis;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Network-wide player counts, recomputed in the background from the presence replica
+ * into an immutable {@link Snapshot}. Readers (server-list pings) only ever see the
+ * last snapshot and never touch Redis.
+ *
+ * Regions are named groups of backend servers ({@code regions.<name>: server, ...}).
+ */
+public class NetworkCounts {
+
+    /**
+     * Counts at one point in time. Server and region names are lowercase.
+     */
+    public static final class Snapshot {
+        private final int online;
+        private final int proxies;
+        private final Map<String, Integer> servers;
+        private final Map<String, Integer> regions;
+
+        Snapshot(int online, int proxies, Map<String, Integer> servers, Map<String, Integer> regions) {
+            this.online = online;
+            this.proxies = proxies;
+            this.servers = Collections.unmodifiableMap(servers);
+            this.regions = Collections.unmodifiableMap(regions);
+        }
+
+        public int getOnline() {
+            return online;
+        }
+
+        public int getProxies() {
+            return proxies;
+        }
+
+        public int getServer(String name) {
+            return servers.getOrDefault(name.toLowerCase(Locale.ROOT), 0);
+        }
+
+        public int getRegion(String name) {
+            return regions.getOrDefault(name.toLowerCase(Locale.ROOT), 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Snapshot)) return false;
+            Snapshot other = (Snapshot) o;
+            return online == other.online && proxies == other.proxies
+                    && servers.equals(other.servers) && regions.equals(other.regions);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * online + proxies) + servers.hashCode();
+        }
+    }
+
+    private final ProxyServer server;
+    private final PresenceDirectory presence;
+    // server name -> region name
+    private volatile Map<String, String> regionOf = Collections.emptyMap();
+    private volatile Snapshot snapshot = new Snapshot(0, 0, Collections.emptyMap(), Collections.emptyMap());
+
+    public NetworkCounts(ProxyServer server, PresenceDirectory presence) {
+        this.server = server;
+        this.presence = presence;
+    }
+
+    /**
+     * @param regions region name -> comma-separated server names
+     */
+    public void setRegions(Map<String, String> regions) {
+        Map<String, String> mapping = new HashMap<>();
+        for (Map.Entry<String, String> entry : regions.entrySet()) {
+            String region = entry.getKey().toLowerCase(Locale.ROOT);
+            for (String name : entry.getValue().split(",")) {
+                if (!name.isBlank()) {
+                    mapping.put(name.trim().toLowerCase(Locale.ROOT), region);
+                }
+            }
+        }
+        this.regionOf = mapping;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Recompute the snapshot; it is only swapped if something changed, so readers can use
+     * identity to tell whether derived data (such as a rendered MOTD) is stale.
+     */
+    public void refresh() {
+        Map<String, String> regions = this.regionOf;
+        Map<String, Integer> servers = new HashMap<>();
+        int online;
+        int proxies;
+        if (presence != null && presence.getProxyCount() > 0) {
+            online = presence.getNetworkCount();
+            proxies = presence.getProxyCount();
+            for (PresenceDirectory.Presence p : presence.getAll()) {
+                count(servers, p.getServer());
+            }
+        } else {
+            // No replica (Redis down or not loaded yet): this proxy's own view
+            online = server.getPlayerCount();
+            proxies = 1;
+            for (Player player : server.getAllPlayers()) {
+                player.getCurrentServer().ifPresent(s -> count(servers, s.getServerInfo().getName()));
+            }
+        }
+        Map<String, Integer> regionCounts = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : servers.entrySet()) {
+            String region = regions.get(entry.getKey());
+            if (region != null) {
+                regionCounts.merge(region, entry.getValue(), Integer::sum);
+            }
+        }
+        Snapshot next = new Snapshot(online, proxies, servers, regionCounts);
+        if (!next.equals(snapshot)) {
+            snapshot = next;
+        }
+    }
+
+    private static void count(Map<String, Integer> servers, String name) {
+        if (name != null && !name.isEmpty()) {
+            servers.merge(name.toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+    }
+}
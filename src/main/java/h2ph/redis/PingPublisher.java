@@ -0,0 +1,131 @@
+package h2ph.redis;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Publishes player pings into a single hash per proxy ({@code prism:ping:<proxyId>},
+ * field = player uuid, value = ping in ms).
+ *
+ * Each publish interval is split into slices; every tick handles one slice of the
+ * players online at the start of the interval, so the work is spread out instead of
+ * bursting once per interval. Players whose ping moved by less than the configured
+ * delta are skipped, and each tick costs at most one pipelined round-trip.
+ */
+public class PingPublisher {
+
+    private final ProxyServer server;
+    private final RedisManager redisManager;
+    private final String key;
+    private final int slices;
+    private final long minDelta;
+    private final int ttlSeconds;
+    // Last value written to Redis per player; only touched from tick()
+    private final Map<UUID, Long> published = new HashMap<>();
+    // Departed players whose HDEL has not gone through yet; retried every tick
+    private final Set<UUID> pendingRemovals = new HashSet<>();
+    private List<Player> cycle = new ArrayList<>();
+    private int slice;
+    private boolean resendAll;
+
+    public PingPublisher(ProxyServer server, RedisManager redisManager, int intervalSeconds, int slices, long minDelta) {
+        this.server = server;
+        this.redisManager = redisManager;
+        this.key = "prism:ping:" + redisManager.getProxyId();
+        this.slices = Math.max(1, slices);
+        this.minDelta = Math.max(0L, minDelta);
+        // Outlive a few missed intervals, but disappear soon after this proxy dies
+        this.ttlSeconds = Math.max(10, intervalSeconds * 3);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Run one slice. Schedule every {@code interval / slices}.
+     */
+    public synchronized void tick() {
+        if (slice == 0) {
+            cycle = new ArrayList<>(server.getAllPlayers());
+            if (resendAll) {
+                published.clear();
+                resendAll = false;
+            }
+            // Players that left since the last interval lose their field
+            Set<UUID> online = new HashSet<>(cycle.size() * 2);
+            for (Player player : cycle) {
+                online.add(player.getUniqueId());
+            }
+            Iterator<UUID> it = published.keySet().iterator();
+            while (it.hasNext()) {
+                UUID uuid = it.next();
+                if (!online.contains(uuid)) {
+                    it.remove();
+                    pendingRemovals.add(uuid);
+                }
+            }
+            pendingRemovals.removeAll(online);
+        }
+
+        int size = cycle.size();
+        int from = (int) ((long) size * slice / slices);
+        int to = (int) ((long) size * (slice + 1) / slices);
+        boolean refreshTtl = slice == 0;
+        slice = (slice + 1) % slices;
+
+        Map<String, String> changed = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            Player player = cycle.get(i);
+            if (!player.isActive()) {
+                continue;
+            }
+            long ping = player.getPing();
+            if (ping < 0) {
+                continue;
+            }
+            Long last = published.get(player.getUniqueId());
+            if (last == null || Math.abs(ping - last) >= minDelta) {
+                // Back online before their removal went through
+                pendingRemovals.remove(player.getUniqueId());
+                published.put(player.getUniqueId(), ping);
+                changed.put(player.getUniqueId().toString(), String.valueOf(ping));
+            }
+        }
+
+        if (changed.isEmpty() && pendingRemovals.isEmpty() && !refreshTtl) {
+            return;
+        }
+        if (!redisManager.isAvailable()) {
+            // Skip while Redis is degraded and send everything once it is back
+            resendAll = true;
+            return;
+        }
+        List<UUID> removed = new ArrayList<>(pendingRemovals);
+        pendingRemovals.clear();
+        String[] removedFields = new String[removed.size()];
+        for (int i = 0; i < removedFields.length; i++) {
+            removedFields[i] = removed.get(i).toString();
+        }
+        redisManager.publishPings(key, changed, removedFields, ttlSeconds, () -> markFailed(removed));
+    }
+
+    private synchronized void markFailed(List<UUID> removed) {
+        resendAll = true;
+        for (UUID uuid : removed) {
+            // Unless they came back in the meantime
+            if (!published.containsKey(uuid)) {
+                pendingRemovals.add(uuid);
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package h2ph.redis;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import h2ph.util.PrismLog;
+import redis.clients.jedis.params.ScanParams;
+
+/**
+ * Network-wide player presence with a local, in-memory replica.
+ *
+ * The session hashes {@code prism:session:<uuid>} written by {@link RedisManager} are the
+ * only record of who is online where; this class keeps no store of its own. Session
+ * writes and removals announce themselves on {@code prism:presence} in the same script,
+ * and every replica applies those as they arrive. Each proxy heartbeats into the
+ * {@code prism:proxies} sorted set, and a periodic resync scans the session hashes to
+ * repair anything missed and to drop proxies that stopped heartbeating. The scan is merged
+ * rather than swapped in: a player changed by a notification after the scan began keeps
+ * that newer state. Lookups by uuid or name never touch Redis.
+ */
+public class PresenceDirectory {
+
+    // Published by RedisManager's session scripts, so the format below is shared with them
+    static final String CHANNEL = "prism:presence";
+    private static final String PROXIES_KEY = "prism:proxies";
+    private static final String SESSION_PREFIX = "prism:session:";
+    private static final int SCAN_COUNT = 500;
+    private static final char SEP = '\t';
+
+    /**
+     * Where a player is online.
+     */
+    public static final class Presence {
+        private final UUID uuid;
+        private final String name;
+        private final String server;
+        private final String proxy;
+
+        public Presence(UUID uuid, String name, String server, String proxy) {
+            this.uuid = uuid;
+            this.name = name;
+            this.server = server;
+            this.proxy = proxy;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getServer() {
+            return server;
+        }
+
+        public String getProxy() {
+            return proxy;
+        }
+    }
+
+    private final ProxyServer server;
+    private final RedisManager redisManager;
+    private final String proxyId;
+    private final long proxyTimeoutMillis;
+    private final int resyncEvery;
+    private final Map<UUID, Presence> byUuid = new ConcurrentHashMap<>();
+    private final Map<String, Presence> byName = new ConcurrentHashMap<>();
+    private final Map<String, Set<UUID>> byProxy = new ConcurrentHashMap<>();
+    // Players upserted or removed since the running resync began its scan; the scan may
+    // have read them before that change. Guarded by this.
+    private final Set<UUID> changedDuringResync = new HashSet<>();
+    private boolean resyncing;
+    // Proxies heartbeating into prism:proxies at the last beat
+    private volatile int liveProxies;
+    private int heartbeats;
+
+    public PresenceDirectory(ProxyServer server, RedisManager redisManager, int heartbeatSeconds,
+            int resyncSeconds, int proxyTimeoutSeconds) {
+        this.server = server;
+        this.redisManager = redisManager;
+        this.proxyId = redisManager.getProxyId();
+        int heartbeat = Math.max(1, heartbeatSeconds);
+        this.proxyTimeoutMillis = Math.max(heartbeat * 3, proxyTimeoutSeconds) * 1000L;
+        this.resyncEvery = Math.max(1, resyncSeconds / heartbeat);
+    }
+
+    /**
+     * Subscribe to change notifications and load the current network state.
+     */
+    public void start() {
+        redisManager.subscribe(CHANNEL, this::onNotification);
+        heartbeats = 0;
+        heartbeat();
+    }
+
+    public Presence find(UUID uuid) {
+        return byUuid.get(uuid);
+    }
+
+    public Presence findByName(String name) {
+        return name != null ? byName.get(name.toLowerCase(Locale.ROOT)) : null;
+    }
+
+    public Collection<Presence> getAll() {
+        return Collections.unmodifiableCollection(byUuid.values());
+    }
+
+    public int getNetworkCount() {
+        return byUuid.size();
+    }
+
+    /**
+     * Proxies that heartbeated within {@code presence.proxy-timeout-seconds}, as of the
+     * last beat; 0 until Redis has answered one.
+     */
+    public int getProxyCount() {
+        return liveProxies;
+    }
+
+    /**
+     * Refresh this proxy's liveness; every few beats also reload everyone else's
+     * players from the session hashes. Schedule every {@code presence.heartbeat-seconds}.
+     */
+    public synchronized void heartbeat() {
+        long now = System.currentTimeMillis();
+        // A slow scan is left to finish rather than overlapped
+        boolean resync = heartbeats++ % resyncEvery == 0 && !resyncing;
+        if (!resync) {
+            redisManager.submit(PROXIES_KEY, pipeline -> {
+                pipeline.zadd(PROXIES_KEY, now, proxyId);
+                return pipeline.zcount(PROXIES_KEY, now - proxyTimeoutMillis, Double.POSITIVE_INFINITY);
+            }).thenAccept(count -> liveProxies = count.intValue()).exceptionally(e -> null);
+            return;
+        }
+
+        Map<UUID, Presence> local = new HashMap<>();
+        for (Player player : server.getAllPlayers()) {
+            String serverName = player.getCurrentServer().isPresent()
+                    ? player.getCurrentServer().get().getServerInfo().getName() : "";
+            local.put(player.getUniqueId(), new Presence(player.getUniqueId(), player.getUsername(), serverName, proxyId));
+        }
+        replaceProxy(proxyId, local);
+        resyncing = true;
+        redisManager.submit(PROXIES_KEY, pipeline -> {
+            pipeline.zadd(PROXIES_KEY, now, proxyId);
+            pipeline.zremrangeByScore(PROXIES_KEY, 0, now - proxyTimeoutMillis);
+            return pipeline.zrangeByScore(PROXIES_KEY, now - proxyTimeoutMillis, Double.POSITIVE_INFINITY);
+        }).thenCompose(proxies -> {
+            liveProxies = proxies.size();
+            Map<String, Map<UUID, Presence>> rosters = new HashMap<>();
+            for (String proxy : proxies) {
+                if (!proxy.equals(proxyId)) {
+                    rosters.put(proxy, new HashMap<>());
+                }
+            }
+            return scanSessions(ScanParams.SCAN_POINTER_START, rosters);
+        }).thenAccept(this::applyRosters).whenComplete((v, e) -> {
+            // On failure Redis is degraded; the replica keeps serving what it has and resyncs later
+            synchronized (this) {
+                resyncing = false;
+                changedDuringResync.clear();
+            }
+        });
+    }
+
+    /**
+     * Remove this proxy from the directory. Call on shutdown, after the sessions of the
+     * players still online were removed.
+     */
+    public void close() {
+        redisManager.submit(PROXIES_KEY, pipeline -> {
+            pipeline.zrem(PROXIES_KEY, proxyId);
+            return pipeline.publish(CHANNEL, "X" + SEP + proxyId);
+        });
+    }
+
+    @Subscribe
+    public void onServerConnected(ServerConnectedEvent event) {
+        // The session write and its announcement are PlayerDataListener's
+        Player player = event.getPlayer();
+        upsert(new Presence(player.getUniqueId(), player.getUsername(),
+                event.getServer().getServerInfo().getName(), proxyId));
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        remove(event.getPlayer().getUniqueId(), proxyId);
+    }
+
+    // U<TAB>proxy<TAB>uuid<TAB>name<TAB>server | L<TAB>proxy<TAB>uuid | X<TAB>proxy
+    private void onNotification(String raw) {
+        String[] parts = raw.split(String.valueOf(SEP), -1);
+        if (parts.length < 2 || proxyId.equals(parts[1])) {
+            // Our own changes are applied locally when they happen
+            return;
+        }
+        try {
+            switch (parts[0]) {
+                case "U":
+                    if (parts.length >= 5) {
+                        upsert(new Presence(UUID.fromString(parts[2]), parts[3], parts[4], parts[1]));
+                    }
+                    break;
+                case "L":
+                    if (parts.length >= 3) {
+                        remove(UUID.fromString(parts[2]), parts[1]);
+                    }
+                    break;
+                case "X":
+                    replaceProxy(parts[1], Collections.emptyMap());
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            PrismLog.warn("Ignoring malformed presence notification: {}", raw);
+        }
+    }
+
+    // One SCAN page at a time; each session lands in the roster of its live proxy
+    private CompletableFuture<Map<String, Map<UUID, Presence>>> scanSessions(String cursor,
+            Map<String, Map<UUID, Presence>> rosters) {
+        ScanParams params = new ScanParams().match(SESSION_PREFIX + "*").count(SCAN_COUNT);
+        return redisManager.submit(null, pipeline -> pipeline.scan(cursor, params)).thenCompose(page -> {
+            Map<String, CompletableFuture<Map<String, String>>> pending = new HashMap<>();
+            for (String key : page.getResult()) {
+                pending.put(key, redisManager.submit(null, pipeline -> pipeline.hgetAll(key)));
+            }
+            return CompletableFuture.allOf(pending.values().toArray(new CompletableFuture[0])).thenCompose(v -> {
+                for (Map.Entry<String, CompletableFuture<Map<String, String>>> entry : pending.entrySet()) {
+                    addSession(rosters, entry.getKey(), entry.getValue().join());
+                }
+                return page.isCompleteIteration() ? CompletableFuture.completedFuture(rosters)
+                        : scanSessions(page.getCursor(), rosters);
+            });
+        });
+    }
+
+    private static void addSession(Map<String, Map<UUID, Presence>> rosters, String key, Map<String, String> session) {
+        String proxy = session.get("proxy");
+        String name = session.get("name");
+        // Expired since the scan, or owned by this proxy or one that stopped heartbeating
+        Map<UUID, Presence> roster = proxy != null ? rosters.get(proxy) : null;
+        if (roster == null || name == null) return;
+        try {
+            UUID uuid = UUID.fromString(key.substring(SESSION_PREFIX.length()));
+            roster.put(uuid, new Presence(uuid, name, session.getOrDefault("server", ""), proxy));
+        } catch (IllegalArgumentException ignored) {
+            // Not a session key
+        }
+    }
+
+    private synchronized void applyRosters(Map<String, Map<UUID, Presence>> rosters) {
+        // Taken before merging, which marks the players it touches itself
+        Set<UUID> skip = new HashSet<>(changedDuringResync);
+        for (Map.Entry<String, Map<UUID, Presence>> entry : rosters.entrySet()) {
+            mergeProxy(entry.getKey(), entry.getValue(), skip);
+        }
+        // Proxies that stopped heartbeating
+        for (String proxy : new ArrayList<>(byProxy.keySet())) {
+            if (!proxy.equals(proxyId) && !rosters.containsKey(proxy)) {
+                mergeProxy(proxy, Collections.emptyMap(), skip);
+            }
+        }
+    }
+
+    // Like replaceProxy, except that players changed while the scan ran keep their newer state
+    private void mergeProxy(String proxy, Map<UUID, Presence> roster, Set<UUID> skip) {
+        for (Presence presence : roster.values()) {
+            if (!skip.contains(presence.getUuid())) {
+                upsert(presence);
+            }
+        }
+        Set<UUID> current = byProxy.get(proxy);
+        if (current != null) {
+            for (UUID uuid : current.toArray(new UUID[0])) {
+                if (!roster.containsKey(uuid) && !skip.contains(uuid)) {
+                    remove(uuid, proxy);
+                }
+            }
+        }
+    }
+
+    // For rosters known to be complete: this proxy's own players, or a proxy that left
+    private synchronized void replaceProxy(String proxy, Map<UUID, Presence> roster) {
+        for (Presence presence : roster.values()) {
+            upsert(presence);
+        }
+        Set<UUID> current = byProxy.get(proxy);
+        if (current != null) {
+            for (UUID uuid : current.toArray(new UUID[0])) {
+                if (!roster.containsKey(uuid)) {
+                    remove(uuid, proxy);
+                }
+            }
+        }
+    }
+
+    private synchronized void upsert(Presence presence) {
+        Presence old = byUuid.put(presence.getUuid(), presence);
+        if (old != null) {
+            unindex(old);
+        }
+        byName.put(presence.getName().toLowerCase(Locale.ROOT), presence);
+        byProxy.computeIfAbsent(presence.getProxy(), k -> ConcurrentHashMap.newKeySet()).add(presence.getUuid());
+        if (resyncing) {
+            changedDuringResync.add(presence.getUuid());
+        }
+    }
+
+    private synchronized void remove(UUID uuid, String proxy) {
+        Presence old = byUuid.get(uuid);
+        // The player may already have moved to another proxy
+        if (old == null || !old.getProxy().equals(proxy)) return;
+        byUuid.remove(uuid);
+        unindex(old);
+        if (resyncing) {
+            changedDuringResync.add(uuid);
+        }
+    }
+
+    private void unindex(Presence old) {
+        byName.remove(old.getName().toLowerCase(Locale.ROOT), old);
+        Set<UUID> members = byProxy.get(old.getProxy());
+        if (members != null) {
+            members.remove(old.getUuid());
+            if (members.isEmpty()) {
+                byProxy.remove(old.getProxy());
+            }
+        }
+    }
+
+    /**
+     * Names starting with {@code prefix}, for tab completion.
+     */
+    public List<String> suggestNames(String prefix, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        List<String> out = new ArrayList<>();
+        for (Presence presence : byUuid.values()) {
+            if (presence.getName().toLowerCase(Locale.ROOT).startsWith(lower)) {
+                out.add(presence.getName());
+                if (out.size() >= limit) break;
+            }
+        }
+        return out;
+    }
+}
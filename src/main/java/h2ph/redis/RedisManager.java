@@ -1,41 +1,104 @@
 package h2ph.redis;
 
 import h2ph.config.ConfigManager;
+import h2ph.util.CircuitBreaker;
+import h2ph.util.PrismLog;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.List;
 import java.util.function.Consumer;
-import redis.clients.jedis.JedisPubSub;
-import com.google.gson.Gson;
+import redis.clients.jedis.params.XAddParams;
 
 public class RedisManager {
 
+    // Session hash, its TTL and the name index in one step, so readers never see half a
+    // session; the presence announcement goes out with it (see PresenceDirectory).
+    private static final String WRITE_SESSION_SCRIPT =
+            "redis.call('HSET', KEYS[1], 'name', ARGV[1], 'server', ARGV[2], 'proxy', ARGV[3], 'since', ARGV[4])\n" +
+            "redis.call('EXPIRE', KEYS[1], ARGV[5])\n" +
+            "redis.call('SET', KEYS[2], ARGV[6], 'EX', ARGV[5])\n" +
+            "redis.call('PUBLISH', ARGV[7], 'U\\t' .. ARGV[3] .. '\\t' .. ARGV[6] .. '\\t' .. ARGV[1] .. '\\t' .. ARGV[2])\n" +
+            "return 1";
+    // Deletes a session only if it still belongs to this proxy, so a disconnect that
+    // races with a join on another proxy cannot wipe the newer session.
+    private static final String REMOVE_SESSION_SCRIPT =
+            "local owner = redis.call('HGET', KEYS[1], 'proxy')\n" +
+            "if owner == false or owner == ARGV[1] then\n" +
+            "  redis.call('DEL', KEYS[1])\n" +
+            "  if redis.call('GET', KEYS[2]) == ARGV[2] then redis.call('DEL', KEYS[2]) end\n" +
+            "  redis.call('PUBLISH', ARGV[3], 'L\\t' .. ARGV[1] .. '\\t' .. ARGV[2])\n" +
+            "end\n" +
+            "return 1";
+
     private final ConfigManager configManager;
+    private final String proxyId;
     private JedisPool jedisPool;
+    private SubscriptionManager subscriptions;
+    private final List<StreamConsumer> streams = new CopyOnWriteArrayList<>();
+    private HostAndPort address;
+    private String username;
+    private String password;
+    private int timeout;
+    private final long budgetNanos;
+    private final CircuitBreaker breaker;
+    private final int sessionTtlSeconds;
+    private final long streamMaxLength;
+    // Keeps writes off event and scheduler threads and pipelines them; a player's
+    // connect/disconnect writes share a routing key so they stay in order.
+    private CommandQueue commands;
 
-    public RedisManager(ConfigManager configManager) {
+    public RedisManager(ConfigManager configManager, String proxyId) {
         this.configManager = configManager;
+        this.proxyId = proxyId;
+        this.sessionTtlSeconds = Math.max(15, configManager.getInt("redis.session-ttl-seconds", 120));
+        this.streamMaxLength = Math.max(100, configManager.getInt("team-chat.stream-max-length", 10000));
+        this.budgetNanos = configManager.getInt("resilience.redis-budget-ms", 100) * 1_000_000L;
+        this.breaker = new CircuitBreaker("Redis",
+                configManager.getInt("resilience.failure-threshold", 5),
+                configManager.getInt("resilience.open-seconds", 10) * 1000L,
+                state -> {
+                    if (state == CircuitBreaker.State.OPEN) {
+                        PrismLog.warn("Redis circuit opened: skipping session/ping writes and cross-proxy publishes until it recovers.");
+                    } else if (state == CircuitBreaker.State.CLOSED) {
+                        PrismLog.info("Redis circuit closed: Redis calls resumed.");
+                    }
+                });
         connect();
     }
 
     private void connect() {
         String host = configManager.getString("redis.host", "localhost");
         int port = configManager.getInt("redis.port", 6379);
-        String username = configManager.getString("redis.username", "");
-        String password = configManager.getString("redis.password", "");
+        username = configManager.getString("redis.username", "");
+        password = configManager.getString("redis.password", "");
+        address = new HostAndPort(host, port);
 
         JedisPoolConfig poolConfig = new JedisPoolConfig();
         poolConfig.setMaxTotal(16);
         poolConfig.setMaxIdle(8);
         poolConfig.setMinIdle(2);
-        poolConfig.setTestOnBorrow(true);
+        // Validate idle connections in the background instead of a PING on every borrow;
+        // broken connections surface as command failures and feed the circuit breaker.
+        poolConfig.setTestOnBorrow(false);
+        poolConfig.setTestWhileIdle(true);
+        poolConfig.setTimeBetweenEvictionRuns(Duration.ofSeconds(30));
         poolConfig.setJmxEnabled(false);
 
-        // Calculate timeout (e.g., 2 seconds)
-        int timeout = 2000;
+        // Socket timeout doubles as the hard upper bound for any single command
+        timeout = Math.max(50, configManager.getInt("resilience.redis-timeout-ms", 500));
+        poolConfig.setMaxWait(Duration.ofMillis(timeout));
 
         if (!password.isEmpty()) {
             if (!username.isEmpty()) {
@@ -48,119 +111,233 @@ public class RedisManager {
         } else {
             jedisPool = new JedisPool(poolConfig, host, port, timeout);
         }
+
+        commands = new CommandQueue(this::getResource, breaker, budgetNanos,
+                configManager.getInt("redis.io-threads", 2),
+                configManager.getInt("redis.command-queue-size", 10000),
+                configManager.getInt("redis.max-pipeline", 256));
+
+        // Pub/sub runs on its own connection so a blocked subscriber never holds a pool slot
+        subscriptions = new SubscriptionManager(host, port, username, password, timeout, proxyId,
+                configManager.getInt("redis.subscriber-threads", 2));
     }
 
-    public void close() {
+    /**
+     * Send what is still queued, then unsubscribe and close the pool.
+     *
+     * @param timeoutMillis how long queued commands may take to flush
+     * @return the number of queued commands that were dropped
+     */
+    public int close(long timeoutMillis) {
+        int dropped = commands.close(timeoutMillis);
+        // Groups are kept: the proxy id is fixed, so the next start resumes where this one stopped
+        for (StreamConsumer stream : streams) {
+            stream.close(false);
+        }
+        subscriptions.close();
         if (jedisPool != null && !jedisPool.isClosed()) {
             jedisPool.close();
         }
+        return dropped;
     }
 
     public Jedis getResource() {
         return jedisPool.getResource();
     }
 
-    // Key: prism:player:uuid:<gamertag_lowercase> -> <uuid>
-    public void setPlayerUuid(String gamertag, UUID uuid) {
-        try (Jedis jedis = getResource()) {
-            String key = "prism:player:uuid:" + gamertag.toLowerCase();
-            jedis.set(key, uuid.toString());
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Open a connection outside the pool, for long blocking reads.
+     */
+    public Jedis openConnection(String clientName, int socketTimeoutMillis) {
+        DefaultJedisClientConfig.Builder builder = DefaultJedisClientConfig.builder()
+                .connectionTimeoutMillis(timeout)
+                .socketTimeoutMillis(socketTimeoutMillis)
+                .clientName(clientName);
+        if (!password.isEmpty()) {
+            if (!username.isEmpty()) {
+                builder.user(username);
+            }
+            builder.password(password);
         }
+        return new Jedis(address, builder.build());
     }
 
-    // Key: prism:player:gamertag:<uuid> -> <gamertag>
-    public void setPlayerGamertag(UUID uuid, String gamertag) {
-        try (Jedis jedis = getResource()) {
-            String key = "prism:player:gamertag:" + uuid.toString();
-            jedis.set(key, gamertag);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * False while the circuit breaker is open. Optional Redis work (ping updates,
+     * cross-proxy publishes) should be skipped rather than queued up.
+     */
+    public boolean isAvailable() {
+        return breaker.isAvailable();
     }
 
-    // Key: prism:player:server:<uuid> -> <server_name>
-    public void setPlayerServer(UUID uuid, String serverName) {
-        try (Jedis jedis = getResource()) {
-            String key = "prism:player:server:" + uuid.toString();
-            jedis.set(key, serverName);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
     }
 
-    // Key: prism:player:ping:<uuid> -> <ping_ms> with TTL 10s
-    public void setPlayerPing(UUID uuid, long ping) {
-        try (Jedis jedis = getResource()) {
-            String key = "prism:player:ping:" + uuid.toString();
-            jedis.setex(key, 10, String.valueOf(ping));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public String getProxyId() {
+        return proxyId;
     }
 
-    public void removePlayerServer(UUID uuid) {
-        try (Jedis jedis = getResource()) {
-            jedis.del("prism:player:server:" + uuid.toString());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    public int getSessionTtlSeconds() {
+        return sessionTtlSeconds;
     }
 
+    // Session hash: prism:session:<uuid> -> {name, server, proxy, since}; the one record
+    // of who is online where, which PresenceDirectory replicates
+    // Name index:   prism:player:uuid:<gamertag_lowercase> -> <uuid>
+    // Both carry a TTL that refreshSessions() keeps alive while the player is online,
+    // so sessions left behind by a crashed proxy expire on their own.
 
-    public void removePlayerPing(UUID uuid) {
-        try (Jedis jedis = getResource()) {
-            jedis.del("prism:player:ping:" + uuid.toString());
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Submit a command to the auto-pipelining queue. Never blocks.
+     *
+     * @param routingKey commands with equal keys execute in submission order; null if
+     *                   order does not matter
+     */
+    public <T> CompletableFuture<T> submit(String routingKey, CommandQueue.Command<T> command) {
+        return commands.submit(routingKey, command);
+    }
+
+    /**
+     * One round trip through the command queue. The pool connects lazily, so this is the
+     * first point an unreachable Redis shows up; completes exceptionally in that case.
+     */
+    public CompletableFuture<Boolean> probe() {
+        return commands.submit(null, pipeline -> pipeline.exists("prism:proxies"));
+    }
+
+    public CommandQueue getCommandQueue() {
+        return commands;
+    }
+
+    /**
+     * Write a player's session hash and name index atomically (one script, like MULTI/EXEC
+     * but able to share the pipeline) and announce it to the presence replicas. Queued,
+     * never blocks the caller.
+     */
+    public CompletableFuture<Object> writeSession(UUID uuid, String gamertag, String serverName) {
+        return commands.submit(uuid.toString(), pipeline -> pipeline.eval(WRITE_SESSION_SCRIPT,
+                Arrays.asList("prism:session:" + uuid, "prism:player:uuid:" + gamertag.toLowerCase()),
+                Arrays.asList(gamertag, serverName, proxyId, String.valueOf(System.currentTimeMillis()),
+                        String.valueOf(sessionTtlSeconds), uuid.toString(), PresenceDirectory.CHANNEL)));
+    }
+
+    /**
+     * Remove a player's session and name index and announce the departure, unless
+     * another proxy already owns the session. Queued behind any earlier write for the
+     * same player.
+     */
+    public CompletableFuture<Object> removeSession(UUID uuid, String gamertag) {
+        return commands.submit(uuid.toString(), pipeline -> pipeline.eval(REMOVE_SESSION_SCRIPT,
+                Arrays.asList("prism:session:" + uuid, "prism:player:uuid:" + gamertag.toLowerCase()),
+                Arrays.asList(proxyId, uuid.toString(), PresenceDirectory.CHANNEL)));
     }
 
-    // Publish team chat payload JSON to channel
-    public void publishTeamChat(String channel, String jsonPayload) {
-        try (Jedis jedis = getResource()) {
-            jedis.publish(channel, jsonPayload);
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Extend the TTL of all given sessions.
+     *
+     * @param players uuid -> gamertag of players online on this proxy
+     */
+    public void refreshSessions(Map<UUID, String> players) {
+        for (Map.Entry<UUID, String> entry : players.entrySet()) {
+            String sessionKey = "prism:session:" + entry.getKey();
+            String nameKey = "prism:player:uuid:" + entry.getValue().toLowerCase();
+            commands.submit(entry.getKey().toString(), pipeline -> {
+                pipeline.expire(sessionKey, sessionTtlSeconds);
+                return pipeline.expire(nameKey, sessionTtlSeconds);
+            });
         }
     }
 
-    // Subscribe to a channel and forward messages to the provided consumer on a new thread
+    /**
+     * Apply a batch of ping changes to this proxy's ping hash: one HSET for all changed
+     * players, one HDEL for departed players and one EXPIRE, regardless of player count.
+     *
+     * @param onFailure run if the write was skipped or failed, so the caller can resend
+     */
+    public void publishPings(String key, Map<String, String> changed, String[] removed, int ttlSeconds, Runnable onFailure) {
+        commands.submit(key, pipeline -> {
+            if (!changed.isEmpty()) {
+                pipeline.hset(key, changed);
+            }
+            if (removed.length > 0) {
+                pipeline.hdel(key, removed);
+            }
+            return pipeline.expire(key, ttlSeconds);
+        }).whenComplete((result, error) -> {
+            if (error != null && onFailure != null) {
+                onFailure.run();
+            }
+        });
+    }
+
+    // Publish an encoded payload (see ChatCodec) to a channel
+    public CompletableFuture<Long> publish(String channel, byte[] payload) {
+        byte[] channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        return commands.submit(channel, pipeline -> pipeline.publish(channelBytes, payload));
+    }
+
+    /**
+     * Append an encoded payload to a stream, trimming it to about
+     * {@code team-chat.stream-max-length} entries.
+     */
+    public CompletableFuture<byte[]> appendToStream(String key, byte[] payload) {
+        Map<byte[], byte[]> fields = new HashMap<>(2);
+        fields.put(StreamConsumer.PAYLOAD_FIELD, payload);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        return commands.submit(key, pipeline -> pipeline.xadd(keyBytes,
+                XAddParams.xAddParams().maxLen(streamMaxLength).approximateTrimming(), fields));
+    }
+
+    /**
+     * Consume a stream through this proxy's consumer group, handing each payload to
+     * {@code onMessage} on the stream's reader thread. The group is named after the
+     * proxy id, so callers should only use streams with a fixed {@code proxy.id}.
+     */
+    public StreamConsumer consumeStream(String key, Consumer<byte[]> onMessage) {
+        StreamConsumer stream = new StreamConsumer(this, key, "proxy:" + proxyId, proxyId,
+                configManager.getInt("team-chat.stream-batch-size", 100),
+                configManager.getInt("team-chat.stream-block-ms", 2000),
+                configManager.getInt("team-chat.stream-replay-max-age-seconds", 60) * 1000L,
+                onMessage);
+        streams.add(stream);
+        stream.start();
+        return stream;
+    }
+
+    /**
+     * Stop a consumer started by {@link #consumeStream} because this proxy no longer
+     * needs the stream. Its consumer group is destroyed so entries stop piling up in a
+     * group nobody reads; consuming the stream again starts a fresh group.
+     */
+    public void stopStream(StreamConsumer stream) {
+        streams.remove(stream);
+        stream.close(true);
+    }
+
+    // Subscribe to a channel; messages are delivered in order on a dispatcher thread
     public void subscribe(String channel, Consumer<String> onMessage) {
-        Thread t = new Thread(() -> {
-            try (Jedis jedis = getResource()) {
-                JedisPubSub pubSub = new JedisPubSub() {
-                    @Override
-                    public void onMessage(String ch, String message) {
-                        if (onMessage != null) {
-                            try {
-                                onMessage.accept(message);
-                            } catch (Exception ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                    }
-                };
+        subscriptions.subscribe(channel, (ch, payload) -> onMessage.accept(new String(payload, StandardCharsets.UTF_8)));
+    }
 
-                jedis.subscribe(pubSub, channel);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }, "prism-redis-sub-" + channel);
+    // Subscribe to a channel carrying binary payloads
+    public void subscribeBinary(String channel, Consumer<byte[]> onMessage) {
+        subscriptions.subscribe(channel, (ch, payload) -> onMessage.accept(payload));
+    }
 
-        t.setDaemon(true);
-        t.start();
+    public void unsubscribe(String channel) {
+        subscriptions.unsubscribe(channel);
     }
 
-    public String makeTeamChatPayload(String sender, String teamId, String teamName, String message, String origin) {
-        Gson g = new Gson();
-        java.util.Map<String, String> map = new java.util.HashMap<>();
-        map.put("sender", sender);
-        map.put("teamId", teamId);
-        map.put("teamName", teamName);
-        map.put("message", message);
-        map.put("origin", origin != null ? origin : "");
-        return g.toJson(map);
+    public SubscriptionManager getSubscriptions() {
+        return subscriptions;
+    }
+
+    public List<String> getSubscriptionStats() {
+        List<String> stats = subscriptions.getStats();
+        for (StreamConsumer stream : streams) {
+            stats.add(stream.describe());
+        }
+        return stats;
     }
 }
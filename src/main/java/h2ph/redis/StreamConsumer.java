@@ -0,0 +1,265 @@
+package h2ph.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import h2ph.util.PrismLog;
+
+/**
+ * Reads a Redis stream through this proxy's own consumer group, so every proxy sees
+ * every entry and nothing published while it was disconnected is lost.
+ *
+ * Entries are read in blocking batches on a dedicated connection and acknowledged in
+ * one XACK after the batch was handed to the handler. After a (re)connect the
+ * consumer first replays its pending entries (delivered but never acknowledged), then
+ * continues with new entries from where the group left off. Entries older than the
+ * replay limit (e.g. after a long outage) are acknowledged without being delivered.
+ */
+public class StreamConsumer {
+
+    static final byte[] PAYLOAD_FIELD = "d".getBytes(StandardCharsets.UTF_8);
+
+    private static final long BASE_BACKOFF_MS = 250L;
+    private static final long MAX_BACKOFF_MS = 30000L;
+    private static final byte[] PENDING = "0".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEW_ENTRIES = ">".getBytes(StandardCharsets.UTF_8);
+
+    private final RedisManager redisManager;
+    private final String key;
+    private final String group;
+    private final String consumer;
+    private final int batchSize;
+    private final int blockMillis;
+    private final long maxReplayAgeMillis;
+    private final Consumer<byte[]> handler;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean running = true;
+    private volatile boolean destroyGroupOnExit;
+    private volatile Jedis connection;
+    private Thread thread;
+
+    public StreamConsumer(RedisManager redisManager, String key, String group, String consumer, int batchSize,
+            int blockMillis, long maxReplayAgeMillis, Consumer<byte[]> handler) {
+        this.redisManager = redisManager;
+        this.key = key;
+        this.group = group;
+        this.consumer = consumer;
+        this.batchSize = Math.max(1, batchSize);
+        this.blockMillis = Math.max(100, blockMillis);
+        this.maxReplayAgeMillis = maxReplayAgeMillis;
+        this.handler = handler;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "prism-stream-" + key);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop reading. With {@code destroyGroup} the consumer group is removed as well,
+     * for streams this proxy stops reading for good; the reader thread does that on its
+     * way out, so this never blocks.
+     */
+    public void close(boolean destroyGroup) {
+        destroyGroupOnExit = destroyGroup;
+        running = false;
+        Jedis jedis = connection;
+        if (jedis != null) {
+            // Breaks a blocking XREADGROUP
+            jedis.disconnect();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public String describe() {
+        return String.format("%s (group %s): delivered=%d, replayed=%d, expired=%d, errors=%d",
+                key, group, delivered.sum(), replayed.sum(), expired.sum(), errors.sum());
+    }
+
+    private void run() {
+        int failures = 0;
+        while (running) {
+            try (Jedis jedis = redisManager.openConnection("prism-stream-" + consumer, blockMillis + 5000)) {
+                connection = jedis;
+                ensureGroup(jedis);
+                if (failures > 0) {
+                    PrismLog.info("Reconnected to stream {}, replaying pending entries.", key);
+                    failures = 0;
+                }
+                // Replay whatever was delivered to us but never acknowledged
+                byte[] cursor = PENDING;
+                while (running) {
+                    List<Entry> batch = read(jedis, cursor, false);
+                    if (batch.isEmpty()) break;
+                    process(jedis, batch, true);
+                    cursor = batch.get(batch.size() - 1).id;
+                }
+                while (running) {
+                    List<Entry> batch = read(jedis, NEW_ENTRIES, true);
+                    if (!batch.isEmpty()) {
+                        process(jedis, batch, false);
+                    }
+                }
+            } catch (Exception e) {
+                if (!running) break;
+                if (e instanceof JedisDataException && String.valueOf(e.getMessage()).startsWith("NOGROUP")) {
+                    // Stream or group was deleted; recreate on the next attempt right away
+                    continue;
+                }
+                if (failures == 0) {
+                    PrismLog.warn("Lost connection to stream {}, reconnecting: {}", key, e.getMessage());
+                }
+            } finally {
+                connection = null;
+            }
+            if (!running) break;
+            failures++;
+            long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(failures, 7));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS, cap + 1));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        if (destroyGroupOnExit) {
+            destroyGroup();
+        }
+    }
+
+    private void destroyGroup() {
+        try (Jedis pooled = redisManager.getResource()) {
+            pooled.sendCommand(Protocol.Command.XGROUP, "DESTROY", key, group);
+        } catch (Exception e) {
+            PrismLog.warn("Could not remove consumer group {} from stream {}: {}", group, key, e.getMessage());
+        }
+    }
+
+    private void ensureGroup(Jedis jedis) {
+        try {
+            // "$": a new group starts with entries published from now on
+            jedis.sendCommand(Protocol.Command.XGROUP, "CREATE", key, group, "$", "MKSTREAM");
+        } catch (JedisDataException e) {
+            if (!String.valueOf(e.getMessage()).startsWith("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private List<Entry> read(Jedis jedis, byte[] id, boolean block) {
+        List<byte[]> args = new ArrayList<>(10);
+        args.add(bytes("GROUP"));
+        args.add(bytes(group));
+        args.add(bytes(consumer));
+        args.add(bytes("COUNT"));
+        args.add(bytes(String.valueOf(batchSize)));
+        if (block) {
+            args.add(bytes("BLOCK"));
+            args.add(bytes(String.valueOf(blockMillis)));
+        }
+        args.add(bytes("STREAMS"));
+        args.add(bytes(key));
+        args.add(id);
+        Object reply = jedis.sendCommand(Protocol.Command.XREADGROUP, args.toArray(new byte[0][]));
+        return parse(reply);
+    }
+
+    // RESP2 reply: [[key, [[id, [field, value, ...] | nil], ...]]] or nil on timeout
+    private static List<Entry> parse(Object reply) {
+        List<Entry> entries = new ArrayList<>();
+        if (!(reply instanceof List)) return entries;
+        for (Object stream : (List<?>) reply) {
+            if (!(stream instanceof List) || ((List<?>) stream).size() < 2) continue;
+            Object items = ((List<?>) stream).get(1);
+            if (!(items instanceof List)) continue;
+            for (Object item : (List<?>) items) {
+                if (!(item instanceof List) || ((List<?>) item).isEmpty()) continue;
+                List<?> parts = (List<?>) item;
+                byte[] id = (byte[]) parts.get(0);
+                byte[] payload = null;
+                Object fields = parts.size() > 1 ? parts.get(1) : null;
+                if (fields instanceof List) {
+                    List<?> kv = (List<?>) fields;
+                    for (int i = 0; i + 1 < kv.size(); i += 2) {
+                        if (Arrays.equals((byte[]) kv.get(i), PAYLOAD_FIELD)) {
+                            payload = (byte[]) kv.get(i + 1);
+                            break;
+                        }
+                    }
+                }
+                entries.add(new Entry(id, payload));
+            }
+        }
+        return entries;
+    }
+
+    private void process(Jedis jedis, List<Entry> batch, boolean replay) {
+        long now = System.currentTimeMillis();
+        byte[][] ackArgs = new byte[batch.size() + 2][];
+        ackArgs[0] = bytes(key);
+        ackArgs[1] = bytes(group);
+        int i = 2;
+        for (Entry entry : batch) {
+            ackArgs[i++] = entry.id;
+            // Pending entries may have been trimmed away (nil payload); just ack them
+            if (entry.payload == null) continue;
+            if (maxReplayAgeMillis > 0 && now - entry.timestamp() > maxReplayAgeMillis) {
+                expired.increment();
+                continue;
+            }
+            try {
+                handler.accept(entry.payload);
+                delivered.increment();
+                if (replay) {
+                    replayed.increment();
+                }
+            } catch (Exception e) {
+                // Acked anyway so one bad entry cannot be replayed forever
+                errors.increment();
+                PrismLog.error("Stream " + key + " handler failed", e);
+            }
+        }
+        jedis.sendCommand(Protocol.Command.XACK, ackArgs);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Entry {
+        private final byte[] id;
+        private final byte[] payload;
+
+        private Entry(byte[] id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+
+        // Stream ids are "<epoch millis>-<seq>"
+        private long timestamp() {
+            long ms = 0L;
+            for (byte b : id) {
+                if (b == '-') break;
+                ms = ms * 10 + (b - '0');
+            }
+            return ms;
+        }
+    }
+}
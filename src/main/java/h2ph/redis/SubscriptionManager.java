@@ -0,0 +1,407 @@
+package h2ph.redis;
+
+import h2ph.jfr.PubSubDeliveryEvent;
+import h2ph.metrics.Histogram;
+import h2ph.metrics.Metrics;
+import h2ph.util.PrismLog;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisClientConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Carries every pub/sub channel and pattern of this proxy over one dedicated Redis
+ * connection (not taken from the command pool).
+ *
+ * The socket thread only reads and hands messages off; handlers run on a small
+ * dispatcher pool, serialized per subscription so each channel keeps its order. If the
+ * connection drops it is re-established with jittered exponential backoff and all
+ * channels and patterns are subscribed again. A watchdog pings the connection and
+ * forces a reconnect if it goes silent.
+ *
+ * Payloads are delivered as raw bytes; text channels decode them in their handler.
+ */
+public class SubscriptionManager {
+
+    private static final long BASE_BACKOFF_MS = 250L;
+    private static final long MAX_BACKOFF_MS = 30000L;
+    private static final long HEALTH_CHECK_MS = 15000L;
+    private static final int MAX_QUEUED_PER_SUBSCRIPTION = 10000;
+    private static final int DRAIN_BATCH = 64;
+    private static final Histogram DELIVERY_LAG = Metrics.histogram("prism_redis_pubsub_lag_seconds", "Time from receiving a pub/sub message to handling it.");
+
+    private final HostAndPort address;
+    private final JedisClientConfig clientConfig;
+    // Always subscribed so the initial SUBSCRIBE is never empty; also a hook for resync.
+    private final byte[] controlChannel;
+    private final Map<String, Subscription> channels = new ConcurrentHashMap<>();
+    private final Map<String, Subscription> patterns = new ConcurrentHashMap<>();
+    private final ExecutorService dispatcher;
+    private final ScheduledExecutorService watchdog;
+    private final Object commandLock = new Object();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile Jedis connection;
+    private volatile PubSub pubSub;
+    private volatile long lastActivity;
+    private volatile int failures;
+    private Thread ioThread;
+
+    public SubscriptionManager(String host, int port, String username, String password, int timeoutMillis,
+            String proxyId, int dispatcherThreads) {
+        this.address = new HostAndPort(host, port);
+        DefaultJedisClientConfig.Builder builder = DefaultJedisClientConfig.builder()
+                .connectionTimeoutMillis(timeoutMillis)
+                .socketTimeoutMillis(timeoutMillis)
+                .clientName("prism-sub-" + proxyId);
+        if (!password.isEmpty()) {
+            if (!username.isEmpty()) {
+                builder.user(username);
+            }
+            builder.password(password);
+        }
+        this.clientConfig = builder.build();
+        this.controlChannel = ("prism:control:" + proxyId).getBytes(StandardCharsets.UTF_8);
+
+        AtomicInteger threadIds = new AtomicInteger();
+        this.dispatcher = Executors.newFixedThreadPool(Math.max(1, dispatcherThreads), r -> {
+            Thread t = new Thread(r, "prism-redis-dispatch-" + threadIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "prism-redis-sub-health");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Subscribe to an exact channel. The handler receives (channel, payload).
+     */
+    public void subscribe(String channel, BiConsumer<String, byte[]> handler) {
+        channels.put(channel, new Subscription(channel, handler));
+        ensureStarted();
+        PubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            sendCommand(() -> ps.subscribe(bytes(channel)));
+        }
+    }
+
+    /**
+     * Subscribe to a glob pattern. The handler receives (channel, payload).
+     */
+    public void psubscribe(String pattern, BiConsumer<String, byte[]> handler) {
+        patterns.put(pattern, new Subscription(pattern, handler));
+        ensureStarted();
+        PubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            sendCommand(() -> ps.psubscribe(bytes(pattern)));
+        }
+    }
+
+    public void unsubscribe(String channel) {
+        if (channels.remove(channel) == null) return;
+        PubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            sendCommand(() -> ps.unsubscribe(bytes(channel)));
+        }
+    }
+
+    public void punsubscribe(String pattern) {
+        if (patterns.remove(pattern) == null) return;
+        PubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            sendCommand(() -> ps.punsubscribe(bytes(pattern)));
+        }
+    }
+
+    public boolean isConnected() {
+        PubSub ps = pubSub;
+        return ps != null && ps.isSubscribed();
+    }
+
+    public void close() {
+        running = false;
+        watchdog.shutdownNow();
+        PubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) {
+            try {
+                sendCommand(() -> {
+                    ps.unsubscribe();
+                    ps.punsubscribe();
+                });
+            } catch (Exception ignored) {
+                // Closing anyway
+            }
+        }
+        Jedis jedis = connection;
+        if (jedis != null) {
+            jedis.disconnect();
+        }
+        if (ioThread != null) {
+            ioThread.interrupt();
+        }
+        dispatcher.shutdown();
+    }
+
+    /**
+     * One line per channel/pattern with delivery counters and handler lag.
+     */
+    public List<String> getStats() {
+        List<String> lines = new ArrayList<>();
+        for (Subscription sub : channels.values()) {
+            lines.add(sub.describe());
+        }
+        for (Subscription sub : patterns.values()) {
+            lines.add(sub.describe() + " (pattern)");
+        }
+        return lines;
+    }
+
+    private void ensureStarted() {
+        if (!started.compareAndSet(false, true)) return;
+        ioThread = new Thread(this::runLoop, "prism-redis-sub");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        watchdog.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_MS, HEALTH_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void runLoop() {
+        while (running) {
+            Jedis jedis = null;
+            try {
+                jedis = new Jedis(address, clientConfig);
+                connection = jedis;
+                PubSub ps = new PubSub();
+                pubSub = ps;
+                lastActivity = System.nanoTime();
+                // Blocks until every channel is unsubscribed or the connection breaks
+                jedis.subscribe(ps, controlChannel);
+            } catch (Exception e) {
+                if (running && failures == 0) {
+                    PrismLog.warn("Redis subscriber connection lost, reconnecting: {}", e.getMessage());
+                }
+            } finally {
+                pubSub = null;
+                connection = null;
+                if (jedis != null) {
+                    try {
+                        jedis.close();
+                    } catch (Exception ignored) {
+                        // Already broken
+                    }
+                }
+            }
+            if (!running) break;
+            int attempt = ++failures;
+            // Full jitter: spread reconnects of all proxies after a Redis restart
+            long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 7));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MS, cap + 1));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void checkHealth() {
+        PubSub ps = pubSub;
+        if (ps == null || !ps.isSubscribed()) return;
+        if (System.nanoTime() - lastActivity > TimeUnit.MILLISECONDS.toNanos(HEALTH_CHECK_MS * 3)) {
+            PrismLog.warn("Redis subscriber connection went silent, forcing reconnect.");
+            forceReconnect();
+            return;
+        }
+        try {
+            sendCommand(ps::ping);
+        } catch (Exception e) {
+            forceReconnect();
+        }
+    }
+
+    private void forceReconnect() {
+        Jedis jedis = connection;
+        if (jedis != null) {
+            // Breaks the blocking read on the socket thread, which then reconnects
+            jedis.disconnect();
+        }
+    }
+
+    private static byte[] bytes(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[][] bytes(String[] names) {
+        byte[][] out = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            out[i] = bytes(names[i]);
+        }
+        return out;
+    }
+
+    // Commands on a subscribed connection are written from several threads
+    private void sendCommand(Runnable command) {
+        synchronized (commandLock) {
+            command.run();
+        }
+    }
+
+    private final class PubSub extends BinaryJedisPubSub {
+
+        @Override
+        public void onSubscribe(byte[] channel, int subscribedChannels) {
+            lastActivity = System.nanoTime();
+            if (!Arrays.equals(controlChannel, channel)) return;
+            // (Re)connected: subscribe everything registered so far
+            String[] chs = channels.keySet().toArray(new String[0]);
+            String[] pts = patterns.keySet().toArray(new String[0]);
+            sendCommand(() -> {
+                if (chs.length > 0) subscribe(bytes(chs));
+                if (pts.length > 0) psubscribe(bytes(pts));
+            });
+            if (failures > 0) {
+                PrismLog.info("Redis subscriber reconnected, resubscribed {} channel(s) and {} pattern(s).",
+                        chs.length, pts.length);
+                failures = 0;
+            }
+        }
+
+        @Override
+        public void onMessage(byte[] channel, byte[] message) {
+            lastActivity = System.nanoTime();
+            String name = new String(channel, StandardCharsets.UTF_8);
+            Subscription sub = channels.get(name);
+            if (sub != null) {
+                sub.enqueue(name, message);
+            }
+        }
+
+        @Override
+        public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+            lastActivity = System.nanoTime();
+            Subscription sub = patterns.get(new String(pattern, StandardCharsets.UTF_8));
+            if (sub != null) {
+                sub.enqueue(new String(channel, StandardCharsets.UTF_8), message);
+            }
+        }
+
+        @Override
+        public void onPong(byte[] pattern) {
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * A channel or pattern with its handler, a serial delivery queue and metrics.
+     */
+    private final class Subscription {
+        private final String name;
+        private final BiConsumer<String, byte[]> handler;
+        private final Queue<Delivery> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder handled = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalLagNanos = new LongAdder();
+        private final AtomicLong maxLagNanos = new AtomicLong();
+        private final long createdAt = System.nanoTime();
+
+        private Subscription(String name, BiConsumer<String, byte[]> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        private void enqueue(String channel, byte[] message) {
+            received.increment();
+            bytesReceived.add(message.length);
+            if (queued.incrementAndGet() > MAX_QUEUED_PER_SUBSCRIPTION) {
+                queued.decrementAndGet();
+                dropped.increment();
+                return;
+            }
+            queue.add(new Delivery(channel, message, System.nanoTime()));
+            if (draining.compareAndSet(false, true)) {
+                dispatcher.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int handledNow = 0;
+            Delivery delivery;
+            while (handledNow < DRAIN_BATCH && (delivery = queue.poll()) != null) {
+                queued.decrementAndGet();
+                long lag = System.nanoTime() - delivery.receivedAt;
+                DELIVERY_LAG.record(lag);
+                totalLagNanos.add(lag);
+                maxLagNanos.accumulateAndGet(lag, Math::max);
+                PubSubDeliveryEvent jfrEvent = new PubSubDeliveryEvent();
+                jfrEvent.begin();
+                try {
+                    handler.accept(delivery.channel, delivery.message);
+                } catch (Exception e) {
+                    errors.increment();
+                    PrismLog.error("Handler for Redis channel " + name + " failed", e);
+                }
+                jfrEvent.end();
+                if (jfrEvent.shouldCommit()) {
+                    jfrEvent.channel = delivery.channel;
+                    jfrEvent.bytes = delivery.message.length;
+                    jfrEvent.lagNanos = lag;
+                    jfrEvent.commit();
+                }
+                handled.increment();
+                handledNow++;
+            }
+            draining.set(false);
+            // Yield the dispatcher thread between batches, but keep draining if needed
+            if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+                dispatcher.execute(this::drain);
+            }
+        }
+
+        private String describe() {
+            long count = handled.sum();
+            double avgLagMs = count > 0 ? totalLagNanos.sum() / (double) count / 1_000_000.0 : 0.0;
+            double seconds = Math.max(1.0, (System.nanoTime() - createdAt) / 1_000_000_000.0);
+            return String.format("%s: received=%d, bytes=%d, handled=%d, dropped=%d, errors=%d, queued=%d, rate=%.1f/s, avgLag=%.2fms, maxLag=%.2fms",
+                    name, received.sum(), bytesReceived.sum(), count, dropped.sum(), errors.sum(), queued.get(),
+                    received.sum() / seconds, avgLagMs, maxLagNanos.get() / 1_000_000.0);
+        }
+    }
+
+    private static final class Delivery {
+        private final String channel;
+        private final byte[] message;
+        private final long receivedAt;
+
+        private Delivery(String channel, byte[] message, long receivedAt) {
+            this.channel = channel;
+            this.message = message;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
@@ -1,12 +1,37 @@
 package h2ph.util;
 
 import com.velocitypowered.api.event.player.PlayerChatEvent;
+import com.velocitypowered.api.proxy.Player;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 
+/**
+ * Works out whether a chat event carries a signed message, across Velocity versions
+ * that expose this differently (or not at all).
+ *
+ * The probing strategy is resolved once per event class into a short chain of cached
+ * method handles; on current Velocity that chain is usually a single call or empty
+ * (the configured fallback is returned directly). {@link #describe} shows the result.
+ */
 public final class ChatEventSignUtil {
 
+    private static final MethodType PROBE_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final ClassValue<Probe> PROBES = new ClassValue<>() {
+        @Override
+        protected Probe computeValue(Class<?> type) {
+            return Probe.resolve(type);
+        }
+    };
+
     private ChatEventSignUtil() {
     }
 
@@ -14,56 +39,134 @@ public final class ChatEventSignUtil {
         if (event == null) {
             return assumeSignedWhenUnknown;
         }
+        Boolean signed = PROBES.get(event.getClass()).test(event);
+        // If we cannot determine, use configured fallback.
+        return signed != null ? signed : assumeSignedWhenUnknown;
+    }
 
-        Boolean isSigned = invokeBoolean(event, "isSigned");
-        if (isSigned != null) {
-            return isSigned;
-        }
+    /**
+     * Whether {@code player}'s client signs its chat, i.e. whether their plain chat can
+     * reach the backend even when the proxy would rather keep it.
+     */
+    public static boolean signsChat(Player player) {
+        return player.getIdentifiedKey() != null;
+    }
 
-        Object signedMsg = invoke(event, "getSignedMessage");
-        if (isOptionalPresent(signedMsg)) {
-            return true;
-        }
+    /**
+     * @return the probe chain used for {@code eventClass}, for diagnostics
+     */
+    public static String describe(Class<?> eventClass) {
+        return PROBES.get(eventClass).description;
+    }
 
-        Object signature = invoke(event, "getMessageSignature");
-        if (isOptionalPresent(signature)) {
-            return true;
-        }
-        if (signature != null) {
-            return true;
+    private enum Kind {
+        /** Boolean result decides. */
+        BOOLEAN,
+        /** Present Optional means signed, anything else falls through. */
+        PRESENT,
+        /** Present Optional or any non-Optional, non-null value means signed. */
+        NON_NULL,
+        /** Heuristic: Boolean decides, Optional decides by presence; errors end the scan. */
+        SCAN
+    }
+
+    private static final class Step {
+        private final Kind kind;
+        private final MethodHandle handle;
+
+        private Step(Kind kind, MethodHandle handle) {
+            this.kind = kind;
+            this.handle = handle;
         }
+    }
 
-        Object legacySignature = invoke(event, "getSignature");
-        if (isOptionalPresent(legacySignature)) {
-            return true;
+    private static final class Probe {
+        private final Step[] steps;
+        private final String description;
+
+        private Probe(Step[] steps, String description) {
+            this.steps = steps;
+            this.description = description;
         }
-        if (legacySignature != null) {
-            return true;
+
+        private Boolean test(Object event) {
+            for (Step step : steps) {
+                Object result;
+                try {
+                    result = step.handle.invokeExact(event);
+                } catch (Throwable t) {
+                    if (step.kind == Kind.SCAN) return null;
+                    continue;
+                }
+                switch (step.kind) {
+                    case BOOLEAN:
+                        if (result instanceof Boolean) return (Boolean) result;
+                        break;
+                    case PRESENT:
+                        if (isOptionalPresent(result)) return true;
+                        break;
+                    case NON_NULL:
+                        if (isOptionalPresent(result) || result != null) return true;
+                        break;
+                    case SCAN:
+                        if (result instanceof Boolean) return (Boolean) result;
+                        if (result instanceof Optional) return ((Optional<?>) result).isPresent();
+                        break;
+                }
+            }
+            return null;
         }
 
-        Boolean heuristic = scanForSigned(event);
-        if (heuristic != null) {
-            return heuristic;
+        private static Probe resolve(Class<?> type) {
+            List<Step> steps = new ArrayList<>();
+            StringBuilder description = new StringBuilder();
+            boolean decided = add(steps, description, Kind.BOOLEAN, find(type, "isSigned"));
+            if (!decided) {
+                add(steps, description, Kind.PRESENT, find(type, "getSignedMessage"));
+                add(steps, description, Kind.NON_NULL, find(type, "getMessageSignature"));
+                add(steps, description, Kind.NON_NULL, find(type, "getSignature"));
+                for (Method method : type.getMethods()) {
+                    String name = method.getName().toLowerCase(Locale.ROOT);
+                    if (!name.contains("signed") && !name.contains("signature")) continue;
+                    if (method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers())) continue;
+                    if (!canHoldAnswer(method.getReturnType())) continue;
+                    if (add(steps, description, Kind.SCAN, method)) break;
+                }
+            }
+            if (steps.isEmpty()) {
+                description.append("none (configured fallback)");
+            }
+            return new Probe(steps.toArray(new Step[0]), description.toString());
         }
 
-        // If we cannot determine, use configured fallback.
-        return assumeSignedWhenUnknown;
-    }
+        // Adds a step; returns true if it always yields an answer, so later steps never run
+        private static boolean add(List<Step> steps, StringBuilder description, Kind kind, Method method) {
+            if (method == null) return false;
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup().unreflect(method).asType(PROBE_TYPE);
+            } catch (IllegalAccessException e) {
+                return false;
+            }
+            steps.add(new Step(kind, handle));
+            if (description.length() > 0) description.append(" -> ");
+            description.append(kind == Kind.SCAN ? "scan:" : "").append(method.getName()).append("()");
+            return (kind == Kind.BOOLEAN || kind == Kind.SCAN) && method.getReturnType() == boolean.class;
+        }
 
-    private static Boolean invokeBoolean(PlayerChatEvent event, String name) {
-        Object result = invoke(event, name);
-        if (result instanceof Boolean) {
-            return (Boolean) result;
+        private static Method find(Class<?> type, String name) {
+            try {
+                Method method = type.getMethod(name);
+                return Modifier.isStatic(method.getModifiers()) ? null : method;
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
         }
-        return null;
-    }
 
-    private static Object invoke(PlayerChatEvent event, String name) {
-        try {
-            Method method = event.getClass().getMethod(name);
-            return method.invoke(event);
-        } catch (Exception e) {
-            return null;
+        private static boolean canHoldAnswer(Class<?> returnType) {
+            return returnType == boolean.class
+                    || Boolean.class.isAssignableFrom(returnType) || returnType.isAssignableFrom(Boolean.class)
+                    || Optional.class.isAssignableFrom(returnType) || returnType.isAssignableFrom(Optional.class);
         }
     }
 
@@ -73,28 +176,4 @@ public final class ChatEventSignUtil {
         }
         return false;
     }
-
-    private static Boolean scanForSigned(PlayerChatEvent event) {
-        try {
-            for (Method method : event.getClass().getMethods()) {
-                String name = method.getName().toLowerCase();
-                if (!name.contains("signed") && !name.contains("signature")) {
-                    continue;
-                }
-                if (method.getParameterCount() != 0) {
-                    continue;
-                }
-                Object result = method.invoke(event);
-                if (result instanceof Boolean) {
-                    return (Boolean) result;
-                }
-                if (result instanceof Optional) {
-                    return ((Optional<?>) result).isPresent();
-                }
-            }
-        } catch (Exception e) {
-            return null;
-        }
-        return null;
-    }
 }
@@ -0,0 +1,221 @@
+package h2ph.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker with per-call latency budgets.
+ *
+ * A call fails if it takes longer than its budget or throws an error the breaker's
+ * classifier counts as a failure (by default, any); other errors reach the fallback
+ * without counting against the backend. After
+ * {@code failureThreshold} consecutive failures the breaker opens and every call
+ * fast-fails to its fallback. Once {@code openMillis} has passed a single probe call
+ * is let through (half-open); its outcome closes or re-opens the breaker.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Predicate<Throwable> countsAsFailure;
+    private final Consumer<State> onStateChange;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probeInFlight = new AtomicBoolean();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long openedAt;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, Consumer<State> onStateChange) {
+        this(name, failureThreshold, openMillis, error -> true, onStateChange);
+    }
+
+    /**
+     * @param countsAsFailure whether an error says the backend is unhealthy, e.g. a
+     *                        connection loss rather than a syntax error
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, Predicate<Throwable> countsAsFailure,
+            Consumer<State> onStateChange) {
+        this.name = name;
+        this.countsAsFailure = countsAsFailure;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = Math.max(1L, openMillis) * 1_000_000L;
+        this.onStateChange = onStateChange;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether {@code error} should be reported through {@link #recordFailure()}. Errors
+     * that don't count are reported through {@link #recordIgnored()}: the backend did
+     * answer, but one bad statement says nothing about its health.
+     */
+    public boolean countsAsFailure(Throwable error) {
+        return countsAsFailure.test(error);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * True unless the breaker is open and still cooling down. Use this to skip
+     * optional work up front; once the open period has elapsed this returns true
+     * again so the next call can act as the half-open probe.
+     */
+    public boolean isAvailable() {
+        return state.get() != State.OPEN || System.nanoTime() - openedAt >= openNanos;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Whether a call may proceed. Callers that get {@code true} must report the
+     * outcome through {@link #recordSuccess(long, long)}, {@link #recordFailure()} or
+     * {@link #recordIgnored()}.
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                rejected.increment();
+                return false;
+            }
+            if (transition(State.OPEN, State.HALF_OPEN)) {
+                // This caller is the probe.
+                probeInFlight.set(true);
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+        if (probeInFlight.compareAndSet(false, true)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    public void recordSuccess(long elapsedNanos, long budgetNanos) {
+        if (budgetNanos > 0 && elapsedNanos > budgetNanos) {
+            recordFailure();
+            return;
+        }
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (state.get() == State.HALF_OPEN) {
+            probeInFlight.set(false);
+            transition(State.HALF_OPEN, State.CLOSED);
+        }
+    }
+
+    /**
+     * Report a call whose error neither counts for nor against the backend. The state
+     * and failure count stay as they are; a half-open probe slot is freed so the next
+     * call can probe instead.
+     */
+    public void recordIgnored() {
+        if (state.get() == State.HALF_OPEN) {
+            probeInFlight.set(false);
+        }
+    }
+
+    public void recordFailure() {
+        failures.increment();
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            openedAt = System.nanoTime();
+            probeInFlight.set(false);
+            transition(State.HALF_OPEN, State.OPEN);
+        } else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.nanoTime();
+            if (transition(State.CLOSED, State.OPEN)) {
+                consecutiveFailures.set(0);
+            }
+        }
+    }
+
+    /**
+     * Run {@code call} within the budget, returning {@code fallback} if the breaker is
+     * open or the call throws.
+     */
+    public <T> T call(long budgetNanos, Call<T> call, Supplier<T> fallback) {
+        if (!allowRequest()) {
+            return fallback.get();
+        }
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            recordSuccess(System.nanoTime() - start, budgetNanos);
+            return result;
+        } catch (Exception e) {
+            if (!countsAsFailure(e)) {
+                PrismLog.error(name + " call failed", e);
+                recordIgnored();
+                return fallback.get();
+            }
+            if (state.get() == State.CLOSED) {
+                PrismLog.warn("{} call failed: {}", name, e.toString());
+            }
+            recordFailure();
+            return fallback.get();
+        }
+    }
+
+    /**
+     * Like {@link #call(long, Call, Supplier)} for calls without a result. Returns
+     * false if the action was skipped or failed.
+     */
+    public boolean run(long budgetNanos, Action action) {
+        return call(budgetNanos, () -> {
+            action.run();
+            return Boolean.TRUE;
+        }, () -> Boolean.FALSE);
+    }
+
+    private boolean transition(State from, State to) {
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        if (onStateChange != null) {
+            try {
+                onStateChange.accept(to);
+            } catch (Exception e) {
+                PrismLog.error(name + " state change handler failed", e);
+            }
+        }
+        return true;
+    }
+}
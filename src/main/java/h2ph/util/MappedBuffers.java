@@ -0,0 +1,54 @@
+package h2ph.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases memory-mapped buffers as soon as their file is done with, instead of
+ * whenever the garbage collector finds them. Until then the mapping keeps address
+ * space and page cache pinned, and on some platforms the file cannot be deleted.
+ *
+ * Java 21 has no public unmap, so this goes through {@code sun.misc.Unsafe.invokeCleaner}
+ * (module {@code jdk.unsupported}), resolved once. If that is unavailable the buffer is
+ * left to the garbage collector as before.
+ */
+public final class MappedBuffers {
+
+    // Null when Unsafe could not be reached
+    private static final MethodHandle INVOKE_CLEANER = resolve();
+
+    private MappedBuffers() {
+    }
+
+    /**
+     * Unmap {@code buffer}. It must not be used afterwards by anyone, including views
+     * and slices of it; callers drop their segment before calling this.
+     */
+    public static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null || INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable e) {
+            PrismLog.warn("Could not unmap a mapped buffer: {}", e.toString());
+        }
+    }
+
+    private static MethodHandle resolve() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            MethodHandle cleaner = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                    MethodType.methodType(void.class, ByteBuffer.class));
+            return cleaner.bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            PrismLog.warn("Mapped buffers cannot be unmapped early on this JVM ({}); they are freed by the garbage collector.",
+                    e.toString());
+            return null;
+        }
+    }
+}
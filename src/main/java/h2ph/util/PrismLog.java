@@ -0,0 +1,240 @@
+package h2ph.util;
+
+import h2ph.metrics.Counter;
+import h2ph.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin-wide logging on top of the proxy's SLF4J logger.
+ *
+ * Records are queued and written by one background thread, so event threads never
+ * block on console output; if the queue is full records are dropped and counted.
+ * Debug output is off unless {@code logging.debug} is set. Guard call sites with
+ * {@link #isDebug()} so nothing is built when it is off. Errors with the same message and
+ * exception type are logged once per {@code logging.error-window-seconds}. Repeats are
+ * counted and reported as a summary instead, so an outage does not flood the console.
+ */
+public final class PrismLog {
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long SUMMARY_INTERVAL_MS = 5000L;
+
+    private static final Counter DROPPED = Metrics.counter("prism_log_dropped_total", "Log records dropped because the log queue was full.");
+    private static final Counter SUPPRESSED = Metrics.counter("prism_log_suppressed_total", "Repeated errors folded into a summary line.");
+
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final Map<String, Window> ERROR_WINDOWS = new ConcurrentHashMap<>();
+
+    private static volatile Logger logger = LoggerFactory.getLogger("PrismChat");
+    private static volatile boolean debug;
+    private static volatile long errorWindowNanos = TimeUnit.SECONDS.toNanos(60);
+    private static volatile Thread writer;
+    // Only touched from the writer thread
+    private static long droppedReported;
+
+    private enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private PrismLog() {
+    }
+
+    /**
+     * Use the proxy's logger from now on and start the writer thread.
+     */
+    public static synchronized void init(Logger proxyLogger, boolean debugEnabled, int errorWindowSeconds) {
+        logger = proxyLogger;
+        configure(debugEnabled, errorWindowSeconds);
+        if (writer == null) {
+            Thread thread = new Thread(PrismLog::run, "prism-log");
+            thread.setDaemon(true);
+            thread.start();
+            writer = thread;
+        }
+    }
+
+    public static void configure(boolean debugEnabled, int errorWindowSeconds) {
+        debug = debugEnabled;
+        errorWindowNanos = TimeUnit.SECONDS.toNanos(Math.max(0, errorWindowSeconds));
+    }
+
+    public static boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * @param format SLF4J-style message with {} placeholders, formatted on the writer thread
+     */
+    public static void debug(String format, Object... args) {
+        if (debug) {
+            enqueue(Level.DEBUG, format, args, null);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        enqueue(Level.INFO, format, args, null);
+    }
+
+    public static void warn(String format, Object... args) {
+        enqueue(Level.WARN, format, args, null);
+    }
+
+    /**
+     * Log an error with its stack trace, at most once per error window for the same
+     * message and exception type.
+     */
+    public static void error(String message, Throwable error) {
+        String key = error != null ? message + '|' + error.getClass().getName() : message;
+        long now = System.nanoTime();
+        Window window = ERROR_WINDOWS.computeIfAbsent(key, k -> new Window(message, now));
+        if (!window.admit(now, errorWindowNanos)) {
+            SUPPRESSED.increment();
+            return;
+        }
+        enqueue(Level.ERROR, message, null, error);
+    }
+
+    /**
+     * Stop the writer thread after it has written everything queued so far.
+     */
+    public static synchronized void close() {
+        Thread thread = writer;
+        if (thread == null) return;
+        writer = null;
+        thread.interrupt();
+        try {
+            thread.join(2000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void enqueue(Level level, String format, Object[] args, Throwable error) {
+        Entry entry = new Entry(level, format, args, error);
+        if (writer == null) {
+            // Not started (early startup) or already closed: write inline
+            write(entry);
+            return;
+        }
+        if (!QUEUE.offer(entry)) {
+            DROPPED.increment();
+        }
+    }
+
+    private static void run() {
+        long nextSummary = System.currentTimeMillis() + SUMMARY_INTERVAL_MS;
+        while (true) {
+            try {
+                Entry entry = QUEUE.poll(SUMMARY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    write(entry);
+                }
+            } catch (InterruptedException e) {
+                if (writer == null) break;
+            }
+            if (System.currentTimeMillis() >= nextSummary) {
+                writeSummaries(System.nanoTime(), false);
+                nextSummary = System.currentTimeMillis() + SUMMARY_INTERVAL_MS;
+            }
+        }
+        Entry entry;
+        while ((entry = QUEUE.poll()) != null) {
+            write(entry);
+        }
+        writeSummaries(System.nanoTime(), true);
+    }
+
+    // Report repeats of errors whose window has ended (or all of them on close)
+    private static void writeSummaries(long now, boolean all) {
+        long windowNanos = errorWindowNanos;
+        Iterator<Window> it = ERROR_WINDOWS.values().iterator();
+        while (it.hasNext()) {
+            Window window = it.next();
+            if (!all && now - window.start < windowNanos) continue;
+            int repeats = window.drainSuppressed();
+            if (repeats > 0) {
+                logger.error("{} (repeated {} more time(s) in the last {}s)", window.message, repeats,
+                        TimeUnit.NANOSECONDS.toSeconds(Math.max(windowNanos, now - window.start)));
+            }
+            if (now - window.start >= windowNanos) {
+                it.remove();
+            }
+        }
+        long dropped = DROPPED.get();
+        if (dropped > droppedReported) {
+            logger.warn("Dropped {} log record(s) because the log queue was full.", dropped - droppedReported);
+            droppedReported = dropped;
+        }
+    }
+
+    private static void write(Entry entry) {
+        Logger log = logger;
+        switch (entry.level) {
+            case DEBUG:
+                // The proxy console hides DEBUG; the toggle is ours, so print at INFO
+                log.info("[debug] " + entry.format, entry.args);
+                break;
+            case INFO:
+                log.info(entry.format, entry.args);
+                break;
+            case WARN:
+                log.warn(entry.format, entry.args);
+                break;
+            case ERROR:
+                log.error(entry.format, entry.error);
+                break;
+        }
+    }
+
+    private static final class Entry {
+        private final Level level;
+        private final String format;
+        private final Object[] args;
+        private final Throwable error;
+
+        private Entry(Level level, String format, Object[] args, Throwable error) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+            this.error = error;
+        }
+    }
+
+    private static final class Window {
+        private final String message;
+        private volatile long start;
+        private boolean logged;
+        private int suppressed;
+
+        private Window(String message, long start) {
+            this.message = message;
+            this.start = start;
+        }
+
+        synchronized boolean admit(long now, long windowNanos) {
+            if (logged && now - start < windowNanos) {
+                suppressed++;
+                return false;
+            }
+            if (logged) {
+                start = now;
+            }
+            logged = true;
+            return true;
+        }
+
+        synchronized int drainSuppressed() {
+            int count = suppressed;
+            suppressed = 0;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package h2ph.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs shutdown phases in order under one overall deadline and reports how long each
+ * took. A failing phase is logged and the sequence moves on, so one broken backend
+ * cannot keep the others from closing.
+ */
+public final class ShutdownSequence {
+
+    private final long startedAt = System.nanoTime();
+    private final long deadline;
+    private final List<String> timings = new ArrayList<>();
+
+    public ShutdownSequence(long budgetMillis) {
+        this.deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, budgetMillis));
+    }
+
+    /**
+     * Time left of the overall budget, for phases that wait on queues to drain.
+     */
+    public long remainingMillis() {
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    public void run(String phase, Runnable step) {
+        long start = System.nanoTime();
+        String outcome = "";
+        try {
+            step.run();
+        } catch (Exception e) {
+            outcome = " (failed)";
+            PrismLog.error("Shutdown phase '" + phase + "' failed", e);
+        }
+        timings.add(phase + "=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms" + outcome);
+    }
+
+    /**
+     * @return e.g. {@code "drain persistence=12ms, close mysql=3ms (total 15ms)"}
+     */
+    public String summary() {
+        return String.join(", ", timings) + " (total " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + "ms)";
+    }
+}
@@ -0,0 +1,46 @@
+package h2ph.util;
+
+/**
+ * Token bucket rate limiter: refills {@code ratePerSecond} tokens per second up to
+ * {@code burst}, and each acquire takes one token.
+ */
+public class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, double burst) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000d;
+        this.burst = Math.max(1d, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill(System.nanoTime());
+        if (tokens < 1d) {
+            return false;
+        }
+        tokens -= 1d;
+        return true;
+    }
+
+    /**
+     * @return true if the bucket has refilled completely, i.e. it has been idle long enough
+     *         that dropping it loses nothing
+     */
+    public synchronized boolean isFull() {
+        refill(System.nanoTime());
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * ratePerNano);
+            lastRefill = now;
+        }
+    }
+}
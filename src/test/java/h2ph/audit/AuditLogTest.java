@@ -0,0 +1,142 @@
+package h2ph.audit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuditLogTest {
+
+    private static final long MINUTE = 60_000L;
+    private static final long TIMEOUT_MILLIS = 5_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void queriesBySenderNewestFirst() throws Exception {
+        UUID alice = UUID.randomUUID();
+        UUID bob = UUID.randomUUID();
+        AuditLog log = new AuditLog(dir, 64 * 1024, 10 * MINUTE, 0L, 1000);
+        for (int i = 0; i < 5; i++) {
+            log.record("global", alice, "Alice", "a" + i);
+            log.record("team:red", bob, "Bob", "b" + i);
+        }
+        List<AuditLog.Entry> entries = awaitQuery(log, alice, 0L, 100, 5);
+        assertEquals(List.of("a4", "a3", "a2", "a1", "a0"), messages(entries));
+        assertEquals("Alice", entries.get(0).getSenderName());
+        assertEquals("global", entries.get(0).getChannel());
+        assertEquals(alice, entries.get(0).getSender());
+
+        assertEquals(List.of("b4", "b3"), messages(log.query(bob, 0L, 2)));
+        assertTrue(log.query(UUID.randomUUID(), 0L, 10).isEmpty());
+        log.close(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void timestampsNeverRunBackwardsAndSinceFilters() throws Exception {
+        UUID sender = UUID.randomUUID();
+        AuditLog log = new AuditLog(dir, 64 * 1024, 10 * MINUTE, 0L, 1000);
+        for (int i = 0; i < 200; i++) {
+            log.record("global", sender, "Steve", "m" + i);
+        }
+        List<AuditLog.Entry> entries = awaitQuery(log, sender, 0L, 1000, 200);
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getTimestamp() >= entries.get(i).getTimestamp(), "out of order at " + i);
+        }
+        assertTrue(log.query(sender, System.currentTimeMillis() + MINUTE, 10).isEmpty());
+        log.close(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void queriesAcrossRolledAndCompressedSegments() throws Exception {
+        UUID sender = UUID.randomUUID();
+        // A few records per segment
+        AuditLog log = new AuditLog(dir, 256, 10 * MINUTE, 0L, 1000);
+        for (int i = 0; i < 30; i++) {
+            log.record("global", sender, "Steve", "message " + i);
+        }
+        log.close(TIMEOUT_MILLIS);
+        assertTrue(list(".idx").size() > 3, "segments: " + list(".idx"));
+        assertTrue(list(".log").isEmpty(), "left uncompressed: " + list(".log"));
+
+        AuditLog reopened = new AuditLog(dir, 256, 10 * MINUTE, 0L, 1000);
+        List<String> messages = messages(reopened.query(sender, 0L, 100));
+        assertEquals(30, messages.size());
+        assertEquals("message 29", messages.get(0));
+        assertEquals("message 0", messages.get(29));
+        reopened.close(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void recoversASegmentLeftOpen() throws Exception {
+        UUID sender = UUID.randomUUID();
+        Path crashed = Files.createDirectory(dir.resolve("crashed"));
+        AuditLog log = new AuditLog(dir, 64 * 1024, 10 * MINUTE, 0L, 1000);
+        for (int i = 0; i < 3; i++) {
+            log.record("global", sender, "Steve", "m" + i);
+        }
+        awaitQuery(log, sender, 0L, 10, 3);
+        // What a crash leaves behind: the open segment and an index missing its tail
+        for (Path file : list("")) {
+            Files.copy(file, crashed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (Path index : listIn(crashed, ".idx")) {
+            try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+                channel.truncate(0);
+            }
+        }
+        log.close(TIMEOUT_MILLIS);
+
+        AuditLog recovered = new AuditLog(crashed, 64 * 1024, 10 * MINUTE, 0L, 1000);
+        assertEquals(List.of("m2", "m1", "m0"), messages(awaitQuery(recovered, sender, 0L, 10, 3)));
+        recovered.close(TIMEOUT_MILLIS);
+        assertTrue(listIn(crashed, ".log").isEmpty(), "recovered segment was not compressed");
+    }
+
+    private static List<AuditLog.Entry> awaitQuery(AuditLog log, UUID sender, long since, int limit, int expected)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<AuditLog.Entry> entries = log.query(sender, since, limit);
+        while (entries.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+            entries = log.query(sender, since, limit);
+        }
+        assertEquals(expected, entries.size());
+        return entries;
+    }
+
+    private List<Path> list(String suffix) throws IOException {
+        return listIn(dir, suffix);
+    }
+
+    private static List<Path> listIn(Path directory, String suffix) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audit-*" + suffix)) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        return files;
+    }
+
+    private static List<String> messages(List<AuditLog.Entry> entries) {
+        List<String> out = new ArrayList<>();
+        for (AuditLog.Entry entry : entries) {
+            out.add(entry.getMessage());
+        }
+        return out;
+    }
+}
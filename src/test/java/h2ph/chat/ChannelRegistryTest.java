@@ -0,0 +1,230 @@
+package h2ph.chat;
+
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import com.velocitypowered.api.proxy.server.ServerInfo;
+import h2ph.config.ConfigManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChannelRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    private ChannelRegistry registry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.writeString(dir.resolve("config.yml"), "channels:\n"
+                + "  staff: prismchat.staff\n"
+                + "  trade: ''\n"
+                + "  list: ''\n");
+        ConfigManager config = new ConfigManager(dir);
+        config.loadConfig();
+        registry = new ChannelRegistry(null, config);
+    }
+
+    @Test
+    void loadsConfiguredChannelsAndSkipsReservedNames() {
+        assertEquals(ChannelRegistry.Type.STAFF, registry.get("staff").getType());
+        assertEquals(ChannelRegistry.Type.CUSTOM, registry.get("Trade").getType());
+        assertNull(registry.get("trade").getPermission());
+        assertNull(registry.get("list"));
+    }
+
+    @Test
+    void joinsGlobalLocalAndPermittedStaffOnConnect() {
+        TestPlayer alice = new TestPlayer("Alice", "prismchat.staff");
+        TestPlayer bob = new TestPlayer("Bob");
+        connect(alice, "lobby");
+        connect(bob, "lobby");
+
+        assertSame(registry.global(), registry.getFocus(alice.proxy));
+        assertTrue(registry.isMember(alice.proxy, registry.global()));
+        assertEquals("local:lobby", registry.getLocal(alice.proxy).getName());
+        assertEquals(2, registry.local("lobby").size());
+        assertTrue(registry.isMember(alice.proxy, registry.get("staff")));
+        assertFalse(registry.isMember(bob.proxy, registry.get("staff")));
+    }
+
+    @Test
+    void switchingServersMovesTheLocalChannelAndItsFocus() {
+        TestPlayer alice = new TestPlayer("Alice");
+        connect(alice, "lobby");
+        registry.focus(alice.proxy, registry.local("lobby"));
+
+        connect(alice, "survival");
+        assertNull(registry.local("lobby"));
+        assertSame(registry.local("survival"), registry.getLocal(alice.proxy));
+        assertSame(registry.local("survival"), registry.getFocus(alice.proxy));
+    }
+
+    @Test
+    void joinsAndLeavesCustomChannels() {
+        TestPlayer alice = new TestPlayer("Alice");
+        TestPlayer bob = new TestPlayer("Bob");
+        connect(alice, "lobby");
+        connect(bob, "lobby");
+        ChannelRegistry.Channel trade = registry.get("trade");
+
+        assertTrue(registry.focus(alice.proxy, trade));
+        assertTrue(registry.join(bob.proxy, trade));
+        assertEquals(names(alice, bob), members(trade, null));
+        assertSame(trade, registry.getFocus(alice.proxy));
+
+        registry.leave(alice.proxy, trade);
+        assertFalse(registry.isMember(alice.proxy, trade));
+        assertSame(registry.global(), registry.getFocus(alice.proxy));
+        assertEquals(names(bob), members(trade, null));
+        // Global is not left through leave()
+        registry.leave(bob.proxy, registry.global());
+        assertTrue(registry.isMember(bob.proxy, registry.global()));
+    }
+
+    @Test
+    void forEachMemberSkipsTheExcludedChannel() {
+        TestPlayer alice = new TestPlayer("Alice");
+        TestPlayer bob = new TestPlayer("Bob");
+        connect(alice, "lobby");
+        connect(bob, "survival");
+        assertEquals(names(bob), members(registry.global(), registry.local("lobby")));
+        assertEquals(0, registry.forEachMember(null, null, player -> { }));
+    }
+
+    @Test
+    void reusesIndexesWithoutInheritingMemberships() {
+        TestPlayer alice = new TestPlayer("Alice");
+        TestPlayer bob = new TestPlayer("Bob");
+        connect(alice, "lobby");
+        connect(bob, "lobby");
+        registry.join(alice.proxy, registry.get("trade"));
+        int aliceIndex = registry.indexOf(alice.proxy);
+
+        disconnect(alice);
+        assertEquals(-1, registry.indexOf(alice.proxy));
+        assertEquals(1, registry.global().size());
+
+        TestPlayer carol = new TestPlayer("Carol");
+        connect(carol, "lobby");
+        assertEquals(aliceIndex, registry.indexOf(carol.proxy));
+        assertEquals(0, registry.get("trade").size());
+        assertEquals(names(bob, carol), members(registry.global(), null));
+    }
+
+    @Test
+    void membershipSpansManyWords() {
+        List<TestPlayer> players = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            TestPlayer player = new TestPlayer("P" + i);
+            players.add(player);
+            connect(player, "lobby");
+        }
+        assertEquals(200, registry.global().size());
+        for (int i = 0; i < 200; i += 2) {
+            disconnect(players.get(i));
+        }
+        assertEquals(100, registry.forEachMember(registry.global(), null, player -> { }));
+        assertEquals(100, registry.local("lobby").size());
+    }
+
+    private void connect(TestPlayer player, String server) {
+        RegisteredServer previous = player.server != null ? registered(player.server) : null;
+        player.server = server;
+        registry.onPostConnect(new ServerPostConnectEvent(player.proxy, previous));
+    }
+
+    private void disconnect(TestPlayer player) {
+        registry.onDisconnect(new DisconnectEvent(player.proxy, DisconnectEvent.LoginStatus.SUCCESSFUL_LOGIN));
+    }
+
+    private List<String> members(ChannelRegistry.Channel channel, ChannelRegistry.Channel excluded) {
+        List<String> names = new ArrayList<>();
+        registry.forEachMember(channel, excluded, player -> names.add(player.getUsername()));
+        names.sort(null);
+        return names;
+    }
+
+    private static List<String> names(TestPlayer... players) {
+        List<String> names = new ArrayList<>();
+        for (TestPlayer player : players) {
+            names.add(player.name);
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private static RegisteredServer registered(String server) {
+        ServerInfo info = info(server);
+        return stub(RegisteredServer.class, server, (method, args) -> method.equals("getServerInfo") ? info : unsupported(method));
+    }
+
+    private static ServerInfo info(String server) {
+        return new ServerInfo(server, InetSocketAddress.createUnresolved(server, 25565));
+    }
+
+    // Interface stub answering by method name; Object methods are handled here
+    private static <T> T stub(Class<T> type, String label, BiFunction<String, Object[], Object> answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (self, method, args) -> switch (method.getName()) {
+                    case "toString" -> label;
+                    case "hashCode" -> System.identityHashCode(self);
+                    case "equals" -> self == args[0];
+                    default -> answer.apply(method.getName(), args);
+                }));
+    }
+
+    private static Object unsupported(String method) {
+        throw new UnsupportedOperationException(method);
+    }
+
+    /**
+     * Just enough of a {@link Player} for the registry.
+     */
+    private static final class TestPlayer {
+        private final UUID uuid = UUID.randomUUID();
+        private final String name;
+        private final Set<String> permissions;
+        private final Player proxy;
+        private String server;
+
+        private TestPlayer(String name, String... permissions) {
+            this.name = name;
+            this.permissions = Set.of(permissions);
+            this.proxy = stub(Player.class, name, (method, args) -> switch (method) {
+                case "getUniqueId" -> uuid;
+                case "getUsername" -> this.name;
+                case "hasPermission" -> this.permissions.contains((String) args[0]);
+                case "getCurrentServer" -> Optional.ofNullable(server).map(TestPlayer::connection);
+                default -> unsupported(method);
+            });
+        }
+
+        private static ServerConnection connection(String server) {
+            ServerInfo info = info(server);
+            return stub(ServerConnection.class, server, (method, args) -> method.equals("getServerInfo") ? info : unsupported(method));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package h2ph.chat;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChatCodecTest {
+
+    private static final UUID SENDER = UUID.fromString("123e4567-e89b-12d3-a456-426614174000");
+
+    @Test
+    void roundTripsTeamMessages() throws IOException {
+        ChatMessage msg = new ChatMessage(ChatMessage.Kind.TEAM, 1700000000123L, "proxy-1", SENDER,
+                "&5Steve", "team-42", "Red Team", "hello there");
+        ChatMessage decoded = ChatCodec.decode(ChatCodec.encode(msg));
+
+        assertEquals(ChatMessage.Kind.TEAM, decoded.getKind());
+        assertEquals(1700000000123L, decoded.getTimestamp());
+        assertEquals("proxy-1", decoded.getOrigin());
+        assertEquals(SENDER, decoded.getSenderUuid());
+        assertEquals("&5Steve", decoded.getSender());
+        assertEquals("team-42", decoded.getTeamId());
+        assertEquals("Red Team", decoded.getTeamName());
+        assertEquals("hello there", decoded.getMessage());
+        assertNull(decoded.getTarget());
+    }
+
+    @Test
+    void roundTripsDirectAndChannelMessages() throws IOException {
+        UUID target = UUID.randomUUID();
+        ChatMessage direct = ChatCodec.decode(ChatCodec.encode(ChatMessage.direct("p", SENDER, "Steve", target, "psst")));
+        assertEquals(ChatMessage.Kind.DIRECT, direct.getKind());
+        assertEquals(target, direct.getTarget());
+        assertEquals("psst", direct.getMessage());
+
+        ChatMessage channel = ChatCodec.decode(ChatCodec.encode(ChatMessage.channel("p", SENDER, "Steve", "staff", "hi")));
+        assertEquals(ChatMessage.Kind.CHANNEL, channel.getKind());
+        assertEquals("staff", channel.getChannel());
+        assertNull(channel.getTarget());
+    }
+
+    @Test
+    void roundTripsMultiByteTextAndLongMessages() throws IOException {
+        String text = "héllo — 日本語 😀 " + "x".repeat(5000);
+        ChatMessage decoded = ChatCodec.decode(ChatCodec.encode(ChatMessage.team("p", null, "Zoë", "t", "Équipe", text)));
+        assertEquals(text, decoded.getMessage());
+        assertEquals("Zoë", decoded.getSender());
+        assertEquals("Équipe", decoded.getTeamName());
+        assertNull(decoded.getSenderUuid());
+    }
+
+    @Test
+    void writesTheCurrentVersionAndRejectsNewerOnes() {
+        byte[] data = ChatCodec.encode(ChatMessage.team("p", SENDER, "Steve", "t", "T", "hi"));
+        assertEquals(ChatCodec.MAGIC, data[0]);
+        assertEquals(ChatCodec.VERSION, data[1]);
+
+        data[1] = (byte) (ChatCodec.VERSION + 1);
+        assertThrows(IOException.class, () -> ChatCodec.decode(data));
+    }
+
+    @Test
+    void ignoresFieldsAppendedByLaterVersions() throws IOException {
+        byte[] data = ChatCodec.encode(ChatMessage.team("p", SENDER, "Steve", "t", "T", "hi"));
+        // Shorter than a target uuid, so it cannot be mistaken for one
+        byte[] extended = Arrays.copyOf(data, data.length + 5);
+        ChatMessage decoded = ChatCodec.decode(extended);
+        assertEquals("hi", decoded.getMessage());
+        assertNull(decoded.getTarget());
+    }
+
+    @Test
+    void readsNoTargetFromTrailingBytesOfOtherKinds() throws IOException {
+        byte[] data = ChatCodec.encode(ChatMessage.team("p", SENDER, "Steve", "t", "T", "hi"));
+        // Long enough to pass for a target uuid
+        byte[] extended = Arrays.copyOf(data, data.length + 20);
+        Arrays.fill(extended, data.length, extended.length, (byte) 0x5A);
+        ChatMessage decoded = ChatCodec.decode(extended);
+        assertEquals(ChatMessage.Kind.TEAM, decoded.getKind());
+        assertEquals("hi", decoded.getMessage());
+        assertNull(decoded.getTarget());
+    }
+
+    @Test
+    void rejectsTruncatedAndForeignPayloads() {
+        byte[] data = ChatCodec.encode(ChatMessage.team("p", SENDER, "Steve", "t", "T", "hello"));
+        assertThrows(IOException.class, () -> ChatCodec.decode(Arrays.copyOf(data, data.length - 3)));
+        assertThrows(IOException.class, () -> ChatCodec.decode(new byte[0]));
+        assertThrows(IOException.class, () -> ChatCodec.decode(new byte[] { 1, 2, 3, 4 }));
+        assertThrows(IOException.class, () -> ChatCodec.decode("{not json".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void decodesTheLegacyJsonFormat() throws IOException {
+        ChatMessage decoded = ChatCodec.decode(ChatCodec.encodeJson(ChatMessage.team("old-proxy", SENDER, "Steve", "t", "T", "hi")));
+        assertEquals(ChatMessage.Kind.TEAM, decoded.getKind());
+        assertEquals("old-proxy", decoded.getOrigin());
+        assertEquals(SENDER, decoded.getSenderUuid());
+        assertEquals("t", decoded.getTeamId());
+        assertEquals("hi", decoded.getMessage());
+    }
+}
@@ -0,0 +1,97 @@
+package h2ph.chat;
+
+import h2ph.config.ConfigManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatHistoryTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keepsTheLastLinesOldestFirst() throws IOException {
+        ChatHistory history = history(3, 16, 64);
+        for (int i = 1; i <= 5; i++) {
+            history.record("global", "", "Steve", "line " + i);
+        }
+        List<ChatHistory.Line> lines = history.recent("global", HOUR);
+        assertEquals(List.of("line 3", "line 4", "line 5"), messages(lines));
+        assertEquals("Steve", lines.get(0).getSender());
+    }
+
+    @Test
+    void wrapsAroundTheRingWhenItsBytesRunOut() throws IOException {
+        // 1 KiB ring, room for about ten of these lines
+        ChatHistory history = history(100, 1, 1);
+        String padding = "x".repeat(80);
+        for (int i = 0; i < 50; i++) {
+            history.record("global", "label", "Steve", i + " " + padding);
+        }
+        List<String> messages = messages(history.recent("global", HOUR));
+        assertTrue(messages.size() >= 5 && messages.size() < 12, "kept " + messages.size());
+        // A contiguous run ending at the newest line
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals((50 - messages.size() + i) + " " + padding, messages.get(i));
+        }
+    }
+
+    @Test
+    void evictsTheChannelWrittenLeastRecently() throws IOException {
+        // Two rings for three channels
+        ChatHistory history = history(5, 1, 2);
+        history.record("a", "", "s", "a1");
+        history.record("b", "", "s", "b1");
+        history.record("a", "", "s", "a2");
+        history.record("c", "", "s", "c1");
+
+        assertEquals(List.of("a1", "a2"), messages(history.recent("a", HOUR)));
+        assertTrue(history.recent("b", HOUR).isEmpty());
+        assertEquals(List.of("c1"), messages(history.recent("c", HOUR)));
+    }
+
+    @Test
+    void skipsLinesLargerThanARing() throws IOException {
+        ChatHistory history = history(5, 1, 1);
+        history.record("global", "", "s", "y".repeat(2000));
+        history.record("global", "", "s", "fits");
+        assertEquals(List.of("fits"), messages(history.recent("global", HOUR)));
+    }
+
+    @Test
+    void leavesOutLinesOlderThanAsked() throws IOException {
+        ChatHistory history = history(5, 1, 1);
+        history.record("global", "", "s", "old");
+        assertTrue(history.recent("global", -HOUR).isEmpty());
+        assertTrue(history.recent("unknown", HOUR).isEmpty());
+    }
+
+    private ChatHistory history(int depth, int ringKb, int maxMemoryKb) throws IOException {
+        Files.writeString(dir.resolve("config.yml"), "history:\n"
+                + "  depth: " + depth + "\n"
+                + "  ring-kb: " + ringKb + "\n"
+                + "  max-memory-kb: " + maxMemoryKb + "\n");
+        ConfigManager config = new ConfigManager(dir);
+        config.loadConfig();
+        return new ChatHistory(config);
+    }
+
+    private static List<String> messages(List<ChatHistory.Line> lines) {
+        List<String> out = new ArrayList<>();
+        for (ChatHistory.Line line : lines) {
+            out.add(line.getMessage());
+        }
+        return out;
+    }
+}
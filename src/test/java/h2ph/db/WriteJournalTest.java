@@ -0,0 +1,136 @@
+package h2ph.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsAppendedRecordsInOrderUntilCommitted() throws IOException {
+        WriteJournal journal = open(4096);
+        append(journal, "a", "b", "c");
+
+        List<WriteJournal.Entry> entries = journal.read(10);
+        assertEquals(List.of("a", "b", "c"), payloads(entries));
+        assertTrue(entries.get(0).isValid());
+        // Reading does not consume
+        assertEquals(3, journal.read(10).size());
+
+        journal.commit(entries.get(1));
+        assertEquals(List.of("c"), payloads(journal.read(10)));
+        journal.commit(journal.read(10).get(0));
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    void resumesFromCheckpointAfterReopen() throws IOException {
+        WriteJournal journal = open(4096);
+        append(journal, "a", "b", "c");
+        journal.commit(journal.read(1).get(0));
+        journal.close();
+
+        WriteJournal reopened = open(4096);
+        assertEquals(List.of("b", "c"), payloads(reopened.read(10)));
+        append(reopened, "d");
+        assertEquals(List.of("b", "c", "d"), payloads(reopened.read(10)));
+        reopened.close();
+    }
+
+    @Test
+    void rollsSegmentsAndReadsAcrossThem() throws IOException {
+        // Three 8-byte headers plus payloads do not fit in 40 bytes
+        WriteJournal journal = open(40);
+        List<String> written = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            written.add("record-" + i);
+        }
+        append(journal, written.toArray(new String[0]));
+        assertEquals(written, payloads(journal.read(100)));
+
+        journal.commit(journal.read(15).get(14));
+        journal.close();
+        WriteJournal reopened = open(40);
+        assertEquals(written.subList(15, 20), payloads(reopened.read(100)));
+        reopened.close();
+    }
+
+    @Test
+    void stopsAtRecordWithBadChecksumAndAppendsAfterIt() throws IOException {
+        WriteJournal journal = open(4096);
+        append(journal, "good", "damaged", "lost");
+        journal.close();
+
+        // Flip a payload byte of the second record: header 8 + "good" 4, then its header 8
+        try (FileChannel channel = FileChannel.open(dir.resolve(String.format("segment-%016d.journal", 1)),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long at = 8 + 4 + 8;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, at);
+            b.put(0, (byte) (b.get(0) ^ 0x01)).rewind();
+            channel.write(b, at);
+        }
+
+        WriteJournal reopened = open(4096);
+        assertEquals(List.of("good"), payloads(reopened.read(10)));
+        // New records go to a fresh segment, never behind the damaged one
+        append(reopened, "after");
+        assertEquals(List.of("good", "after"), payloads(reopened.read(10)));
+        reopened.close();
+    }
+
+    @Test
+    void rejectsRecordsLargerThanASegment() throws IOException {
+        WriteJournal journal = open(32);
+        assertThrows(IOException.class, () -> journal.append(new byte[64]));
+        journal.close();
+        assertThrows(IOException.class, () -> journal.append(new byte[1]));
+    }
+
+    @Test
+    void emptyJournalHasNothingToRead() throws IOException {
+        WriteJournal journal = open(4096);
+        assertTrue(journal.isEmpty());
+        assertTrue(journal.read(10).isEmpty());
+        append(journal, "x");
+        assertFalse(journal.isEmpty());
+        journal.close();
+    }
+
+    private WriteJournal open(int segmentSize) throws IOException {
+        WriteJournal journal = new WriteJournal(dir, segmentSize, false);
+        journal.open();
+        return journal;
+    }
+
+    private static void append(WriteJournal journal, String... payloads) throws IOException {
+        for (String payload : payloads) {
+            journal.append(payload.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static List<String> payloads(List<WriteJournal.Entry> entries) {
+        List<String> out = new ArrayList<>();
+        for (WriteJournal.Entry entry : entries) {
+            out.add(new String(entry.getPayload(), StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+}
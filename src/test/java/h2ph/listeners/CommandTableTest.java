@@ -0,0 +1,64 @@
+package h2ph.listeners;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CommandTableTest {
+
+    @Test
+    void plainNamesMatchUnderAnyNamespace() {
+        CommandBlockListener.CommandTable table = new CommandBlockListener.CommandTable();
+        table.put("server", true);
+        assertEquals(Boolean.TRUE, table.find("server", false));
+        assertEquals(Boolean.TRUE, table.find("velocity:server", false));
+        assertNull(table.find("servers", false));
+        assertNull(table.find("server:other", false));
+    }
+
+    @Test
+    void namespacedNamesMatchExactly() {
+        CommandBlockListener.CommandTable table = new CommandBlockListener.CommandTable();
+        table.put("velocity:callback", false);
+        assertEquals(Boolean.FALSE, table.find("velocity:callback", false));
+        assertNull(table.find("callback", false));
+        assertNull(table.find("other:callback", false));
+    }
+
+    @Test
+    void parsesCommandLines() {
+        CommandBlockListener.CommandTable table = new CommandBlockListener.CommandTable();
+        table.put("server", true);
+        assertEquals(Boolean.TRUE, table.find("/server lobby", true));
+        assertEquals(Boolean.TRUE, table.find("  /SERVER", true));
+        assertEquals(Boolean.TRUE, table.find("velocity:Server lobby", true));
+        assertEquals(Boolean.TRUE, table.find("server:", true));
+        assertNull(table.find("", true));
+        assertNull(table.find("/", true));
+        assertNull(table.find("say server", true));
+    }
+
+    @Test
+    void blockedWinsOverHidden() {
+        CommandBlockListener.CommandTable table = new CommandBlockListener.CommandTable();
+        table.put("a", false);
+        table.put("a", true);
+        table.put("b", true);
+        table.put("b", false);
+        assertEquals(Boolean.TRUE, table.find("a", false));
+        assertEquals(Boolean.TRUE, table.find("b", false));
+    }
+
+    @Test
+    void keepsEveryNameWhenGrowing() {
+        CommandBlockListener.CommandTable table = new CommandBlockListener.CommandTable();
+        for (int i = 0; i < 500; i++) {
+            table.put("cmd" + i, i % 2 == 0);
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i % 2 == 0, table.find("/cmd" + i + " arg", true), "cmd" + i);
+        }
+        assertNull(table.find("cmd500", false));
+    }
+}
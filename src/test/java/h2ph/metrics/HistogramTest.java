@@ -0,0 +1,71 @@
+package h2ph.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    @Test
+    void smallValuesGetOneBucketEach() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals((int) value, Histogram.indexOf(value));
+            assertEquals(value, Histogram.upperBound((int) value));
+        }
+    }
+
+    @Test
+    void everyValueFallsInsideItsBucketWithinOneSixteenth() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            check((random.nextLong() >>> 1) >>> random.nextInt(63));
+        }
+        for (int bit = 0; bit < 63; bit++) {
+            long power = 1L << bit;
+            check(power - 1);
+            check(power);
+            check(power + 1);
+        }
+        check(Long.MAX_VALUE);
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        int last = Histogram.indexOf(Long.MAX_VALUE);
+        for (int index = 1; index <= last; index++) {
+            assertEquals(index, Histogram.indexOf(Histogram.upperBound(index - 1) + 1), "bucket after " + (index - 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(last));
+    }
+
+    @Test
+    void quantilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram("test", "test");
+        for (long ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1_000_000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100_000_000L, histogram.getMaxNanos());
+        long p50 = histogram.getValueAtQuantile(0.5);
+        assertTrue(p50 >= 50_000_000L && p50 <= 50_000_000L * 17 / 16, "p50 was " + p50);
+        assertEquals(100_000_000L, histogram.getValueAtQuantile(1.0));
+    }
+
+    @Test
+    void negativeValuesRecordAsZero() {
+        Histogram histogram = new Histogram("test", "test");
+        histogram.record(-5L);
+        assertEquals(0L, histogram.getValueAtQuantile(0.99));
+        assertEquals(0L, histogram.getSumNanos());
+        assertEquals(0L, new Histogram("empty", "empty").getValueAtQuantile(0.5));
+    }
+
+    private static void check(long value) {
+        long upper = Histogram.upperBound(Histogram.indexOf(value));
+        assertTrue(upper >= value, value + " above its bucket " + upper);
+        assertTrue(upper - value <= value / 16, value + " too far from its bucket " + upper);
+    }
+}
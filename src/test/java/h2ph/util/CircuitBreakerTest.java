@@ -0,0 +1,128 @@
+package h2ph.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    @Test
+    void opensAfterConsecutiveFailuresAndFastFails() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60_000L, null);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("fallback", breaker.call(0L, () -> {
+                calls.incrementAndGet();
+                throw new IOException("down");
+            }, () -> "fallback"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+
+        assertEquals("fallback", breaker.call(0L, () -> {
+            calls.incrementAndGet();
+            return "value";
+        }, () -> "fallback"));
+        assertEquals(3, calls.get());
+        assertEquals(1L, breaker.getRejectedCount());
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 60_000L, null);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess(0L, 0L);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void callsOverBudgetCountAsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60_000L, null);
+        breaker.recordSuccess(10L, 5L);
+        breaker.recordSuccess(10L, 5L);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void halfOpenLetsOneProbeThroughAndClosesOnSuccess() throws InterruptedException {
+        List<CircuitBreaker.State> changes = new ArrayList<>();
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1L, changes::add);
+        breaker.recordFailure();
+        Thread.sleep(5L);
+
+        assertTrue(breaker.isAvailable());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordSuccess(0L, 0L);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(List.of(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED), changes);
+    }
+
+    @Test
+    void failedProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1L, null);
+        breaker.recordFailure();
+        Thread.sleep(5L);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void errorsTheClassifierRejectsDoNotCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60_000L, error -> error instanceof IOException, null);
+        for (int i = 0; i < 5; i++) {
+            assertFalse(breaker.run(0L, () -> {
+                throw new IllegalStateException("bad input");
+            }));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0L, breaker.getFailureCount());
+
+        breaker.run(0L, () -> {
+            throw new IOException("down");
+        });
+        breaker.run(0L, () -> {
+            throw new IOException("down");
+        });
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void errorsTheClassifierRejectsLeaveAHalfOpenBreakerAsItIs() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1L, error -> error instanceof IOException, null);
+        breaker.recordFailure();
+        Thread.sleep(5L);
+
+        assertFalse(breaker.run(0L, () -> {
+            throw new IllegalStateException("bad input");
+        }));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // The probe slot was freed, so the next call probes
+        assertTrue(breaker.run(0L, () -> { }));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void ignoredErrorsKeepTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 60_000L, null);
+        breaker.recordFailure();
+        breaker.recordIgnored();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,44 @@
+package h2ph.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void allowsTheBurstThenDenies() {
+        TokenBucket bucket = new TokenBucket(0.001, 3);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void refillsAtItsRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(20L);
+        assertTrue(bucket.tryAcquire());
+    }
+
+    @Test
+    void burstIsAtLeastOne() {
+        TokenBucket bucket = new TokenBucket(0.001, 0);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void isFullOnlyOnceRefilled() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 2);
+        assertTrue(bucket.isFull());
+        bucket.tryAcquire();
+        assertFalse(bucket.isFull());
+        Thread.sleep(20L);
+        assertTrue(bucket.isFull());
+    }
+}